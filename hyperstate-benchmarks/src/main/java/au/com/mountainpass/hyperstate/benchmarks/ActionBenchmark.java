@@ -0,0 +1,96 @@
+package au.com.mountainpass.hyperstate.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.com.mountainpass.hyperstate.annotations.PresentationType;
+import au.com.mountainpass.hyperstate.benchmarks.entities.BenchmarkAccount;
+import au.com.mountainpass.hyperstate.core.Action;
+import au.com.mountainpass.hyperstate.core.JavaAction;
+import au.com.mountainpass.hyperstate.core.Parameter;
+
+/**
+ * Action dispatch: parameter filtering in {@link Action#invoke(Map)}, the
+ * MethodHandle based {@link JavaAction#doInvoke(Map)} and, for comparison,
+ * the reflective {@link Method#invoke(Object, Object...)} path it replaced.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ActionBenchmark {
+
+    private JavaAction<?> action;
+
+    private BenchmarkAccount account;
+
+    private Method method;
+
+    private Map<String, Object> context;
+
+    private Map<String, Object> filteredParameters;
+
+    @Setup
+    public void setup() throws NoSuchMethodException {
+        account = new BenchmarkAccount(BenchmarkFixtures.repository(true),
+                "/accounts/bench", "bench");
+        action = (JavaAction<?>) account.getAction("update");
+        method = BenchmarkAccount.class.getMethod("update", String.class);
+
+        // a typical form submission, with a few unrelated parameters
+        context = new HashMap<>();
+        context.put("username", "nick");
+        context.put("action", "update");
+        for (int i = 0; i < 8; ++i) {
+            context.put("unrelated" + i, "value" + i);
+        }
+        filteredParameters = new HashMap<>();
+        filteredParameters.put("username", "nick");
+        filteredParameters.put("action", "update");
+    }
+
+    @Benchmark
+    public CompletableFuture<?> invoke() {
+        return action.invoke(context);
+    }
+
+    @Benchmark
+    public CompletableFuture<?> doInvoke() {
+        return action.doInvoke(filteredParameters);
+    }
+
+    /**
+     * What {@link JavaAction#doInvoke(Map)} did before actions were invoked
+     * through MethodHandles.
+     */
+    @Benchmark
+    public Object doInvokeReflective() throws Exception {
+        final List<Object> args = new ArrayList<>(
+                action.getParameters().size());
+        for (final Parameter param : action.getParameters()) {
+            if (!PresentationType.SUBMIT.equals(param.getType())) {
+                args.add(filteredParameters.get(param.getIdentifier()));
+            }
+        }
+        return method.invoke(account, args.toArray());
+    }
+
+}
@@ -0,0 +1,105 @@
+package au.com.mountainpass.hyperstate.benchmarks;
+
+import java.net.URI;
+
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.deser.BeanDeserializerModifier;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+
+import au.com.mountainpass.hyperstate.client.RestTemplateResolver;
+import au.com.mountainpass.hyperstate.client.deserialisation.EntityWrapperProxyDeserializer;
+import au.com.mountainpass.hyperstate.core.Link;
+import au.com.mountainpass.hyperstate.core.Titled;
+import au.com.mountainpass.hyperstate.server.InMemoryEntityRepository;
+import au.com.mountainpass.hyperstate.server.serialization.SirenModule;
+import au.com.mountainpass.hyperstate.server.serialization.mixins.LinkSerialisationMixin;
+import au.com.mountainpass.hyperstate.server.serialization.mixins.TitledSerialisationMixin;
+
+/**
+ * Builds the same collaborators the server and client use, without starting
+ * a Spring context.
+ */
+public final class BenchmarkFixtures {
+
+    public static final URI BASE_URI = URI.create("https://localhost:8443");
+
+    private BenchmarkFixtures() {
+    }
+
+    public static InMemoryEntityRepository repository(
+            final boolean synchronous) {
+        final InMemoryEntityRepository repository = new InMemoryEntityRepository();
+        repository.setSynchronous(synchronous);
+        return repository;
+    }
+
+    /**
+     * Binds a request to the current thread, so hrefs can be built during
+     * serialization just as they are inside a request.
+     */
+    public static void bindRequest() {
+        final MockHttpServletRequest request = new MockHttpServletRequest("GET",
+                "/");
+        request.setScheme(BASE_URI.getScheme());
+        request.setServerName(BASE_URI.getHost());
+        request.setServerPort(BASE_URI.getPort());
+        request.setSecure(true);
+        RequestContextHolder
+                .setRequestAttributes(new ServletRequestAttributes(request));
+    }
+
+    public static void unbindRequest() {
+        RequestContextHolder.resetRequestAttributes();
+    }
+
+    /**
+     * @return an {@link ObjectMapper} configured the way Spring Boot and
+     *         {@code HyperstateController} configure it
+     */
+    public static ObjectMapper serverObjectMapper() {
+        final ObjectMapper om = Jackson2ObjectMapperBuilder.json()
+                .featuresToDisable(
+                        SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+                .build();
+        om.addMixIn(Link.class, LinkSerialisationMixin.class);
+        om.addMixIn(Titled.class, TitledSerialisationMixin.class);
+        om.registerModule(new SirenModule());
+        om.findAndRegisterModules();
+        return om;
+    }
+
+    /**
+     * @return an {@link ObjectMapper} configured the way a
+     *         {@link RestTemplateResolver} client is, which deserializes
+     *         entities as proxies through
+     *         {@link EntityWrapperProxyDeserializer}
+     */
+    public static ObjectMapper clientObjectMapper() {
+        final ObjectMapper om = Jackson2ObjectMapperBuilder.json().build();
+        final SimpleModule module = new SimpleModule();
+        module.setDeserializerModifier(new BeanDeserializerModifier() {
+            @Override
+            public JsonDeserializer<?> modifyDeserializer(
+                    final DeserializationConfig config,
+                    final BeanDescription beanDesc,
+                    final JsonDeserializer<?> deserializer) {
+                return new EntityWrapperProxyDeserializer(null, deserializer);
+            }
+        });
+        om.registerModule(module);
+        om.findAndRegisterModules();
+        new RestTemplateResolver(BASE_URI, om, new AsyncRestTemplate());
+        return om;
+    }
+
+}
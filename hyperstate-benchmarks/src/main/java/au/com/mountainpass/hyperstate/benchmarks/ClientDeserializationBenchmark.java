@@ -0,0 +1,75 @@
+package au.com.mountainpass.hyperstate.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import au.com.mountainpass.hyperstate.benchmarks.entities.BenchmarkAccount;
+import au.com.mountainpass.hyperstate.benchmarks.entities.BenchmarkAccounts;
+import au.com.mountainpass.hyperstate.client.deserialisation.EntityWrapperProxyDeserializer;
+import au.com.mountainpass.hyperstate.core.EntityRepository;
+import au.com.mountainpass.hyperstate.core.entities.VanillaEntity;
+
+/**
+ * Client side deserialization of Siren responses into entity proxies,
+ * through {@link EntityWrapperProxyDeserializer}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientDeserializationBenchmark {
+
+    @Param({ "10", "100" })
+    private int collectionSize;
+
+    private ObjectMapper om;
+
+    private byte[] entity;
+
+    private byte[] collection;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkFixtures.bindRequest();
+        try {
+            final ObjectMapper serverOm = BenchmarkFixtures
+                    .serverObjectMapper();
+            final EntityRepository repository = BenchmarkFixtures
+                    .repository(true);
+            entity = serverOm.writeValueAsBytes(new BenchmarkAccount(
+                    repository, "/accounts/bench", "bench"));
+            collection = serverOm.writeValueAsBytes(new BenchmarkAccounts(
+                    repository, "/accounts", collectionSize));
+        } finally {
+            BenchmarkFixtures.unbindRequest();
+        }
+        om = BenchmarkFixtures.clientObjectMapper();
+    }
+
+    @Benchmark
+    public VanillaEntity entity() throws IOException {
+        return om.readValue(entity, VanillaEntity.class);
+    }
+
+    @Benchmark
+    public VanillaEntity collection() throws IOException {
+        return om.readValue(collection, VanillaEntity.class);
+    }
+
+}
@@ -0,0 +1,77 @@
+package au.com.mountainpass.hyperstate.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.com.mountainpass.hyperstate.benchmarks.entities.BenchmarkAccount;
+import au.com.mountainpass.hyperstate.benchmarks.entities.BenchmarkAccounts;
+import au.com.mountainpass.hyperstate.core.BinaryEntityCodec;
+import au.com.mountainpass.hyperstate.core.EntityCodec;
+import au.com.mountainpass.hyperstate.core.EntityRepository;
+import au.com.mountainpass.hyperstate.core.JsonEntityCodec;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * Encoding and decoding entities for storage, in JSON and in binary. The
+ * size of each encoding is printed when the benchmark is set up.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EntityCodecBenchmark {
+
+    @Param({ "json", "binary" })
+    private String codecName;
+
+    /**
+     * The number of sub-entities, or zero for a single account.
+     */
+    @Param({ "0", "100" })
+    private int collectionSize;
+
+    private EntityRepository repository;
+
+    private EntityCodec codec;
+
+    private EntityWrapper<?> entity;
+
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        repository = BenchmarkFixtures.repository(true);
+        codec = "binary".equals(codecName) ? new BinaryEntityCodec()
+                : new JsonEntityCodec();
+        entity = collectionSize == 0
+                ? new BenchmarkAccount(repository, "/accounts/bench", "bench")
+                : new BenchmarkAccounts(repository, "/accounts",
+                        collectionSize);
+        encoded = codec.encode(entity);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(entity);
+    }
+
+    @Benchmark
+    public EntityWrapper<?> decode() {
+        return codec.decode(repository, ByteBuffer.wrap(encoded));
+    }
+
+}
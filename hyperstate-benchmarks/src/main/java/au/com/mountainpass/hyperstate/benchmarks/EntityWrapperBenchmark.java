@@ -0,0 +1,42 @@
+package au.com.mountainpass.hyperstate.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.com.mountainpass.hyperstate.benchmarks.entities.BenchmarkAccount;
+import au.com.mountainpass.hyperstate.core.EntityRepository;
+
+/**
+ * The cost of building an entity, including binding its actions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntityWrapperBenchmark {
+
+    private EntityRepository repository;
+
+    @Setup
+    public void setup() {
+        repository = BenchmarkFixtures.repository(true);
+    }
+
+    @Benchmark
+    public BenchmarkAccount construct() {
+        return new BenchmarkAccount(repository, "/accounts/bench", "bench");
+    }
+
+}
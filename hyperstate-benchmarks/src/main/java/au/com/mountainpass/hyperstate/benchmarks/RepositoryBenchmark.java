@@ -0,0 +1,78 @@
+package au.com.mountainpass.hyperstate.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.com.mountainpass.hyperstate.benchmarks.entities.BenchmarkAccount;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+import au.com.mountainpass.hyperstate.server.InMemoryEntityRepository;
+
+/**
+ * {@link InMemoryEntityRepository} under a contended, read mostly workload:
+ * six threads reading and two threads writing the same set of paths.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RepositoryBenchmark {
+
+    private static final int ENTITIES = 1024;
+
+    @Param({ "false", "true" })
+    private boolean synchronous;
+
+    private InMemoryEntityRepository repository;
+
+    private String[] paths;
+
+    private BenchmarkAccount[] accounts;
+
+    @Setup
+    public void setup() {
+        repository = BenchmarkFixtures.repository(synchronous);
+        paths = new String[ENTITIES];
+        accounts = new BenchmarkAccount[ENTITIES];
+        for (int i = 0; i < ENTITIES; ++i) {
+            paths[i] = "/accounts/" + i;
+            accounts[i] = new BenchmarkAccount(repository, paths[i],
+                    "user" + i);
+            repository.save(accounts[i]).join();
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public EntityWrapper<?> findOne() {
+        return repository
+                .findOne(paths[ThreadLocalRandom.current().nextInt(ENTITIES)])
+                .join();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public EntityWrapper<?> save() {
+        return repository
+                .save(accounts[ThreadLocalRandom.current().nextInt(ENTITIES)])
+                .join();
+    }
+
+}
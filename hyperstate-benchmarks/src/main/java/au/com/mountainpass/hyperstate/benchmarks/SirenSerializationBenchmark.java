@@ -0,0 +1,73 @@
+package au.com.mountainpass.hyperstate.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import au.com.mountainpass.hyperstate.benchmarks.entities.BenchmarkAccount;
+import au.com.mountainpass.hyperstate.benchmarks.entities.BenchmarkAccounts;
+import au.com.mountainpass.hyperstate.core.EntityRepository;
+
+/**
+ * Serializing entities to Siren JSON with the server's {@link ObjectMapper}
+ * configuration, as a GET would.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SirenSerializationBenchmark {
+
+    @Param({ "10", "100" })
+    private int collectionSize;
+
+    private ObjectMapper om;
+
+    private BenchmarkAccount account;
+
+    private BenchmarkAccounts accounts;
+
+    @Setup
+    public void setup() {
+        BenchmarkFixtures.bindRequest();
+        om = BenchmarkFixtures.serverObjectMapper();
+        final EntityRepository repository = BenchmarkFixtures
+                .repository(true);
+        account = new BenchmarkAccount(repository, "/accounts/bench",
+                "bench");
+        accounts = new BenchmarkAccounts(repository, "/accounts",
+                collectionSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkFixtures.unbindRequest();
+    }
+
+    @Benchmark
+    public byte[] entity() throws JsonProcessingException {
+        return om.writeValueAsBytes(account);
+    }
+
+    @Benchmark
+    public byte[] collection() throws JsonProcessingException {
+        return om.writeValueAsBytes(accounts);
+    }
+
+}
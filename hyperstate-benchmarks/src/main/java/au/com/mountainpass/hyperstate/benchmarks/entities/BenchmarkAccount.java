@@ -0,0 +1,37 @@
+package au.com.mountainpass.hyperstate.benchmarks.entities;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+
+import au.com.mountainpass.hyperstate.core.EntityRepository;
+import au.com.mountainpass.hyperstate.core.entities.DeletedEntity;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+import au.com.mountainpass.hyperstate.core.entities.UpdatedEntity;
+
+/**
+ * An account with an update and a delete action, so that building one
+ * exercises action discovery.
+ */
+public class BenchmarkAccount extends EntityWrapper<BenchmarkAccountProperties> {
+
+    protected BenchmarkAccount() {
+        super(new BenchmarkAccountProperties());
+    }
+
+    public BenchmarkAccount(final EntityRepository repository,
+            final String path, final String username) {
+        super(repository, path,
+                new BenchmarkAccountProperties(username, LocalDateTime.now()),
+                username, "Account");
+    }
+
+    public CompletableFuture<UpdatedEntity> update(final String username) {
+        getProperties().setUsername(username);
+        return CompletableFuture.completedFuture(new UpdatedEntity(this));
+    }
+
+    public CompletableFuture<DeletedEntity> delete() {
+        return CompletableFuture.completedFuture(new DeletedEntity(this));
+    }
+
+}
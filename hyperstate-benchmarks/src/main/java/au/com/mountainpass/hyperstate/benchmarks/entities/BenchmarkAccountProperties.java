@@ -0,0 +1,31 @@
+package au.com.mountainpass.hyperstate.benchmarks.entities;
+
+import java.time.LocalDateTime;
+
+public class BenchmarkAccountProperties {
+
+    private LocalDateTime creationDate;
+
+    private String username;
+
+    public BenchmarkAccountProperties() {
+    }
+
+    public BenchmarkAccountProperties(final String username,
+            final LocalDateTime creationDate) {
+        this.username = username;
+        this.creationDate = creationDate;
+    }
+
+    public LocalDateTime getCreationDate() {
+        return this.creationDate;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    public void setUsername(final String username) {
+        this.username = username;
+    }
+}
@@ -0,0 +1,29 @@
+package au.com.mountainpass.hyperstate.benchmarks.entities;
+
+import au.com.mountainpass.hyperstate.core.EntityRelationship;
+import au.com.mountainpass.hyperstate.core.EntityRepository;
+import au.com.mountainpass.hyperstate.core.Relationship;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * A collection of {@link BenchmarkAccount}s.
+ */
+public class BenchmarkAccounts extends EntityWrapper<Void> {
+
+    protected BenchmarkAccounts() {
+        super(null);
+    }
+
+    public BenchmarkAccounts(final EntityRepository repository,
+            final String path, final int size) {
+        super(repository, path, null, "Accounts", "Accounts");
+        for (int i = 0; i < size; ++i) {
+            final BenchmarkAccount account = new BenchmarkAccount(repository,
+                    path + "/" + i, "user" + i);
+            repository.save(account).join();
+            setEntities(new EntityRelationship[] {
+                    new EntityRelationship(account, Relationship.ITEM) });
+        }
+    }
+
+}
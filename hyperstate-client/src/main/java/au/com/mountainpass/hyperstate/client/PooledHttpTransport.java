@@ -0,0 +1,111 @@
+package au.com.mountainpass.hyperstate.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.ssl.SSLContexts;
+import org.springframework.http.client.AsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.web.client.AsyncRestTemplate;
+
+/**
+ * An HTTP transport for a {@link RestTemplateResolver}, that keeps a small
+ * pool of persistent connections to each host. Requests beyond the limit
+ * for a host wait for one of its connections to be free, rather than
+ * opening another, so crawling a page of links makes a few connections and
+ * reuses them, instead of making one for each link.
+ *
+ * The transport's connections are closed when it is.
+ */
+public class PooledHttpTransport implements Closeable {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+
+    private final PoolingNHttpClientConnectionManager connectionManager;
+
+    private final HttpComponentsAsyncClientHttpRequestFactory requestFactory;
+
+    public PooledHttpTransport() throws IOReactorException {
+        this(SSLContexts.createDefault(), DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param sslContext
+     *            the context for HTTPS connections
+     * @param maxConnectionsPerHost
+     *            the most connections to have open to any one host
+     * @param maxConnections
+     *            the most connections to have open altogether
+     * @throws IOReactorException
+     *             if the I/O threads can't be started
+     */
+    public PooledHttpTransport(final SSLContext sslContext,
+            final int maxConnectionsPerHost, final int maxConnections)
+                    throws IOReactorException {
+        final Registry<SchemeIOSessionStrategy> strategies = RegistryBuilder
+                .<SchemeIOSessionStrategy> create()
+                .register("http", NoopIOSessionStrategy.INSTANCE)
+                .register("https", new SSLIOSessionStrategy(sslContext))
+                .build();
+        connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT),
+                strategies);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+        connectionManager.setMaxTotal(maxConnections);
+        final CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.DEFAULT)
+                .disableCookieManagement().build();
+        requestFactory = new HttpComponentsAsyncClientHttpRequestFactory(
+                client);
+    }
+
+    public AsyncClientHttpRequestFactory getRequestFactory() {
+        return requestFactory;
+    }
+
+    /**
+     * @return a template that makes its requests over this transport, for
+     *         a {@link RestTemplateResolver}
+     */
+    public AsyncRestTemplate asyncRestTemplate() {
+        return new AsyncRestTemplate(requestFactory);
+    }
+
+    /**
+     * @return the number of connections open, whether they are in use or
+     *         waiting in the pool
+     */
+    public int getOpenConnections() {
+        final PoolStats stats = connectionManager.getTotalStats();
+        return stats.getLeased() + stats.getAvailable();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            requestFactory.destroy();
+        } catch (final Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+}
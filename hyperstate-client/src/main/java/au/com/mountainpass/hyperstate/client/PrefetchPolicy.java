@@ -0,0 +1,65 @@
+package au.com.mountainpass.hyperstate.client;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Decides which of the links and sub-entities of an entity fetched by a
+ * {@link RestTemplateResolver} are fetched straight away, in the
+ * background, on the assumption that they are about to be followed.
+ */
+@FunctionalInterface
+public interface PrefetchPolicy {
+
+    /**
+     * Prefetches nothing.
+     */
+    PrefetchPolicy NONE = (rels, classes) -> false;
+
+    /**
+     * @param rels
+     *            the rels of a link or sub-entity
+     * @param classes
+     *            the classes of the entity it links to
+     * @return true if the entity it links to should be prefetched
+     */
+    boolean shouldPrefetch(String[] rels, Set<String> classes);
+
+    /**
+     * @return a policy that prefetches the links and sub-entities with any
+     *         of {@code rels}
+     */
+    static PrefetchPolicy rels(final String... rels) {
+        final Set<String> wanted = new HashSet<>(Arrays.asList(rels));
+        return (linkRels, classes) -> {
+            for (final String rel : linkRels) {
+                if (wanted.contains(rel)) {
+                    return true;
+                }
+            }
+            return false;
+        };
+    }
+
+    /**
+     * @return a policy that prefetches the links and sub-entities to entities
+     *         with any of {@code classes}
+     */
+    static PrefetchPolicy classes(final String... classes) {
+        final Set<String> wanted = new HashSet<>(Arrays.asList(classes));
+        return (rels, linkClasses) -> linkClasses != null
+                && !Collections.disjoint(wanted, linkClasses);
+    }
+
+    /**
+     * @return a policy that prefetches what either this policy or
+     *         {@code other} does
+     */
+    default PrefetchPolicy or(final PrefetchPolicy other) {
+        return (rels, classes) -> shouldPrefetch(rels, classes)
+                || other.shouldPrefetch(rels, classes);
+    }
+
+}
@@ -1,19 +1,30 @@
 package au.com.mountainpass.hyperstate.client;
 
+import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang3.NotImplementedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.RequestEntity;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.util.StreamUtils;
 import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
@@ -21,6 +32,9 @@ import org.springframework.web.util.UriComponentsBuilder;
 import com.fasterxml.jackson.databind.InjectableValues;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import au.com.mountainpass.hyperstate.client.cache.CachedResponse;
+import au.com.mountainpass.hyperstate.client.cache.GuavaResponseCache;
+import au.com.mountainpass.hyperstate.client.cache.ResponseCache;
 import au.com.mountainpass.hyperstate.client.deserialisation.mixins.ActionMixin;
 import au.com.mountainpass.hyperstate.client.deserialisation.mixins.AddressMixin;
 import au.com.mountainpass.hyperstate.client.deserialisation.mixins.EntityRelationshipMixin;
@@ -32,22 +46,58 @@ import au.com.mountainpass.hyperstate.core.FutureConverter;
 import au.com.mountainpass.hyperstate.core.Link;
 import au.com.mountainpass.hyperstate.core.MediaTypes;
 import au.com.mountainpass.hyperstate.core.NavigationalRelationship;
+import au.com.mountainpass.hyperstate.core.Relationship;
 import au.com.mountainpass.hyperstate.core.Resolver;
 import au.com.mountainpass.hyperstate.core.entities.CreatedEntity;
 import au.com.mountainpass.hyperstate.core.entities.DeletedEntity;
 import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+import au.com.mountainpass.hyperstate.core.entities.LinkedEntity;
 import au.com.mountainpass.hyperstate.core.entities.UpdatedEntity;
 
 public class RestTemplateResolver implements Resolver {
 
+    private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
     private URI baseUri;
 
     private AsyncRestTemplate asyncRestTemplate;
 
+    private ObjectMapper om;
+
+    private ResponseCache responseCache;
+
+    private final ConcurrentMap<URI, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * How long prefetched responses are fresh for, in milliseconds, if the
+     * server doesn't say. They're revalidated before they're used, as one
+     * fetched just before a change made by another client would otherwise
+     * be used after it.
+     */
+    public static final long DEFAULT_PREFETCH_FRESH_FOR = 0;
+
+    private volatile PrefetchPolicy prefetchPolicy = PrefetchPolicy.NONE;
+
+    private volatile long prefetchFreshFor = DEFAULT_PREFETCH_FRESH_FOR;
+
     public RestTemplateResolver(URI baseUri, ObjectMapper om,
             AsyncRestTemplate asyncRestTemplate) {
+        this(baseUri, om, asyncRestTemplate, new GuavaResponseCache());
+    }
+
+    /**
+     * @param responseCache
+     *            where to keep the responses to GETs. Cached responses are
+     *            used for as long as the server says they are fresh, and are
+     *            revalidated with their ETag or Last-Modified date after that.
+     */
+    public RestTemplateResolver(URI baseUri, ObjectMapper om,
+            AsyncRestTemplate asyncRestTemplate,
+            ResponseCache responseCache) {
         this.baseUri = baseUri;
         this.asyncRestTemplate = asyncRestTemplate;
+        this.om = om;
+        this.responseCache = responseCache;
         om.addMixIn(Action.class, ActionMixin.class);
         om.addMixIn(Address.class, AddressMixin.class);
         om.addMixIn(EntityRelationship.class, EntityRelationshipMixin.class);
@@ -71,7 +121,13 @@ public class RestTemplateResolver implements Resolver {
                 .contentType(MediaType.APPLICATION_FORM_URLENCODED).body(body);
         final ListenableFuture<URI> locationFuture = asyncRestTemplate
                 .postForLocation(address.getHref(), request);
-        return FutureConverter.convert(locationFuture).thenApplyAsync(uri -> {
+        return FutureConverter.convert(locationFuture)
+                .whenComplete((uri, e) -> {
+                    invalidate(address.getHref());
+                    if (uri != null) {
+                        invalidate(uri);
+                    }
+                }).thenApplyAsync(uri -> {
             final CreatedEntity linkedEntity = new CreatedEntity(
                     new Link(new RestAddress(this, uri), null, null));
 
@@ -95,6 +151,8 @@ public class RestTemplateResolver implements Resolver {
                 .exchange(address.getHref(), HttpMethod.DELETE, request,
                         DeletedEntity.class);
         return FutureConverter.convert(responseFuture)
+                .whenComplete(
+                        (response, e) -> invalidate(address.getHref()))
                 .thenApplyAsync(response -> {
                     return response.getBody();
                 });
@@ -110,14 +168,31 @@ public class RestTemplateResolver implements Resolver {
         }
         URI uri = UriComponentsBuilder.fromHttpUrl(address.getHref().toString())
                 .queryParams(body).build().toUri();
-        final RequestEntity<?> request = RequestEntity.get(uri)
-                .accept(MediaTypes.SIREN_JSON).build();
+        return get(uri, type);
+    }
 
-        final ListenableFuture<ResponseEntity<T>> responseFuture = asyncRestTemplate
-                .exchange(uri, HttpMethod.GET, request, type);
-        return FutureConverter.convert(responseFuture)
-                .thenApplyAsync(response -> response.getBody());
+    /**
+     * Has the links and sub-entities of each entity this resolver gets
+     * fetched straight away, in parallel, if {@code policy} picks them. They
+     * are put in the response cache, so following them soon after only has
+     * to wait for the server to revalidate them, unless it says they are
+     * fresh for longer.
+     */
+    public void setPrefetchPolicy(final PrefetchPolicy policy) {
+        setPrefetchPolicy(policy, DEFAULT_PREFETCH_FRESH_FOR);
+    }
 
+    /**
+     * @param freshFor
+     *            how long prefetched responses are fresh for, in
+     *            milliseconds, if the server doesn't say. Responses the
+     *            server does give a Cache-Control header for are kept as it
+     *            says.
+     */
+    public void setPrefetchPolicy(final PrefetchPolicy policy,
+            final long freshFor) {
+        this.prefetchPolicy = policy;
+        this.prefetchFreshFor = freshFor;
     }
 
     public <E extends EntityWrapper<?>> CompletableFuture<E> get(
@@ -130,14 +205,162 @@ public class RestTemplateResolver implements Resolver {
     public <E extends EntityWrapper<?>> CompletableFuture<E> get(
             final String path, final Class<E> type) {
         final URI rootUrl = getBaseUri().resolve(path);
+        return get(rootUrl, type);
+    }
 
-        final RequestEntity<?> request = RequestEntity.get(rootUrl)
-                .accept(MediaTypes.SIREN_JSON).build();
+    private <T> CompletableFuture<T> get(final URI uri, final Class<T> type) {
+        return fetch(uri, 0).thenApply(body -> {
+            final T entity = read(body, type);
+            if (entity instanceof EntityWrapper) {
+                prefetch((EntityWrapper<?>) entity);
+            }
+            return entity;
+        });
+    }
+
+    private void prefetch(final EntityWrapper<?> entity) {
+        final PrefetchPolicy policy = prefetchPolicy;
+        if (policy == PrefetchPolicy.NONE) {
+            return;
+        }
+        for (final NavigationalRelationship link : entity.getLinks()) {
+            if (!link.hasRelationship(Relationship.SELF)) {
+                prefetch(policy, link.getRelationships(),
+                        link.getLink().getClasses(),
+                        link.getLink().getAddress());
+            }
+        }
+        for (final EntityRelationship relationship : entity.getEntities()) {
+            final LinkedEntity linked = relationship.getEntityLink();
+            prefetch(policy, relationship.getRelationships(),
+                    linked.getClasses(), linked.getAddress());
+        }
+    }
 
-        return FutureConverter.convert(asyncRestTemplate.exchange(rootUrl,
-                HttpMethod.GET, request, type)).thenApply(r -> {
-                    return r.getBody();
+    private void prefetch(final PrefetchPolicy policy, final String[] rels,
+            final Set<String> classes, final Address address) {
+        // nothing waits on it, so a failure just leaves it uncached, and
+        // mustn't fail the get that found the link
+        try {
+            if (address instanceof RestAddress
+                    && policy.shouldPrefetch(rels, classes)) {
+                final URI uri = UriComponentsBuilder
+                        .fromHttpUrl(address.getHref().toString()).build()
+                        .toUri();
+                fetch(uri, prefetchFreshFor).whenComplete((body, e) -> {
+                    if (e != null) {
+                        LOGGER.debug("could not prefetch {}", uri, e);
+                    }
                 });
+            }
+        } catch (final RuntimeException e) {
+            LOGGER.debug("could not prefetch {}", address, e);
+        }
+    }
+
+    /**
+     * Fetches the body at {@code uri}, from the cache if it's fresh there.
+     * Concurrent fetches of the same URI share a single request.
+     *
+     * @param defaultMaxAge
+     *            how long the response is fresh for, in milliseconds, if the
+     *            server doesn't say
+     */
+    private CompletableFuture<byte[]> fetch(final URI uri,
+            final long defaultMaxAge) {
+        final long requested = System.currentTimeMillis();
+        final CachedResponse cached = responseCache.get(uri);
+        if (cached != null && cached.isFresh(requested)) {
+            return CompletableFuture.completedFuture(cached.getBody());
+        }
+        final CompletableFuture<byte[]> flight = new CompletableFuture<>();
+        final CompletableFuture<byte[]> existing = inFlight.putIfAbsent(uri,
+                flight);
+        if (existing != null) {
+            return existing;
+        }
+        final ListenableFuture<byte[]> bodyFuture;
+        try {
+            bodyFuture = asyncRestTemplate.execute(uri, HttpMethod.GET,
+                    request -> {
+                        final HttpHeaders headers = request.getHeaders();
+                        headers.setAccept(
+                                Arrays.asList(MediaTypes.SIREN_JSON));
+                        if (cached != null) {
+                            cached.addConditions(headers);
+                        }
+                    }, response -> {
+                        if (cached != null && response
+                                .getStatusCode() == HttpStatus.NOT_MODIFIED) {
+                            cache(uri, flight, cached.revalidated(
+                                    response.getHeaders(), requested));
+                            return cached.getBody();
+                        }
+                        final byte[] body = StreamUtils
+                                .copyToByteArray(response.getBody());
+                        cache(uri, flight,
+                                response.getStatusCode() == HttpStatus.OK
+                                        ? CachedResponse.of(
+                                                response.getHeaders(), body,
+                                                requested, defaultMaxAge)
+                                        : null);
+                        return body;
+                    });
+        } catch (final RuntimeException e) {
+            // otherwise later fetches of uri would wait on it forever
+            inFlight.remove(uri, flight);
+            flight.completeExceptionally(e);
+            return flight;
+        }
+        FutureConverter.convert(bodyFuture).whenComplete((body, e) -> {
+            inFlight.remove(uri, flight);
+            if (e == null) {
+                flight.complete(body);
+            } else {
+                flight.completeExceptionally(e);
+            }
+        });
+        return flight;
+    }
+
+    /**
+     * Discards the cached response for {@code uri}, and stops sharing any
+     * fetch of it in flight, so that later fetches see a change made to it.
+     * The response to a fetch that was in flight isn't cached either, as it
+     * may be from before the change.
+     */
+    private void invalidate(final URI uri) {
+        inFlight.remove(uri);
+        responseCache.invalidate(uri);
+    }
+
+    /**
+     * Caches the response to {@code flight}, unless {@code uri} has been
+     * invalidated since {@code flight} was made.
+     */
+    private void cache(final URI uri, final CompletableFuture<byte[]> flight,
+            final CachedResponse response) {
+        if (inFlight.get(uri) != flight) {
+            return;
+        }
+        if (response == null) {
+            responseCache.invalidate(uri);
+            return;
+        }
+        responseCache.put(uri, response);
+        // an invalidation may have run between the check above and the put
+        if (inFlight.get(uri) != flight) {
+            responseCache.invalidate(uri);
+        }
+    }
+
+    private <T> T read(final byte[] body, final Class<T> type) {
+        try {
+            return om.readValue(body, type);
+        } catch (final IOException e) {
+            throw new HttpMessageNotReadableException(
+                    "Could not read document: " + e.getMessage(), e);
+        }
     }
 
     private URI getBaseUri() {
@@ -160,6 +383,8 @@ public class RestTemplateResolver implements Resolver {
                 .exchange(address.getHref(), HttpMethod.PUT, request,
                         Void.class);
         return FutureConverter.convert(responseFuture)
+                .whenComplete(
+                        (response, e) -> invalidate(address.getHref()))
                 .thenApplyAsync(response -> {
                     Link link = new Link(address);
                     return new UpdatedEntity(link);
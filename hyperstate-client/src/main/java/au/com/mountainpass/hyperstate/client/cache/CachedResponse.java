@@ -0,0 +1,143 @@
+package au.com.mountainpass.hyperstate.client.cache;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.http.HttpHeaders;
+
+/**
+ * The body of a response to a GET, along with what's needed to tell whether
+ * it's still fresh, and to revalidate it with the server when it isn't.
+ */
+public class CachedResponse {
+
+    private final byte[] body;
+
+    private final String eTag;
+
+    private final long lastModified;
+
+    private final long maxAge;
+
+    private final long received;
+
+    private CachedResponse(final byte[] body, final String eTag,
+            final long lastModified, final long maxAge, final long received) {
+        this.body = body;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.maxAge = maxAge;
+        this.received = received;
+    }
+
+    /**
+     * @param headers
+     *            the headers of a 200 response
+     * @param body
+     *            the body of the response
+     * @param received
+     *            when the response was received, in milliseconds since the
+     *            epoch
+     * @return the response to cache, or {@literal null} if the response can't
+     *         be cached, either because the server forbids it, or because it
+     *         would never be fresh and can't be revalidated
+     */
+    public static CachedResponse of(final HttpHeaders headers,
+            final byte[] body, final long received) {
+        return of(headers, body, received, 0);
+    }
+
+    /**
+     * As {@link #of(HttpHeaders, byte[], long)}, but a response the server
+     * didn't give a Cache-Control header for is fresh for
+     * {@code defaultMaxAge} milliseconds.
+     */
+    public static CachedResponse of(final HttpHeaders headers,
+            final byte[] body, final long received, final long defaultMaxAge) {
+        final long maxAge = maxAge(headers.getCacheControl(), defaultMaxAge);
+        final String eTag = headers.getETag();
+        final long lastModified = headers.getLastModified();
+        if (maxAge < 0 || (maxAge == 0 && eTag == null && lastModified < 0)) {
+            return null;
+        }
+        return new CachedResponse(body, eTag, lastModified, maxAge, received);
+    }
+
+    /**
+     * @param headers
+     *            the headers of a 304 response to a request made with
+     *            {@link #addConditions(HttpHeaders)}
+     * @param received
+     *            when the response was received, in milliseconds since the
+     *            epoch
+     * @return this response, updated with the headers, or {@literal null} if
+     *         the server no longer allows it to be cached
+     */
+    public CachedResponse revalidated(final HttpHeaders headers,
+            final long received) {
+        final long maxAge = maxAge(headers.getCacheControl(), this.maxAge);
+        if (maxAge < 0) {
+            return null;
+        }
+        final String eTag = headers.getETag();
+        final long lastModified = headers.getLastModified();
+        return new CachedResponse(body, eTag == null ? this.eTag : eTag,
+                lastModified < 0 ? this.lastModified : lastModified, maxAge,
+                received);
+    }
+
+    /**
+     * @return the number of milliseconds the response is fresh for, zero if
+     *         it must always be revalidated, or -1 if it must not be stored
+     */
+    private static long maxAge(final String cacheControl,
+            final long defaultMaxAge) {
+        if (cacheControl == null) {
+            return defaultMaxAge;
+        }
+        long maxAge = 0;
+        for (final String directive : cacheControl.split(",")) {
+            final String trimmed = directive.trim().toLowerCase();
+            if (trimmed.equals("no-store")) {
+                return -1;
+            } else if (trimmed.equals("no-cache")) {
+                return 0;
+            } else if (trimmed.startsWith("max-age=")) {
+                try {
+                    maxAge = TimeUnit.SECONDS.toMillis(Long.parseLong(
+                            trimmed.substring("max-age=".length())));
+                } catch (final NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return maxAge;
+    }
+
+    /**
+     * @param now
+     *            the current time, in milliseconds since the epoch
+     * @return true if the response can be used without revalidating it
+     */
+    public boolean isFresh(final long now) {
+        return now - received < maxAge;
+    }
+
+    /**
+     * Makes a request conditional on the response having changed.
+     *
+     * @param headers
+     *            the headers of the request
+     */
+    public void addConditions(final HttpHeaders headers) {
+        if (eTag != null) {
+            headers.setIfNoneMatch(eTag);
+        } else if (lastModified >= 0) {
+            headers.setIfModifiedSince(lastModified);
+        }
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+}
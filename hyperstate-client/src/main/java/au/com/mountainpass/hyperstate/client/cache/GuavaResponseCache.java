@@ -0,0 +1,75 @@
+package au.com.mountainpass.hyperstate.client.cache;
+
+import java.net.URI;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A {@link ResponseCache} bounded by the size of the response bodies it
+ * holds, evicting the least recently used responses first.
+ */
+public class GuavaResponseCache implements ResponseCache {
+
+    /**
+     * The default bound, in bytes.
+     */
+    public static final long DEFAULT_MAXIMUM_WEIGHT = 16 * 1024 * 1024;
+
+    private final Cache<URI, CachedResponse> responses;
+
+    public GuavaResponseCache() {
+        this(DEFAULT_MAXIMUM_WEIGHT);
+    }
+
+    /**
+     * @param maximumWeight
+     *            the number of bytes of response bodies to keep at most
+     */
+    public GuavaResponseCache(final long maximumWeight) {
+        this(CacheBuilder.newBuilder().maximumWeight(maximumWeight));
+    }
+
+    /**
+     * @param builder
+     *            a builder configured with the eviction policy to use. It must
+     *            not have a weigher set, as responses are weighed by the size
+     *            of their bodies.
+     */
+    public GuavaResponseCache(final CacheBuilder<Object, Object> builder) {
+        this.responses = builder
+                .weigher((final URI uri, final CachedResponse response) -> response
+                        .getBody().length)
+                .recordStats().build();
+    }
+
+    @Override
+    public CachedResponse get(final URI uri) {
+        return responses.getIfPresent(uri);
+    }
+
+    @Override
+    public void put(final URI uri, final CachedResponse response) {
+        responses.put(uri, response);
+    }
+
+    @Override
+    public void invalidate(final URI uri) {
+        responses.invalidate(uri);
+    }
+
+    @Override
+    public void invalidateAll() {
+        responses.invalidateAll();
+    }
+
+    public long size() {
+        return responses.size();
+    }
+
+    public CacheStats stats() {
+        return responses.stats();
+    }
+
+}
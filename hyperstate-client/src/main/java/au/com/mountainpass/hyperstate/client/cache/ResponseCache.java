@@ -0,0 +1,27 @@
+package au.com.mountainpass.hyperstate.client.cache;
+
+import java.net.URI;
+
+/**
+ * Keeps the responses to GET requests made by a
+ * {@link au.com.mountainpass.hyperstate.client.RestTemplateResolver}, keyed by
+ * the URI they were fetched from.
+ *
+ * Implementations decide how much to keep and what to evict.
+ */
+public interface ResponseCache {
+
+    /**
+     * @param uri
+     *            the URI the response was fetched from
+     * @return the cached response, or {@literal null} if there isn't one
+     */
+    CachedResponse get(URI uri);
+
+    void put(URI uri, CachedResponse response);
+
+    void invalidate(URI uri);
+
+    void invalidateAll();
+
+}
@@ -1,14 +1,21 @@
 package au.com.mountainpass.hyperstate.client.deserialisation;
 
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Parameter;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.springframework.cglib.proxy.Callback;
+import org.springframework.cglib.proxy.CallbackFilter;
 import org.springframework.cglib.proxy.Enhancer;
 import org.springframework.cglib.proxy.MethodInterceptor;
-import org.springframework.cglib.proxy.MethodProxy;
 import org.springframework.context.ApplicationContext;
 
 import com.fasterxml.jackson.core.JsonParser;
@@ -27,6 +34,41 @@ public class EntityWrapperProxyDeserializer extends DelegatingDeserializer {
      */
     private static final long serialVersionUID = 5929494436284359667L;
 
+    /**
+     * The methods that are called on the deserialized entity, rather than
+     * turned into calls to its actions.
+     */
+    private static final Set<String> LOCAL_METHODS = new HashSet<>(
+            Arrays.asList("getAction", "getActions", "toLinkedEntity",
+                    "getEntities", "getProperties", "getProperty", "getTitle",
+                    "getClasses", "getLinks", "resolve", "getLink"));
+
+    private static final int LOCAL = 0;
+
+    private static final int RELOAD = 1;
+
+    private static final int REMOTE = 2;
+
+    /**
+     * Picks which of a proxy's callbacks each method goes to, once, when the
+     * proxy class is generated, rather than on every call.
+     */
+    private static final CallbackFilter DISPATCH = method -> {
+        if (LOCAL_METHODS.contains(method.getName())) {
+            return LOCAL;
+        } else if (method.getName().equals("reload")) {
+            return RELOAD;
+        } else {
+            return REMOTE;
+        }
+    };
+
+    /**
+     * The no-arg constructors of the proxy classes, by the class of the
+     * entity they proxy. Each class is only generated once.
+     */
+    private static final ConcurrentMap<Class<?>, Constructor<? extends EntityWrapper<?>>> PROXIES = new ConcurrentHashMap<>();
+
     ApplicationContext context;
 
     public EntityWrapperProxyDeserializer(final ApplicationContext context,
@@ -42,65 +84,77 @@ public class EntityWrapperProxyDeserializer extends DelegatingDeserializer {
         final Object result = super.deserialize(jp, ctxt);
 
         if (EntityWrapper.class.isAssignableFrom(result.getClass())) {
-
-            final Enhancer e = new Enhancer();
-            e.setClassLoader(this.getClass().getClassLoader());
-            e.setSuperclass(result.getClass());
-            e.setCallback(new MethodInterceptor() {
-                private Object original = result;
-
-                @SuppressWarnings("unchecked")
-                @Override
-                public Object intercept(final Object obj, final Method method,
-                        final Object[] args, final MethodProxy proxy)
-                                throws Throwable {
-
-                    if (method.getName().equals("getAction")
-                            || method.getName().equals("getActions")
-                            || method.getName().equals("toLinkedEntity")
-                            || method.getName().equals("getEntities")
-                            || method.getName().equals("getProperties")
-                            || method.getName().equals("getProperty")
-                            || method.getName().equals("getTitle")
-                            || method.getName().equals("getClasses")
-                            || method.getName().equals("getLinks")
-                            || method.getName().equals("resolve")
-                            || method.getName().equals("getLink")) {
-                        return proxy.invoke(original, args);
-                        // return proxy.invokeSuper(obj, args);
-                    } else if (method.getName().equals("reload")) {
-                        return ((EntityWrapper<?>) obj).getLink("self").get();
-                    } else {
-                        final Map<String, Object> context = new HashMap<>();
-
-                        final Parameter[] params = method.getParameters();
-                        for (int i = 0; i < params.length; ++i) {
-                            context.put(params[i].getName(), args[i]);
-                        }
-
-                        final Action<?> action = ((EntityWrapper<?>) obj)
-                                .getAction(method.getName());
-                        if (action == null) {
-                            throw new IllegalAccessException(
-                                    "The method `" + method.getName()
-                                            + "` cannot be executed remotely");
-                        } else {
-                            return action.invoke(context);
-                        }
-                    }
-                }
-            });
-            return e.create();
+            final Constructor<? extends EntityWrapper<?>> constructor = PROXIES
+                    .computeIfAbsent(result.getClass(), this::proxyConstructor);
+            final Callback[] callbacks = new Callback[] {
+                    (MethodInterceptor) (obj, method, args,
+                            proxy) -> proxy.invoke(result, args),
+                    (MethodInterceptor) (obj, method, args,
+                            proxy) -> ((EntityWrapper<?>) obj).getLink("self")
+                                    .get(),
+                    (MethodInterceptor) (obj, method, args,
+                            proxy) -> invokeAction((EntityWrapper<?>) obj,
+                                    method, args) };
+            // the callbacks are picked up by the proxy's constructor
+            Enhancer.registerCallbacks(constructor.getDeclaringClass(),
+                    callbacks);
+            try {
+                return constructor.newInstance();
+            } catch (final ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                Enhancer.registerCallbacks(constructor.getDeclaringClass(),
+                        null);
+            }
         }
 
         return result;
 
     }
 
+    private Constructor<? extends EntityWrapper<?>> proxyConstructor(
+            final Class<?> type) {
+        final Enhancer e = new Enhancer();
+        e.setClassLoader(this.getClass().getClassLoader());
+        e.setSuperclass(type);
+        e.setCallbackFilter(DISPATCH);
+        e.setCallbackTypes(new Class<?>[] { MethodInterceptor.class,
+                MethodInterceptor.class, MethodInterceptor.class });
+        // the generated class is a subclass of type, an entity class
+        @SuppressWarnings("unchecked")
+        final Class<? extends EntityWrapper<?>> proxy = e.createClass();
+        try {
+            final Constructor<? extends EntityWrapper<?>> constructor = proxy
+                    .getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (final NoSuchMethodException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+
+    private static Object invokeAction(final EntityWrapper<?> entity,
+            final Method method, final Object[] args) throws Throwable {
+        final Map<String, Object> context = new HashMap<>();
+
+        final Parameter[] params = method.getParameters();
+        for (int i = 0; i < params.length; ++i) {
+            context.put(params[i].getName(), args[i]);
+        }
+
+        final Action<?> action = entity.getAction(method.getName());
+        if (action == null) {
+            throw new IllegalAccessException("The method `" + method.getName()
+                    + "` cannot be executed remotely");
+        } else {
+            return action.invoke(context);
+        }
+    }
+
     @Override
     protected JsonDeserializer<?> newDelegatingInstance(
             final JsonDeserializer<?> newDelegatee) {
         return this;
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,20 @@
+package au.com.mountainpass.hyperstate.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a property of an entity's properties class as indexed, so that
+ * entities can be looked up by its value with
+ * {@link au.com.mountainpass.hyperstate.core.EntityRepository#findByProperty(String, Object)}.
+ *
+ * Either the field or its getter may be annotated. The value must have
+ * consistent {@code equals} and {@code hashCode} methods.
+ */
+@Target({ ElementType.FIELD, ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Indexed {
+
+}
@@ -0,0 +1,679 @@
+package au.com.mountainpass.hyperstate.core;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.util.ClassUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import au.com.mountainpass.hyperstate.core.entities.EntityState;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * Encodes entities in a compact binary form, for repositories that keep a
+ * lot of them. An entity is typically less than half the size it is in
+ * {@link JsonEntityCodec JSON}, and a collection about a fifth, while
+ * encoding and decoding take about as long.
+ *
+ * Each encoded entity starts with a table of the strings it uses for class
+ * names, rels, paths, titles and property names, so each is written once
+ * however often it's used, and the commonest rels aren't written at all.
+ * The properties are written against a schema of their type's property
+ * names, so the names aren't written either, only the values, in order.
+ * The properties must be serializable by the codec's {@link ObjectMapper},
+ * and their type must not change which properties it has between an entity
+ * being encoded and decoded.
+ *
+ * <pre>
+ * byte      FORMAT
+ * varint    the number of strings in the table, then for each, how many
+ *           strings back the string it shares a prefix with is, or zero,
+ *           the length of the prefix unless it's zero, and the rest
+ * ref       the entity's type
+ * ref       path
+ * ref       title
+ * refs      classes
+ * varlong   version
+ * varlong   lastModified
+ * varint    the number of links, then for each, refs of its rels, and
+ *           refs of its path, title and classes
+ * varint    the number of sub-entities, each as for links
+ * ref       the type of the properties, then, unless it's null:
+ * boolean   whether the properties are written against a schema, and if
+ *           they are:
+ * int       the hash of the schema
+ * value[]   a value for each property in the schema
+ * varint    the number of properties not in the schema, then for each,
+ *           the ref of its name, and its value
+ *           or if they aren't:
+ * value     the properties
+ * </pre>
+ *
+ * where a ref is the index into {@link #PRESET} and then the table, plus
+ * one, or zero for null.
+ */
+public class BinaryEntityCodec implements EntityCodec {
+
+    private static final byte FORMAT = 1;
+
+    /**
+     * Strings that are never put in the table. Part of the format, so they
+     * can only ever be added to, along with a new {@link #FORMAT}.
+     */
+    private static final List<String> PRESET = Collections
+            .unmodifiableList(Arrays.asList(Relationship.SELF,
+                    Relationship.ITEM, Relationship.COLLECTION,
+                    Relationship.NEXT, Relationship.PREV, Relationship.FIRST,
+                    Relationship.LAST, Relationship.UP, Relationship.EDIT,
+                    Relationship.INDEX));
+
+    private static final Map<String, Integer> PRESET_REFS = new HashMap<>();
+
+    static {
+        for (int i = 0; i < PRESET.size(); ++i) {
+            PRESET_REFS.put(PRESET.get(i), i + 1);
+        }
+    }
+
+    /**
+     * How many characters a string in the table must start with for the
+     * strings before it that start with them to be looked at for a shared
+     * prefix.
+     */
+    private static final int SHARED_PREFIX_KEY = 4;
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INTEGER = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte STRING = 5;
+    private static final byte ARRAY = 6;
+    private static final byte OBJECT = 7;
+    private static final byte BINARY = 8;
+    private static final byte BIG_INTEGER = 9;
+    private static final byte DECIMAL = 10;
+    private static final byte MISSING = 11;
+
+    /**
+     * The names of the properties of a type, which its values are written
+     * in the order of.
+     */
+    private static final class Schema {
+        private final String[] names;
+        private final Set<String> named;
+        private final int hash;
+
+        private Schema(final String[] names) {
+            this.names = names;
+            this.named = new HashSet<>(Arrays.asList(names));
+            this.hash = Arrays.hashCode(names);
+        }
+    }
+
+    private final ObjectMapper mapper;
+
+    private final ConcurrentMap<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    /**
+     * Uses an {@link ObjectMapper} with every module on the classpath
+     * registered.
+     */
+    public BinaryEntityCodec() {
+        this(new ObjectMapper().findAndRegisterModules());
+    }
+
+    public BinaryEntityCodec(final ObjectMapper objectMapper) {
+        this.mapper = objectMapper;
+    }
+
+    @Override
+    public byte[] encode(final EntityWrapper<?> entity) {
+        final EntityState state = entity.toState();
+        final Output body = new Output(256);
+        final Map<String, Integer> table = new HashMap<>();
+        final List<String> strings = new ArrayList<>();
+        final Output.Refs refs = string -> {
+            if (string == null) {
+                return 0;
+            }
+            final Integer preset = PRESET_REFS.get(string);
+            if (preset != null) {
+                return preset;
+            }
+            return table.computeIfAbsent(string, s -> {
+                strings.add(s);
+                return PRESET.size() + strings.size();
+            });
+        };
+        body.writeRef(refs, state.getType());
+        body.writeRef(refs, state.getPath());
+        body.writeRef(refs, state.getTitle());
+        body.writeRefs(refs, state.getClasses());
+        body.writeVarLong(state.getVersion());
+        body.writeVarLong(state.getLastModified());
+        writeReferences(body, refs, state.getLinks());
+        writeReferences(body, refs, state.getEntities());
+        final Object properties = state.getProperties();
+        if (properties == null) {
+            body.writeRef(refs, null);
+        } else {
+            body.writeRef(refs, properties.getClass().getName());
+            writeProperties(body, refs, properties);
+        }
+
+        final Output encoded = new Output(body.size() + 16 * strings.size());
+        encoded.writeByte(FORMAT);
+        writeTable(encoded, strings);
+        encoded.write(body);
+        return encoded.toByteArray();
+    }
+
+    /**
+     * Writes the strings in the table, each as the prefix it shares with a
+     * string before it, and the rest of it, as class names share their
+     * packages, and paths their parents. The string before it is either
+     * the last, or the last to start the same way.
+     */
+    private static void writeTable(final Output out,
+            final List<String> strings) {
+        final Map<String, Integer> starts = new HashMap<>();
+        out.writeVarInt(strings.size());
+        for (int index = 0; index < strings.size(); ++index) {
+            final String string = strings.get(index);
+            int back = 0;
+            int shared = 0;
+            if (index > 0) {
+                back = 1;
+                shared = sharedPrefix(strings.get(index - 1), string);
+            }
+            if (string.length() >= SHARED_PREFIX_KEY) {
+                final Integer start = starts.put(
+                        string.substring(0, SHARED_PREFIX_KEY), index);
+                if (start != null && start != index - 1) {
+                    final int common = sharedPrefix(strings.get(start),
+                            string);
+                    if (common > shared) {
+                        back = index - start;
+                        shared = common;
+                    }
+                }
+            }
+            out.writeVarInt(shared == 0 ? 0 : back);
+            if (shared != 0) {
+                out.writeVarInt(shared);
+            }
+            out.writeString(string.substring(shared));
+        }
+    }
+
+    private static int sharedPrefix(final String a, final String b) {
+        final int limit = Math.min(a.length(), b.length());
+        int common = 0;
+        while (common < limit && a.charAt(common) == b.charAt(common)) {
+            ++common;
+        }
+        if (common > 0 && Character.isHighSurrogate(a.charAt(common - 1))) {
+            // so that the rest is still valid UTF-16
+            --common;
+        }
+        return common;
+    }
+
+    private static void writeReferences(final Output out,
+            final Output.Refs refs, final List<EntityState.Reference> list) {
+        out.writeVarInt(list.size());
+        for (final EntityState.Reference reference : list) {
+            out.writeRefs(refs, Arrays.asList(reference.getRels()));
+            out.writeRef(refs, reference.getPath());
+            out.writeRef(refs, reference.getTitle());
+            out.writeRefs(refs, reference.getClasses());
+        }
+    }
+
+    private void writeProperties(final Output out, final Output.Refs refs,
+            final Object properties) {
+        final JsonNode tree = mapper.valueToTree(properties);
+        if (!tree.isObject()) {
+            // not a bean, e.g. a String, so there's nothing to name
+            out.writeByte(FALSE);
+            out.writeValue(refs, tree);
+            return;
+        }
+        final Schema schema = schema(properties.getClass());
+        out.writeByte(TRUE);
+        out.writeInt(schema.hash);
+        int unnamed = tree.size();
+        for (final String name : schema.names) {
+            final JsonNode value = tree.get(name);
+            if (value != null) {
+                --unnamed;
+            }
+            out.writeValue(refs, value);
+        }
+        out.writeVarInt(unnamed);
+        if (unnamed > 0) {
+            for (final Iterator<Map.Entry<String, JsonNode>> fields = tree
+                    .fields(); fields.hasNext();) {
+                final Map.Entry<String, JsonNode> field = fields.next();
+                if (!schema.named.contains(field.getKey())) {
+                    out.writeRef(refs, field.getKey());
+                    out.writeValue(refs, field.getValue());
+                }
+            }
+        }
+    }
+
+    @Override
+    public EntityWrapper<?> decode(final EntityRepository repository,
+            final ByteBuffer bytes) {
+        try {
+            if (bytes.get() != FORMAT) {
+                throw new IllegalArgumentException(
+                        "not an entity in a known binary format");
+            }
+            final Input in = new Input(bytes);
+            final int size = in.readVarInt();
+            final List<String> strings = new ArrayList<>(
+                    PRESET.size() + size);
+            strings.addAll(PRESET);
+            for (int i = 0; i < size; ++i) {
+                final int back = in.readVarInt();
+                final String prefix = back == 0 ? ""
+                        : strings.get(strings.size() - back).substring(0,
+                                in.readVarInt());
+                strings.add(prefix + in.readString());
+            }
+            in.strings = strings;
+            final String type = in.readRef();
+            final String path = in.readRef();
+            final String title = in.readRef();
+            final Set<String> classes = in.readRefs();
+            final long version = in.readVarLong();
+            final long lastModified = in.readVarLong();
+            final List<EntityState.Reference> links = readReferences(in);
+            final List<EntityState.Reference> entities = readReferences(in);
+            final String propertiesType = in.readRef();
+            final Object properties = propertiesType == null ? null
+                    : readProperties(in, propertiesType);
+            return EntityWrapper.restore(repository,
+                    new EntityState(type, path, properties, title, classes,
+                            links, entities, version, lastModified));
+        } catch (final BufferUnderflowException
+                | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException(
+                    "not an entity in a known binary format", e);
+        }
+    }
+
+    private static List<EntityState.Reference> readReferences(
+            final Input in) {
+        final int size = in.readVarInt();
+        final List<EntityState.Reference> list = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            final Set<String> rels = in.readRefs();
+            list.add(new EntityState.Reference(
+                    rels.toArray(new String[rels.size()]), in.readRef(),
+                    in.readRef(), in.readRefs()));
+        }
+        return list;
+    }
+
+    private Object readProperties(final Input in, final String typeName) {
+        final Class<?> type;
+        try {
+            type = ClassUtils.forName(typeName, null);
+        } catch (final ClassNotFoundException | LinkageError e) {
+            throw new IllegalArgumentException(e);
+        }
+        if (in.readByte() == FALSE) {
+            return treeToValue(in.readValue(), type);
+        }
+        final Schema schema = schema(type);
+        if (in.readInt() != schema.hash) {
+            throw new IllegalArgumentException(
+                    "the properties of " + typeName + " have changed");
+        }
+        final ObjectNode object = JsonNodeFactory.instance.objectNode();
+        for (final String name : schema.names) {
+            final JsonNode value = in.readValue();
+            if (value != null) {
+                object.set(name, value);
+            }
+        }
+        final int extra = in.readVarInt();
+        for (int i = 0; i < extra; ++i) {
+            final String name = in.readRef();
+            object.set(name, in.readValue());
+        }
+        return treeToValue(object, type);
+    }
+
+    private Object treeToValue(final JsonNode tree, final Class<?> type) {
+        try {
+            return mapper.treeToValue(tree, type);
+        } catch (final JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private Schema schema(final Class<?> type) {
+        return schemas.computeIfAbsent(type, t -> {
+            final Set<String> names = new LinkedHashSet<>();
+            for (final BeanPropertyDefinition property : mapper
+                    .getSerializationConfig()
+                    .introspect(mapper.constructType(t)).findProperties()) {
+                if (property.couldSerialize()) {
+                    names.add(property.getName());
+                }
+            }
+            return new Schema(names.toArray(new String[names.size()]));
+        });
+    }
+
+    /**
+     * A growable buffer, with methods for the parts of the format.
+     */
+    private static final class Output {
+
+        /**
+         * Gives the refs of strings, adding them to the table as need be.
+         */
+        interface Refs {
+            int of(String string);
+        }
+
+        private byte[] bytes;
+
+        private int size;
+
+        private Output(final int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void ensure(final int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes,
+                        Math.max(bytes.length * 2, size + extra));
+            }
+        }
+
+        private void writeByte(final int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        private void writeBytes(final byte[] b) {
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, size, b.length);
+            size += b.length;
+        }
+
+        private void write(final Output other) {
+            ensure(other.size);
+            System.arraycopy(other.bytes, 0, bytes, size, other.size);
+            size += other.size;
+        }
+
+        private void writeInt(final int value) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        private void writeLong(final long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        private void writeVarInt(final int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarLong(final long value) {
+            ensure(10);
+            long remaining = value;
+            while ((remaining & ~0x7FL) != 0) {
+                bytes[size++] = (byte) (remaining & 0x7F | 0x80);
+                remaining >>>= 7;
+            }
+            bytes[size++] = (byte) remaining;
+        }
+
+        private void writeString(final String string) {
+            final byte[] utf8 = string.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(utf8.length);
+            writeBytes(utf8);
+        }
+
+        private void writeRef(final Refs refs, final String string) {
+            writeVarInt(refs.of(string));
+        }
+
+        private void writeRefs(final Refs refs,
+                final Collection<String> strings) {
+            writeVarInt(strings.size());
+            for (final String string : strings) {
+                writeRef(refs, string);
+            }
+        }
+
+        /**
+         * Strings are written in place rather than in the table, as
+         * property values are rarely repeated.
+         */
+        private void writeValue(final Refs refs, final JsonNode value) {
+            if (value == null || value.isMissingNode()) {
+                writeByte(MISSING);
+            } else if (value.isNull()) {
+                writeByte(NULL);
+            } else if (value.isBoolean()) {
+                writeByte(value.booleanValue() ? TRUE : FALSE);
+            } else if (value.isIntegralNumber() && value.canConvertToLong()) {
+                writeByte(INTEGER);
+                final long n = value.longValue();
+                writeVarLong(n << 1 ^ n >> 63);
+            } else if (value.isBigInteger()) {
+                writeByte(BIG_INTEGER);
+                writeString(value.bigIntegerValue().toString());
+            } else if (value.isBigDecimal()) {
+                writeByte(DECIMAL);
+                writeString(value.decimalValue().toString());
+            } else if (value.isNumber()) {
+                writeByte(DOUBLE);
+                writeLong(Double.doubleToRawLongBits(value.doubleValue()));
+            } else if (value.isTextual()) {
+                writeByte(STRING);
+                writeString(value.textValue());
+            } else if (value.isBinary()) {
+                writeByte(BINARY);
+                try {
+                    final byte[] b = value.binaryValue();
+                    writeVarInt(b.length);
+                    writeBytes(b);
+                } catch (final IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            } else if (value.isArray()) {
+                writeByte(ARRAY);
+                writeVarInt(value.size());
+                for (final JsonNode element : value) {
+                    writeValue(refs, element);
+                }
+            } else {
+                writeByte(OBJECT);
+                writeVarInt(value.size());
+                for (final Iterator<Map.Entry<String, JsonNode>> fields = value
+                        .fields(); fields.hasNext();) {
+                    final Map.Entry<String, JsonNode> field = fields.next();
+                    writeRef(refs, field.getKey());
+                    writeValue(refs, field.getValue());
+                }
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Reads the parts of the format from a buffer.
+     */
+    private static final class Input {
+
+        private final ByteBuffer buffer;
+
+        private List<String> strings;
+
+        private Input(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private byte readByte() {
+            return buffer.get();
+        }
+
+        private int readInt() {
+            return buffer.getInt();
+        }
+
+        private int readVarInt() {
+            final long value = readVarLong();
+            if (value >>> 32 != 0) {
+                throw new IllegalArgumentException(
+                        "not an entity in a known binary format");
+            }
+            return (int) value;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException(
+                    "not an entity in a known binary format");
+        }
+
+        private byte[] readBytes() {
+            final byte[] bytes = new byte[readVarInt()];
+            buffer.get(bytes);
+            return bytes;
+        }
+
+        private String readString() {
+            final int length = readVarInt();
+            if (buffer.hasArray()) {
+                final String string = new String(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(), length,
+                        StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + length);
+                return string;
+            }
+            final byte[] utf8 = new byte[length];
+            buffer.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        private String readRef() {
+            final int ref = readVarInt();
+            return ref == 0 ? null : strings.get(ref - 1);
+        }
+
+        private Set<String> readRefs() {
+            final int size = readVarInt();
+            final Set<String> set = new LinkedHashSet<>(size * 2);
+            for (int i = 0; i < size; ++i) {
+                set.add(readRef());
+            }
+            return set;
+        }
+
+        /**
+         * @return the value, or null if it was missing
+         */
+        private JsonNode readValue() {
+            final JsonNodeFactory nodes = JsonNodeFactory.instance;
+            final byte tag = buffer.get();
+            switch (tag) {
+            case MISSING:
+                return null;
+            case NULL:
+                return nodes.nullNode();
+            case FALSE:
+                return nodes.booleanNode(false);
+            case TRUE:
+                return nodes.booleanNode(true);
+            case INTEGER:
+                final long zigzag = readVarLong();
+                final long n = zigzag >>> 1 ^ -(zigzag & 1);
+                return n == (int) n ? nodes.numberNode((int) n)
+                        : nodes.numberNode(n);
+            case DOUBLE:
+                return nodes.numberNode(
+                        Double.longBitsToDouble(buffer.getLong()));
+            case STRING:
+                return nodes.textNode(readString());
+            case BINARY:
+                return nodes.binaryNode(readBytes());
+            case BIG_INTEGER:
+                return nodes.numberNode(new BigInteger(readString()));
+            case DECIMAL:
+                return nodes.numberNode(new BigDecimal(readString()));
+            case ARRAY:
+                final int length = readVarInt();
+                final ArrayNode array = nodes.arrayNode();
+                for (int i = 0; i < length; ++i) {
+                    array.add(readValue());
+                }
+                return array;
+            case OBJECT:
+                final int size = readVarInt();
+                final ObjectNode object = nodes.objectNode();
+                for (int i = 0; i < size; ++i) {
+                    final String name = readRef();
+                    object.set(name, readValue());
+                }
+                return object;
+            default:
+                throw new IllegalArgumentException(
+                        "not an entity in a known binary format");
+            }
+        }
+    }
+
+}
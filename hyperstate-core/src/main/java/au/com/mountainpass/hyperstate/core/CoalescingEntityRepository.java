@@ -0,0 +1,207 @@
+package au.com.mountainpass.hyperstate.core;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import au.com.mountainpass.hyperstate.core.entities.DeletedEntity;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * An {@link EntityRepository} that shares lookups of the same path, so that
+ * a burst of requests for a hot entity only reads it from the underlying
+ * repository once.
+ *
+ * A lookup made while another lookup of the same path (and type) is in
+ * flight gets that lookup's future. Once a save or delete of a path has
+ * completed, lookups of that path in flight are no longer shared, so a
+ * lookup made after a write always sees it.
+ */
+public class CoalescingEntityRepository implements EntityRepository {
+
+    private static final class Key {
+        private final String path;
+        private final Class<?> type;
+
+        private Key(final String path, final Class<?> type) {
+            this.path = path;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return path.equals(other.path) && Objects.equals(type, other.type);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode();
+        }
+    }
+
+    private final EntityRepository delegate;
+
+    private final ConcurrentMap<Key, CompletableFuture<?>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public CoalescingEntityRepository(final EntityRepository delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public CompletableFuture<DeletedEntity> delete(
+            final EntityWrapper<?> entity) {
+        return written(entity.getId(), delegate.delete(entity));
+    }
+
+    @Override
+    public CompletableFuture<DeletedEntity> delete(final String id) {
+        return written(id, delegate.delete(id));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> exists(final String id) {
+        return delegate.exists(id);
+    }
+
+    @Override
+    public CompletableFuture<EntityWrapper<?>> findOne(final String id) {
+        return coalesce(new Key(id, null), () -> delegate.findOne(id));
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<S> findOne(
+            final String path, final Class<S> type) {
+        return coalesce(new Key(path, type),
+                () -> delegate.findOne(path, type));
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<S> save(
+            final S entity) {
+        return written(entity.getId(), delegate.save(entity));
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<Boolean> compareAndSave(
+            final EntityWrapper<?> expected, final S entity) {
+        return written(entity.getId(),
+                delegate.compareAndSave(expected, entity));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndDelete(
+            final EntityWrapper<?> expected) {
+        return written(expected.getId(), delegate.compareAndDelete(expected));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll() {
+        return written(null, delegate.deleteAll());
+    }
+
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findAll(
+            final Collection<String> ids) {
+        return delegate.findAll(ids);
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<List<S>> saveAll(
+            final Collection<S> entities) {
+        return writtenAll(
+                entities.stream().map(EntityWrapper::getId)
+                        .collect(Collectors.toSet()),
+                delegate.saveAll(entities));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll(final Collection<String> ids) {
+        return writtenAll(ids, delegate.deleteAll(ids));
+    }
+
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findByProperty(
+            final String property, final Object value) {
+        return delegate.findByProperty(property, value);
+    }
+
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findRange(
+            final String prefix, final String after, final String before,
+            final int limit) {
+        return delegate.findRange(prefix, after, before, limit);
+    }
+
+    /**
+     * @return the number of lookups that were given the future of a lookup
+     *         already in flight
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> coalesce(final Key key,
+            final Supplier<CompletableFuture<T>> lookup) {
+        final CompletableFuture<T> flight = new CompletableFuture<>();
+        final CompletableFuture<?> existing = inFlight.putIfAbsent(key,
+                flight);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return (CompletableFuture<T>) existing;
+        }
+        final CompletableFuture<T> looked;
+        try {
+            looked = lookup.get();
+        } catch (final RuntimeException e) {
+            // so that later lookups don't wait on a flight that never lands
+            inFlight.remove(key, flight);
+            flight.completeExceptionally(e);
+            return flight;
+        }
+        looked.whenComplete((result, e) -> {
+            inFlight.remove(key, flight);
+            if (e == null) {
+                flight.complete(result);
+            } else {
+                flight.completeExceptionally(e);
+            }
+        });
+        return flight;
+    }
+
+    /**
+     * @param path
+     *            the path written, or {@literal null} if every path may have
+     *            been written
+     */
+    private <T> CompletableFuture<T> written(final String path,
+            final CompletableFuture<T> write) {
+        return write.whenComplete((result, e) -> {
+            if (path == null) {
+                inFlight.clear();
+            } else {
+                inFlight.keySet().removeIf(key -> key.path.equals(path));
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> writtenAll(
+            final Collection<String> paths, final CompletableFuture<T> write) {
+        return write.whenComplete((result, e) -> inFlight.keySet()
+                .removeIf(key -> paths.contains(key.path)));
+    }
+
+}
@@ -0,0 +1,208 @@
+package au.com.mountainpass.hyperstate.core;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import au.com.mountainpass.hyperstate.core.entities.DeletedEntity;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+import au.com.mountainpass.hyperstate.exceptions.EntityChangedException;
+
+/**
+ * A view of an {@link EntityRepository} for applying an action to an entity
+ * only if the entity hasn't changed since a precondition was checked
+ * against it.
+ *
+ * While an action is {@link #apply(Supplier) applied}, this view is the
+ * {@link EntityWrapper#getRepository() repository} of the entity on the
+ * applying thread. Saving or deleting the entity through it becomes a
+ * {@link EntityRepository#compareAndSave(EntityWrapper, EntityWrapper)
+ * compareAndSave} or
+ * {@link EntityRepository#compareAndDelete(EntityWrapper) compareAndDelete}
+ * against the entity as it was when the precondition was checked, and fails
+ * with an {@link EntityChangedException} if it has changed since. The entity
+ * stays the one stored in the repository, and stays bound to it. Everything
+ * else goes straight to the repository.
+ */
+public class ConditionalEntityRepository implements EntityRepository {
+
+    private static final ThreadLocal<ConditionalEntityRepository> APPLYING = new ThreadLocal<>();
+
+    private final EntityRepository delegate;
+
+    private final String path;
+
+    private volatile EntityWrapper<?> expected;
+
+    private volatile long expectedVersion;
+
+    /**
+     * @param delegate
+     *            the repository {@code expected} is stored in
+     * @param expected
+     *            the entity the precondition was checked against
+     */
+    public ConditionalEntityRepository(final EntityRepository delegate,
+            final EntityWrapper<?> expected) {
+        this.delegate = delegate;
+        this.path = expected.getId();
+        this.expected = expected;
+        this.expectedVersion = expected.getVersion();
+    }
+
+    /**
+     * @param entity
+     *            an entity an action is being applied to
+     * @return the view {@code entity} is saved and deleted through on this
+     *         thread, or null if no conditional action is being applied to it
+     */
+    public static EntityRepository applying(final EntityWrapper<?> entity) {
+        final ConditionalEntityRepository view = APPLYING.get();
+        return view != null && view.path.equals(entity.getId()) ? view : null;
+    }
+
+    /**
+     * Applies an action to the entity, so that the saves and deletes of it
+     * the action makes before returning only go ahead if it hasn't changed.
+     *
+     * @param action
+     *            invokes the action
+     * @return the action's result, or a future failed with an
+     *         {@link EntityChangedException} if the entity has already
+     *         changed
+     */
+    public <T> CompletableFuture<T> apply(
+            final Supplier<CompletableFuture<T>> action) {
+        if (expected.getVersion() != expectedVersion) {
+            return changed();
+        }
+        final ConditionalEntityRepository outer = APPLYING.get();
+        APPLYING.set(this);
+        try {
+            return action.get();
+        } finally {
+            if (outer == null) {
+                APPLYING.remove();
+            } else {
+                APPLYING.set(outer);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<DeletedEntity> delete(
+            final EntityWrapper<?> entity) {
+        return delete(entity.getId());
+    }
+
+    @Override
+    public CompletableFuture<DeletedEntity> delete(final String id) {
+        if (!path.equals(id)) {
+            return delegate.delete(id);
+        }
+        final EntityWrapper<?> deleted = expected;
+        return unlessChanged(() -> delegate.compareAndDelete(deleted),
+                () -> new DeletedEntity(deleted));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> exists(final String id) {
+        return delegate.exists(id);
+    }
+
+    @Override
+    public CompletableFuture<EntityWrapper<?>> findOne(final String id) {
+        return delegate.findOne(id);
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<S> findOne(
+            final String path, final Class<S> type) {
+        return delegate.findOne(path, type);
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<S> save(
+            final S entity) {
+        if (!path.equals(entity.getId())) {
+            return delegate.save(entity);
+        }
+        return unlessChanged(() -> delegate.compareAndSave(expected, entity),
+                () -> {
+                    // so that the action can save it again
+                    expected = entity;
+                    expectedVersion = entity.getVersion();
+                    return entity;
+                });
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<Boolean> compareAndSave(
+            final EntityWrapper<?> expected, final S entity) {
+        return delegate.compareAndSave(expected, entity);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndDelete(
+            final EntityWrapper<?> expected) {
+        return delegate.compareAndDelete(expected);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll() {
+        return delegate.deleteAll();
+    }
+
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findAll(
+            final Collection<String> ids) {
+        return delegate.findAll(ids);
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<List<S>> saveAll(
+            final Collection<S> entities) {
+        return delegate.saveAll(entities);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll(final Collection<String> ids) {
+        return delegate.deleteAll(ids);
+    }
+
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findByProperty(
+            final String property, final Object value) {
+        return delegate.findByProperty(property, value);
+    }
+
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findRange(
+            final String prefix, final String after, final String before,
+            final int limit) {
+        return delegate.findRange(prefix, after, before, limit);
+    }
+
+    private <T> CompletableFuture<T> unlessChanged(
+            final Supplier<CompletableFuture<Boolean>> write,
+            final Supplier<T> result) {
+        // the stored entity may have been saved again in place
+        if (expected.getVersion() != expectedVersion) {
+            return changed();
+        }
+        return write.get().thenApply(written -> {
+            if (!written) {
+                throw new EntityChangedException(path);
+            }
+            return result.get();
+        });
+    }
+
+    private <T> CompletableFuture<T> changed() {
+        final CompletableFuture<T> changed = new CompletableFuture<>();
+        changed.completeExceptionally(new EntityChangedException(path));
+        return changed;
+    }
+
+}
@@ -0,0 +1,35 @@
+package au.com.mountainpass.hyperstate.core;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * Published by an {@link EntityRepository} after the entity at a path has
+ * been saved or deleted, so that anything derived from it can be discarded.
+ */
+@SuppressWarnings("serial")
+public class EntityChangedEvent extends ApplicationEvent {
+
+    private final String path;
+
+    /**
+     * @param repository
+     *            the repository the entity was changed in
+     * @param path
+     *            the path of the changed entity, or {@literal null} if every
+     *            entity may have changed
+     */
+    public EntityChangedEvent(final EntityRepository repository,
+            final String path) {
+        super(repository);
+        this.path = path;
+    }
+
+    /**
+     * @return the path of the changed entity, or {@literal null} if every
+     *         entity may have changed
+     */
+    public String getPath() {
+        return path;
+    }
+
+}
@@ -0,0 +1,34 @@
+package au.com.mountainpass.hyperstate.core;
+
+import java.nio.ByteBuffer;
+
+import au.com.mountainpass.hyperstate.core.entities.EntityState;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * Turns the {@link EntityState state} of entities into bytes and back, for
+ * repositories that keep entities outside of the heap.
+ */
+public interface EntityCodec {
+
+    /**
+     * @param entity
+     *            the entity to encode
+     * @return the entity's state, encoded
+     */
+    byte[] encode(EntityWrapper<?> entity);
+
+    /**
+     * @param repository
+     *            the repository the entity was stored in
+     * @param bytes
+     *            the encoded state, from its position to its limit. The
+     *            position is left where decoding stopped.
+     * @return the entity, {@link EntityWrapper#restore(EntityRepository,
+     *         EntityState) restored}
+     * @throws IllegalArgumentException
+     *             if the bytes aren't an encoded entity
+     */
+    EntityWrapper<?> decode(EntityRepository repository, ByteBuffer bytes);
+
+}
@@ -3,26 +3,63 @@ package au.com.mountainpass.hyperstate.core;
 import java.util.concurrent.CompletableFuture;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.annotation.JsonUnwrapped;
 
 import au.com.mountainpass.hyperstate.core.entities.Entity;
 import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
 import au.com.mountainpass.hyperstate.core.entities.LinkedEntity;
 
+/**
+ * A relationship to a sub-entity. Only a {@link LinkedEntity link} to the
+ * sub-entity is kept, so an entity doesn't hold its sub-entities in memory,
+ * and they are resolved through their address when they are needed.
+ */
+@JsonPropertyOrder({ "entityLink", "rel", "properties" })
 public class EntityRelationship extends Relationship {
 
-    private Entity toEntity;
+    private LinkedEntity toEntity;
+
+    private boolean embedded;
+
+    private EntityWrapper<?> embeddedEntity;
 
     protected EntityRelationship() {
     }
 
     public EntityRelationship(final Entity toEntity, final String... rels) {
+        this(toEntity.toLinkedEntity(), false, rels);
+    }
+
+    private EntityRelationship(final LinkedEntity toEntity,
+            final boolean embedded, final String... rels) {
         super(rels);
         this.toEntity = toEntity;
+        this.embedded = embedded;
+    }
+
+    /**
+     * @return a copy of this relationship whose sub-entity's properties are
+     *         written along with the link to it
+     */
+    public EntityRelationship embedded() {
+        return embedded ? this
+                : new EntityRelationship(toEntity, true, getRelationships());
     }
 
     /**
-     * @return the entity
+     * @return true if the sub-entity's properties are written along with the
+     *         link to it
+     */
+    @JsonIgnore
+    public boolean isEmbedded() {
+        return embedded;
+    }
+
+    /**
+     * @return the link to the entity
      */
     @JsonIgnore
     public Entity getEntity() {
@@ -31,7 +68,45 @@ public class EntityRelationship extends Relationship {
 
     @JsonUnwrapped
     public LinkedEntity getEntityLink() {
-        return toEntity.toLinkedEntity();
+        return toEntity;
+    }
+
+    /**
+     * @param entity
+     *            the sub-entity, as resolved when this relationship is
+     *            written, or null if it couldn't be found
+     * @return a copy of this embedded relationship that carries
+     *         {@code entity}, to write its properties
+     */
+    public EntityRelationship embedding(final EntityWrapper<?> entity) {
+        final EntityRelationship resolved = new EntityRelationship(toEntity,
+                true, getRelationships());
+        resolved.embeddedEntity = entity;
+        return resolved;
+    }
+
+    /**
+     * @return the sub-entity this relationship was
+     *         {@link #embedding(EntityWrapper) resolved} to, or null
+     */
+    @JsonIgnore
+    public EntityWrapper<?> getEmbeddedEntity() {
+        return embeddedEntity;
+    }
+
+    /**
+     * Embedded sub-entities are resolved before their parent is written,
+     * by {@link EntityWrapper#page(String)}, rather than here, so that
+     * writing never waits on the repository.
+     *
+     * @return the properties of the sub-entity this relationship was
+     *         {@link #embedding(EntityWrapper) resolved} to, or null if it
+     *         hasn't been, or couldn't be found
+     */
+    @JsonProperty("properties")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Object getEmbeddedProperties() {
+        return embeddedEntity == null ? null : embeddedEntity.getProperties();
     }
 
     public <K, T extends EntityWrapper<K>> CompletableFuture<T> resolve(
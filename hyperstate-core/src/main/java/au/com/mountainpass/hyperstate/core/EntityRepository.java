@@ -1,6 +1,10 @@
 package au.com.mountainpass.hyperstate.core;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 import org.springframework.data.repository.Repository;
 import org.springframework.scheduling.annotation.Async;
@@ -8,6 +12,14 @@ import org.springframework.scheduling.annotation.Async;
 import au.com.mountainpass.hyperstate.core.entities.DeletedEntity;
 import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
 
+/**
+ * Stores entities by path.
+ *
+ * Implementations should {@link EntityWrapper#touch() touch} entities as
+ * they are saved, and publish an {@link EntityChangedEvent} whenever an
+ * entity is saved or deleted, so that cached representations of it are
+ * discarded.
+ */
 public interface EntityRepository extends Repository<EntityWrapper<?>, String> {
 
     /**
@@ -79,7 +91,169 @@ public interface EntityRepository extends Repository<EntityWrapper<?>, String> {
     @Async
     <S extends EntityWrapper<?>> CompletableFuture<S> save(S entity);
 
+    /**
+     * Atomically saves a given entity, but only if the entity currently stored
+     * at its path is {@code expected}.
+     *
+     * @param expected
+     *            the entity expected to be stored at the path of
+     *            {@code entity}, or {@literal null} if no entity is expected
+     *            to be stored there.
+     * @param entity
+     *            The entity to be saved.
+     * @return true if the entity was saved, {@literal false} if the stored
+     *         entity was not {@code expected}. The default implementation
+     *         fails with an {@link UnsupportedOperationException}, as the
+     *         comparison and the save can't be made atomic through the rest
+     *         of this interface.
+     * @param <S>
+     *            the type of the entity being saved
+     */
+    @Async
+    default <S extends EntityWrapper<?>> CompletableFuture<Boolean> compareAndSave(
+            final EntityWrapper<?> expected, final S entity) {
+        final CompletableFuture<Boolean> unsupported = new CompletableFuture<>();
+        unsupported.completeExceptionally(new UnsupportedOperationException(
+                getClass().getName() + " doesn't support conditional saves"));
+        return unsupported;
+    }
+
+    /**
+     * Atomically deletes the entity at the path of {@code expected}, but only
+     * if the entity currently stored there is {@code expected}.
+     *
+     * @param expected
+     *            the entity expected to be stored at its path
+     * @return true if the entity was deleted, {@literal false} if the stored
+     *         entity was not {@code expected}. The default implementation
+     *         fails with an {@link UnsupportedOperationException}, as the
+     *         comparison and the delete can't be made atomic through the
+     *         rest of this interface.
+     */
+    @Async
+    default CompletableFuture<Boolean> compareAndDelete(
+            final EntityWrapper<?> expected) {
+        final CompletableFuture<Boolean> unsupported = new CompletableFuture<>();
+        unsupported.completeExceptionally(new UnsupportedOperationException(
+                getClass().getName() + " doesn't support conditional deletes"));
+        return unsupported;
+    }
+
     @Async
     CompletableFuture<Void> deleteAll();
 
+    /**
+     * Retrieves the entities with the given ids.
+     *
+     * The default implementation looks each entity up on its own.
+     * Implementations that can fetch several entities at once should do so.
+     *
+     * @param ids
+     *            must not be {@literal null}.
+     * @return the entities, in the order of {@code ids}, with
+     *         {@literal null} for each id that has no entity
+     */
+    @Async
+    default CompletableFuture<List<EntityWrapper<?>>> findAll(
+            final Collection<String> ids) {
+        final List<CompletableFuture<EntityWrapper<?>>> found = ids.stream()
+                .map(this::findOne).collect(Collectors.toList());
+        return CompletableFuture
+                .allOf(found.toArray(new CompletableFuture<?>[found.size()]))
+                .thenApply(done -> found.stream().map(CompletableFuture::join)
+                        .collect(Collectors.toCollection(ArrayList::new)));
+    }
+
+    /**
+     * Saves the given entities. The entities are not saved atomically; if
+     * saving one fails, others may still have been saved.
+     *
+     * @param entities
+     *            the entities to be saved
+     * @return the saved entities, in the order of {@code entities}
+     * @param <S>
+     *            the type of the entities being saved
+     */
+    @Async
+    default <S extends EntityWrapper<?>> CompletableFuture<List<S>> saveAll(
+            final Collection<S> entities) {
+        final List<CompletableFuture<S>> saved = entities.stream()
+                .map(this::save).collect(Collectors.toList());
+        return CompletableFuture
+                .allOf(saved.toArray(new CompletableFuture<?>[saved.size()]))
+                .thenApply(done -> saved.stream().map(CompletableFuture::join)
+                        .collect(Collectors.toCollection(ArrayList::new)));
+    }
+
+    /**
+     * Deletes the entities with the given ids. The entities are not deleted
+     * atomically; if deleting one fails, others may still have been deleted.
+     *
+     * @param ids
+     *            must not be {@literal null}.
+     * @return An empty future to allow execution when the deletes complete.
+     */
+    @Async
+    default CompletableFuture<Void> deleteAll(final Collection<String> ids) {
+        return CompletableFuture.allOf(ids.stream().map(this::delete)
+                .toArray(CompletableFuture<?>[]::new));
+    }
+
+    /**
+     * Retrieves the entities with the given value for an
+     * {@link au.com.mountainpass.hyperstate.annotations.Indexed Indexed}
+     * property.
+     *
+     * Only entities whose properties class marks {@code property} as
+     * indexed are found.
+     *
+     * The default implementation pages through every entity with
+     * {@link #findRange(String, String, String, int)}. Implementations that
+     * maintain indexes should use them.
+     *
+     * @param property
+     *            the name of the indexed property
+     * @param value
+     *            must not be {@literal null}.
+     * @return the entities found, in no particular order
+     */
+    @Async
+    default CompletableFuture<List<EntityWrapper<?>>> findByProperty(
+            final String property, final Object value) {
+        return PropertyScan.findByProperty(this, property, value);
+    }
+
+    /**
+     * Retrieves, in the order of their paths, up to {@code limit} entities
+     * whose paths start with {@code prefix}. This lets a collection page
+     * through the entities stored under it without holding them all.
+     *
+     * @param prefix
+     *            must not be {@literal null}.
+     * @param after
+     *            if not {@literal null}, only entities with paths after it are
+     *            retrieved
+     * @param before
+     *            if not {@literal null}, only entities with paths before it
+     *            are retrieved. If {@code after} is {@literal null}, the
+     *            entities nearest to {@code before} are the ones retrieved.
+     * @param limit
+     *            the most entities to retrieve
+     * @return the entities found, in the order of their paths. The default
+     *         implementation fails with an
+     *         {@link UnsupportedOperationException}, as entities can't be
+     *         listed through the rest of this interface. Entities page
+     *         through the sub-entities they relate to instead, but the
+     *         default {@link #findByProperty(String, Object)} needs it.
+     */
+    @Async
+    default CompletableFuture<List<EntityWrapper<?>>> findRange(
+            final String prefix, final String after, final String before,
+            final int limit) {
+        final CompletableFuture<List<EntityWrapper<?>>> unsupported = new CompletableFuture<>();
+        unsupported.completeExceptionally(new UnsupportedOperationException(
+                getClass().getName() + " doesn't support range queries"));
+        return unsupported;
+    }
+
 }
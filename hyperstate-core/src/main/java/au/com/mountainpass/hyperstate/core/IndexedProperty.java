@@ -0,0 +1,154 @@
+package au.com.mountainpass.hyperstate.core;
+
+import java.beans.Introspector;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import au.com.mountainpass.hyperstate.annotations.Indexed;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * A property of an entity's properties class that is marked as
+ * {@link Indexed}.
+ *
+ * The indexed properties of a class are discovered once and shared, like
+ * {@link JavaActionDescriptor}s.
+ */
+public final class IndexedProperty {
+
+    private static final Map<Class<?>, List<IndexedProperty>> CACHE = new ConcurrentHashMap<>();
+
+    private static final MethodType GETTER_TYPE = MethodType
+            .methodType(Object.class, Object.class);
+
+    /**
+     * @param entity
+     *            an entity
+     * @return the indexed properties of the entity's properties, which is
+     *         empty if it has none
+     */
+    public static List<IndexedProperty> forEntity(
+            final EntityWrapper<?> entity) {
+        final Object properties = entity.getProperties();
+        if (properties == null) {
+            return Collections.emptyList();
+        }
+        return forClass(properties.getClass());
+    }
+
+    /**
+     * @param type
+     *            a properties class
+     * @return the indexed properties of {@code type}
+     */
+    public static List<IndexedProperty> forClass(final Class<?> type) {
+        return CACHE.computeIfAbsent(type, IndexedProperty::discover);
+    }
+
+    /**
+     * @param entity
+     *            an entity
+     * @param name
+     *            the name of an indexed property
+     * @param value
+     *            must not be {@literal null}.
+     * @return true if {@code name} is an indexed property of the entity's
+     *         properties, and it has {@code value}
+     */
+    public static boolean hasValue(final EntityWrapper<?> entity,
+            final String name, final Object value) {
+        for (final IndexedProperty property : forEntity(entity)) {
+            if (property.getName().equals(name)) {
+                return value.equals(property.getValue(entity));
+            }
+        }
+        return false;
+    }
+
+    private static List<IndexedProperty> discover(final Class<?> type) {
+        final List<IndexedProperty> indexed = new ArrayList<>();
+        for (Class<?> c = type; c != null
+                && c != Object.class; c = c.getSuperclass()) {
+            for (final Field field : c.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Indexed.class)
+                        && !Modifier.isStatic(field.getModifiers())) {
+                    indexed.add(new IndexedProperty(field.getName(),
+                            getter(field)));
+                }
+            }
+        }
+        for (final Method method : type.getMethods()) {
+            if (method.isAnnotationPresent(Indexed.class)
+                    && method.getParameterCount() == 0
+                    && !Modifier.isStatic(method.getModifiers())) {
+                final String name = propertyName(method);
+                if (indexed.stream().noneMatch(p -> p.name.equals(name))) {
+                    indexed.add(new IndexedProperty(name, getter(method)));
+                }
+            }
+        }
+        return Collections.unmodifiableList(indexed);
+    }
+
+    private static String propertyName(final Method method) {
+        final String name = method.getName();
+        if (name.startsWith("get") && name.length() > 3) {
+            return Introspector.decapitalize(name.substring(3));
+        } else if (name.startsWith("is") && name.length() > 2) {
+            return Introspector.decapitalize(name.substring(2));
+        }
+        return name;
+    }
+
+    private static MethodHandle getter(final AccessibleObject member) {
+        member.setAccessible(true);
+        try {
+            final MethodHandle handle = member instanceof Field
+                    ? MethodHandles.lookup().unreflectGetter((Field) member)
+                    : MethodHandles.lookup().unreflect((Method) member);
+            return handle.asType(GETTER_TYPE);
+        } catch (final IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final String name;
+
+    private final MethodHandle getter;
+
+    private IndexedProperty(final String name, final MethodHandle getter) {
+        this.name = name;
+        this.getter = getter;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param entity
+     *            an entity whose properties have this property
+     * @return the value of this property
+     */
+    public Object getValue(final EntityWrapper<?> entity) {
+        try {
+            final Object properties = entity.getProperties();
+            return (Object) getter.invokeExact(properties);
+        } catch (final RuntimeException | Error e) {
+            throw e;
+        } catch (final Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -1,19 +1,13 @@
 package au.com.mountainpass.hyperstate.core;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.Parameter;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
 import org.springframework.http.HttpMethod;
 
-import au.com.mountainpass.hyperstate.annotations.PresentationType;
 import au.com.mountainpass.hyperstate.core.entities.CreatedEntity;
 import au.com.mountainpass.hyperstate.core.entities.DeletedEntity;
 import au.com.mountainpass.hyperstate.core.entities.Entity;
@@ -62,25 +56,9 @@ public class JavaAction<T extends Entity> extends Action<T> {
         return null;
     }
 
-    private static au.com.mountainpass.hyperstate.core.Parameter[] extractParameters(
-            final Method method) {
-        final List<Parameter> params = Arrays.asList(method.getParameters());
-
-        final List<au.com.mountainpass.hyperstate.core.Parameter> rval = new ArrayList<>();
-        for (int i = 0; i < params.size(); ++i) {
-            // todo add type support here
-            rval.add(new au.com.mountainpass.hyperstate.core.Parameter(
-                    params.get(i).getName()));
-        }
-        rval.add(new au.com.mountainpass.hyperstate.core.Parameter("action",
-                PresentationType.SUBMIT, method.getName()));
-        return rval
-                .toArray(new au.com.mountainpass.hyperstate.core.Parameter[0]);
-    }
-
     private EntityWrapper<?> entity;
 
-    private Method method;
+    private JavaActionDescriptor descriptor;
 
     private HttpMethod nature;
 
@@ -89,27 +67,33 @@ public class JavaAction<T extends Entity> extends Action<T> {
 
     public JavaAction(final EntityRepository repository,
             final EntityWrapper<?> entity, final Method method) {
-        super(method.getName(), new JavaAddress(repository, entity),
-                extractParameters(method));
-        this.method = method;
+        this(new JavaAddress(repository, entity), entity,
+                new JavaActionDescriptor(method));
+    }
+
+    public JavaAction(final Address address, final EntityWrapper<?> entity,
+            final JavaActionDescriptor descriptor) {
+        super(descriptor.getName(), address, descriptor.getParameters());
+        this.descriptor = descriptor;
         this.entity = entity;
-        this.nature = determineMethodNature(method);
+        this.nature = descriptor.getNature();
     }
 
+    @SuppressWarnings("unchecked")
     @Override
     public CompletableFuture<T> doInvoke(
             final Map<String, Object> filteredParameters) {
         // TODO, this should use the resovler;
-        final List<Object> args = new ArrayList<>(getParameters().size());
-        for (final au.com.mountainpass.hyperstate.core.Parameter param : getParameters()) {
-            if (!PresentationType.SUBMIT.equals(param.getType())) {
-                args.add(filteredParameters.get(param.getIdentifier()));
-            }
+        final String[] argumentNames = descriptor.getArgumentNames();
+        final Object[] args = new Object[argumentNames.length];
+        for (int i = 0; i < args.length; ++i) {
+            args[i] = filteredParameters.get(argumentNames[i]);
         }
         try {
-            return (CompletableFuture<T>) method.invoke(entity, args.toArray());
-        } catch (IllegalAccessException | IllegalArgumentException
-                | InvocationTargetException e) {
+            return (CompletableFuture<T>) descriptor.invoke(entity, args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (final Throwable e) {
             throw new RuntimeException(e);
         }
 
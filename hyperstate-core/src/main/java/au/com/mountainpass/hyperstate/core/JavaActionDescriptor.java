@@ -0,0 +1,170 @@
+package au.com.mountainpass.hyperstate.core;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.http.HttpMethod;
+
+import au.com.mountainpass.hyperstate.annotations.PresentationType;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * The reflective details of a method exposed as a {@link JavaAction}.
+ *
+ * These are the same for every instance of an entity class, so they are
+ * worked out once per class and shared. Only the binding to a particular
+ * entity is done per instance.
+ *
+ * The method is invoked through a {@link MethodHandle} that is adapted once,
+ * when the action is discovered, to take the target and an argument array.
+ * This avoids the per call access checks and argument copying of
+ * {@link Method#invoke(Object, Object...)}.
+ */
+public final class JavaActionDescriptor {
+
+    private static final Map<Class<?>, List<JavaActionDescriptor>> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * @param type
+     *            the entity class
+     * @return the descriptors for every method of {@code type} that can be
+     *         exposed as an action
+     */
+    public static List<JavaActionDescriptor> forClass(final Class<?> type) {
+        return CACHE.computeIfAbsent(type, JavaActionDescriptor::discover);
+    }
+
+    private static List<JavaActionDescriptor> discover(final Class<?> type) {
+        final List<JavaActionDescriptor> descriptors = new ArrayList<>();
+        for (final Method method : type.getMethods()) {
+            if (method.getDeclaringClass()
+                    .isAssignableFrom(EntityWrapper.class)) {
+                // e.g. EntityWrapper.page(String), which isn't an action
+                continue;
+            }
+            final HttpMethod nature = JavaAction.determineMethodNature(method);
+            if (nature != null && Parameter.hasFormTypes(method)) {
+                switch (nature) {
+                case DELETE:
+                case POST:
+                case PUT:
+                case GET:
+                    descriptors.add(new JavaActionDescriptor(method, nature));
+                    break;
+                default:
+                }
+            }
+        }
+        return Collections.unmodifiableList(descriptors);
+    }
+
+    private static Parameter[] extractParameters(final Method method) {
+        final java.lang.reflect.Parameter[] params = method.getParameters();
+        final Parameter[] rval = new Parameter[params.length + 1];
+        for (int i = 0; i < params.length; ++i) {
+            // todo add type support here
+            rval[i] = new Parameter(params[i].getName());
+        }
+        rval[params.length] = new Parameter("action", PresentationType.SUBMIT,
+                method.getName());
+        return rval;
+    }
+
+    private static final MethodType INVOKER_TYPE = MethodType
+            .methodType(Object.class, Object.class, Object[].class);
+
+    private static MethodHandle createInvoker(final Method method) {
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.publicLookup().unreflect(method);
+        } catch (final IllegalAccessException e) {
+            // public method declared on a non-public class
+            method.setAccessible(true);
+            try {
+                handle = MethodHandles.lookup().unreflect(method);
+            } catch (final IllegalAccessException e1) {
+                throw new IllegalStateException(e1);
+            }
+        }
+        return handle
+                .asSpreader(Object[].class, method.getParameterCount())
+                .asType(INVOKER_TYPE);
+    }
+
+    private final Method method;
+
+    private final HttpMethod nature;
+
+    private final Parameter[] parameters;
+
+    private final String[] argumentNames;
+
+    private final MethodHandle invoker;
+
+    public JavaActionDescriptor(final Method method) {
+        this(method, JavaAction.determineMethodNature(method));
+    }
+
+    private JavaActionDescriptor(final Method method,
+            final HttpMethod nature) {
+        this.method = method;
+        this.nature = nature;
+        this.parameters = extractParameters(method);
+        this.argumentNames = new String[parameters.length - 1];
+        for (int i = 0; i < argumentNames.length; ++i) {
+            argumentNames[i] = parameters[i].getIdentifier();
+        }
+        this.invoker = createInvoker(method);
+    }
+
+    public String getName() {
+        return method.getName();
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public HttpMethod getNature() {
+        return nature;
+    }
+
+    /**
+     * @return the names of the method's arguments, in order
+     */
+    String[] getArgumentNames() {
+        return argumentNames;
+    }
+
+    /**
+     * Invokes the method on {@code target}.
+     *
+     * @param target
+     *            the entity to invoke the method on
+     * @param args
+     *            the arguments, in the order given by
+     *            {@link #getArgumentNames()}
+     * @return the value returned by the method
+     * @throws Throwable
+     *             anything thrown by the method, unwrapped
+     */
+    Object invoke(final Object target, final Object[] args) throws Throwable {
+        return invoker.invokeExact(target, args);
+    }
+
+    /**
+     * @return the parameters, including the trailing "action" submit
+     *         parameter. Callers must not modify the returned array.
+     */
+    Parameter[] getParameters() {
+        return parameters;
+    }
+
+}
@@ -4,10 +4,16 @@ import java.net.URI;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
+import javax.servlet.http.HttpServletRequest;
+
 import org.apache.commons.lang3.NotImplementedException;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.hateoas.mvc.BasicLinkBuilder;
+import org.springframework.web.context.request.RequestAttributes;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import au.com.mountainpass.hyperstate.core.entities.CreatedEntity;
@@ -27,19 +33,105 @@ public class JavaAddress implements Address {
         this.path = entity.getId();
     }
 
+    public JavaAddress(EntityRepository repository, String path) {
+        this.repository = repository;
+        this.path = path;
+    }
+
     @Override
     @JsonProperty("href")
     public URI getHref() {
         if (path == null) {
             return null;
         }
-        BasicLinkBuilder linkToCurrentMapping = BasicLinkBuilder
-                .linkToCurrentMapping();
-        URI uri = linkToCurrentMapping.toUri();
+        final BaseUri base = BaseUri.current();
         if ("/".equals(path)) {
-            return URI.create(uri.toString() + "/");
+            return base.root;
+        } else if (base.isPrefixFor(path)) {
+            return URI.create(base.origin + path);
         } else {
-            return uri.resolve(path);
+            return base.uri.resolve(path);
+        }
+    }
+
+    /**
+     * The same as {@link #getHref()}{@code .toString()}, but for the usual
+     * absolute paths the href is built without parsing it.
+     */
+    @JsonIgnore
+    public String getHrefString() {
+        if (path == null) {
+            return null;
+        }
+        final BaseUri base = BaseUri.current();
+        return base.isPrefixFor(path) && !"/".equals(path) ? base.origin + path
+                : getHref().toString();
+    }
+
+    /**
+     * @return the URI of the servlet mapping handling the current request,
+     *         which hrefs are resolved against
+     * @throws IllegalStateException
+     *             if there is no current request
+     */
+    public static URI getBaseUri() {
+        return BaseUri.current().uri;
+    }
+
+    /**
+     * The base URI of a request, worked out once and kept in the request's
+     * attributes, rather than once for each href in a response.
+     */
+    private static final class BaseUri {
+
+        private static final String ATTRIBUTE = BaseUri.class.getName();
+
+        private final URI uri;
+
+        private final URI root;
+
+        /**
+         * The scheme and authority of {@link #uri}, which absolute paths are
+         * appended to, or null if it doesn't have an authority.
+         */
+        private final String origin;
+
+        private BaseUri(final URI uri) {
+            this.uri = uri;
+            this.root = URI.create(uri.toString() + "/");
+            this.origin = uri.getRawAuthority() == null ? null
+                    : uri.getScheme() + "://" + uri.getRawAuthority();
+        }
+
+        static BaseUri current() {
+            final RequestAttributes attributes = RequestContextHolder
+                    .getRequestAttributes();
+            if (!(attributes instanceof ServletRequestAttributes)) {
+                // fails as it always has when there is no request
+                return new BaseUri(
+                        BasicLinkBuilder.linkToCurrentMapping().toUri());
+            }
+            // kept on the request itself, as responses are often written
+            // after the request attributes have been marked as completed
+            final HttpServletRequest request = ((ServletRequestAttributes) attributes)
+                    .getRequest();
+            BaseUri base = (BaseUri) request.getAttribute(ATTRIBUTE);
+            if (base == null) {
+                base = new BaseUri(
+                        BasicLinkBuilder.linkToCurrentMapping().toUri());
+                request.setAttribute(ATTRIBUTE, base);
+            }
+            return base;
+        }
+
+        /**
+         * @return true if resolving {@code path} against {@link #uri} is the
+         *         same as appending it to {@link #origin}, which is so for
+         *         absolute paths that don't need normalizing
+         */
+        boolean isPrefixFor(final String path) {
+            return origin != null && path.startsWith("/")
+                    && !path.startsWith("//") && !path.contains("/.");
         }
     }
 
@@ -0,0 +1,70 @@
+package au.com.mountainpass.hyperstate.core;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import au.com.mountainpass.hyperstate.core.entities.EntityState;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * Encodes entities as JSON. The properties of the entities must be
+ * serializable by the codec's {@link ObjectMapper}.
+ */
+public class JsonEntityCodec implements EntityCodec {
+
+    private final ObjectReader reader;
+
+    private final ObjectWriter writer;
+
+    /**
+     * Uses an {@link ObjectMapper} with every module on the classpath
+     * registered.
+     */
+    public JsonEntityCodec() {
+        this(new ObjectMapper().findAndRegisterModules());
+    }
+
+    public JsonEntityCodec(final ObjectMapper objectMapper) {
+        this.reader = objectMapper.readerFor(EntityState.class);
+        this.writer = objectMapper.writerFor(EntityState.class);
+    }
+
+    @Override
+    public byte[] encode(final EntityWrapper<?> entity) {
+        try {
+            return writer.writeValueAsBytes(entity.toState());
+        } catch (final JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public EntityWrapper<?> decode(final EntityRepository repository,
+            final ByteBuffer bytes) {
+        final EntityState state;
+        try {
+            if (bytes.hasArray()) {
+                state = reader.readValue(bytes.array(),
+                        bytes.arrayOffset() + bytes.position(),
+                        bytes.remaining());
+                bytes.position(bytes.limit());
+            } else {
+                state = reader
+                        .readValue(new ByteBufferBackedInputStream(bytes));
+            }
+        } catch (final JsonProcessingException e) {
+            throw new IllegalArgumentException(e);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return EntityWrapper.restore(repository, state);
+    }
+
+}
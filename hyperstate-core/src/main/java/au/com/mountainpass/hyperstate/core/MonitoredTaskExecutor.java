@@ -0,0 +1,98 @@
+package au.com.mountainpass.hyperstate.core;
+
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * A bounded {@link ThreadPoolTaskExecutor} that keeps count of the tasks it
+ * rejects, so that each stage of request processing can be sized and
+ * monitored on its own.
+ *
+ * When the queue is full, tasks run on the submitting thread by default,
+ * which pushes back on whoever is producing the work.
+ */
+@SuppressWarnings("serial")
+public class MonitoredTaskExecutor extends ThreadPoolTaskExecutor {
+
+    public static final String REPOSITORY_EXECUTOR = "hyperstateRepositoryExecutor";
+
+    public static final String ACTION_EXECUTOR = "hyperstateActionExecutor";
+
+    public static final String SERIALIZATION_EXECUTOR = "hyperstateSerializationExecutor";
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private String name;
+
+    public MonitoredTaskExecutor(final String name, final int corePoolSize,
+            final int maxPoolSize, final int queueCapacity) {
+        this.name = name;
+        setThreadNamePrefix(name + "-");
+        setCorePoolSize(corePoolSize);
+        setMaxPoolSize(maxPoolSize);
+        setQueueCapacity(queueCapacity);
+        setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public void setBeanName(final String name) {
+        super.setBeanName(name);
+        this.name = name;
+    }
+
+    @Override
+    public void setRejectedExecutionHandler(
+            final RejectedExecutionHandler rejectedExecutionHandler) {
+        super.setRejectedExecutionHandler((task, executor) -> {
+            rejectedCount.incrementAndGet();
+            rejectedExecutionHandler.rejectedExecution(task, executor);
+        });
+    }
+
+    /**
+     * @return true once the underlying thread pool has been created
+     */
+    public boolean isInitialized() {
+        try {
+            getThreadPoolExecutor();
+            return true;
+        } catch (final IllegalStateException e) {
+            return false;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of tasks waiting to be run
+     */
+    public int getQueueDepth() {
+        return getThreadPoolExecutor().getQueue().size();
+    }
+
+    /**
+     * @return the number of tasks that can be queued before tasks are
+     *         rejected
+     */
+    public int getQueueRemainingCapacity() {
+        return getThreadPoolExecutor().getQueue().remainingCapacity();
+    }
+
+    /**
+     * @return the number of tasks that have been rejected because both the
+     *         pool and the queue were full
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getCompletedTaskCount() {
+        return getThreadPoolExecutor().getCompletedTaskCount();
+    }
+
+}
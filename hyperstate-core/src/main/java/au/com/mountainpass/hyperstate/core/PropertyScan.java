@@ -0,0 +1,84 @@
+package au.com.mountainpass.hyperstate.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * Finds the entities with a value of an indexed property by paging through
+ * every entity in a repository with
+ * {@link EntityRepository#findRange(String, String, String, int)}, for
+ * repositories that don't maintain indexes.
+ */
+final class PropertyScan {
+
+    static final int PAGE_SIZE = 256;
+
+    private final EntityRepository repository;
+
+    private final String property;
+
+    private final Object value;
+
+    private final List<EntityWrapper<?>> found = new ArrayList<>();
+
+    private PropertyScan(final EntityRepository repository,
+            final String property, final Object value) {
+        this.repository = repository;
+        this.property = property;
+        this.value = value;
+    }
+
+    static CompletableFuture<List<EntityWrapper<?>>> findByProperty(
+            final EntityRepository repository, final String property,
+            final Object value) {
+        final PropertyScan scan = new PropertyScan(repository, property,
+                value);
+        return scan.after(null);
+    }
+
+    /**
+     * Pages that are already found are checked in a loop rather than in
+     * nested callbacks, so a synchronous repository doesn't take a stack
+     * frame for each page.
+     */
+    private CompletableFuture<List<EntityWrapper<?>>> after(
+            final String start) {
+        String after = start;
+        CompletableFuture<List<EntityWrapper<?>>> page = next(after);
+        while (page.isDone() && !page.isCompletedExceptionally()) {
+            after = check(page.join());
+            if (after == null) {
+                return CompletableFuture.completedFuture(found);
+            }
+            page = next(after);
+        }
+        return page.thenCompose(entities -> {
+            final String last = check(entities);
+            return last == null ? CompletableFuture.completedFuture(found)
+                    : after(last);
+        });
+    }
+
+    private CompletableFuture<List<EntityWrapper<?>>> next(
+            final String after) {
+        return repository.findRange("", after, null, PAGE_SIZE);
+    }
+
+    /**
+     * @return the path of the last entity of the page, or null if it was
+     *         the last page
+     */
+    private String check(final List<EntityWrapper<?>> page) {
+        for (final EntityWrapper<?> entity : page) {
+            if (IndexedProperty.hasValue(entity, property, value)) {
+                found.add(entity);
+            }
+        }
+        return page.size() < PAGE_SIZE ? null
+                : page.get(page.size() - 1).getId();
+    }
+
+}
@@ -0,0 +1,143 @@
+package au.com.mountainpass.hyperstate.core.entities;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+
+/**
+ * What a repository needs to store to be able to
+ * {@link EntityWrapper#restore(au.com.mountainpass.hyperstate.core.EntityRepository, EntityState)
+ * restore} an entity: its type, path, properties, title and classes, the
+ * paths of its links and sub-entities, and its version.
+ *
+ * The entity's self link and actions aren't stored, as they are recreated
+ * from its type and path.
+ */
+public class EntityState {
+
+    /**
+     * A link, or a sub-entity, of a stored entity.
+     */
+    public static class Reference {
+        private final String[] rels;
+        private final String path;
+        private final String title;
+        private final Set<String> classes;
+
+        @JsonCreator
+        public Reference(@JsonProperty("rel") final String[] rels,
+                @JsonProperty("path") final String path,
+                @JsonProperty("title") final String title,
+                @JsonProperty("class") final Set<String> classes) {
+            this.rels = rels;
+            this.path = path;
+            this.title = title;
+            this.classes = classes == null ? Collections.emptySet()
+                    : classes;
+        }
+
+        @JsonProperty("rel")
+        public String[] getRels() {
+            return rels;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        @JsonProperty("class")
+        public Set<String> getClasses() {
+            return classes;
+        }
+    }
+
+    private final String type;
+    private final String path;
+    private final Object properties;
+    private final String title;
+    private final Set<String> classes;
+    private final List<Reference> links;
+    private final List<Reference> entities;
+    private final long version;
+    private final long lastModified;
+
+    @JsonCreator
+    public EntityState(@JsonProperty("type") final String type,
+            @JsonProperty("path") final String path,
+            @JsonProperty("properties") @JsonTypeInfo(use = JsonTypeInfo.Id.CLASS, include = JsonTypeInfo.As.WRAPPER_ARRAY)
+            final Object properties,
+            @JsonProperty("title") final String title,
+            @JsonProperty("class") final Set<String> classes,
+            @JsonProperty("links") final List<Reference> links,
+            @JsonProperty("entities") final List<Reference> entities,
+            @JsonProperty("version") final long version,
+            @JsonProperty("lastModified") final long lastModified) {
+        this.type = type;
+        this.path = path;
+        this.properties = properties;
+        this.title = title;
+        this.classes = classes == null ? Collections.emptySet() : classes;
+        this.links = links == null ? Collections.emptyList() : links;
+        this.entities = entities == null ? Collections.emptyList()
+                : entities;
+        this.version = version;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return the name of the entity's class
+     */
+    public String getType() {
+        return type;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Stored along with the name of its class, as entities don't declare
+     * the type of their properties anywhere we could find it at runtime.
+     */
+    @JsonTypeInfo(use = JsonTypeInfo.Id.CLASS, include = JsonTypeInfo.As.WRAPPER_ARRAY)
+    public Object getProperties() {
+        return properties;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    @JsonProperty("class")
+    public Set<String> getClasses() {
+        return classes;
+    }
+
+    /**
+     * @return the entity's links, other than its self link
+     */
+    public List<Reference> getLinks() {
+        return links;
+    }
+
+    public List<Reference> getEntities() {
+        return entities;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+}
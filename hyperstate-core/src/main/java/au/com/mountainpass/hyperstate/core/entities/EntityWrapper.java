@@ -1,19 +1,27 @@
 package au.com.mountainpass.hyperstate.core.entities;
 
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.http.HttpMethod;
+import org.springframework.objenesis.Objenesis;
+import org.springframework.objenesis.SpringObjenesis;
+import org.springframework.util.ClassUtils;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
@@ -24,24 +32,34 @@ import com.google.common.collect.ImmutableSet;
 
 import au.com.mountainpass.hyperstate.core.Action;
 import au.com.mountainpass.hyperstate.core.Address;
+import au.com.mountainpass.hyperstate.core.ConditionalEntityRepository;
 import au.com.mountainpass.hyperstate.core.EntityRelationship;
 import au.com.mountainpass.hyperstate.core.EntityRepository;
 import au.com.mountainpass.hyperstate.core.JavaAction;
+import au.com.mountainpass.hyperstate.core.JavaActionDescriptor;
 import au.com.mountainpass.hyperstate.core.JavaAddress;
 import au.com.mountainpass.hyperstate.core.Link;
 import au.com.mountainpass.hyperstate.core.NavigationalRelationship;
-import au.com.mountainpass.hyperstate.core.Parameter;
 import au.com.mountainpass.hyperstate.core.Relationship;
 
 @JsonPropertyOrder({ "class", "properties", "entities", "actions", "links",
         "title" })
 @JsonInclude(JsonInclude.Include.NON_DEFAULT)
 public class EntityWrapper<T> extends Entity {
-    private static final int PAGE_SIZE = 10;
+    /**
+     * The number of sub-entities on each page of an entity's representation.
+     */
+    public static final int PAGE_SIZE = 10;
+
+    /**
+     * The request parameter carrying a page's cursor.
+     */
+    public static final String CURSOR_PARAMETER = "cursor";
 
     private Map<String, Action<?>> actions = new HashMap<>();
 
-    private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(EntityWrapper.class);
 
     @JsonProperty("links")
     private Set<NavigationalRelationship> navigationalRelationships = new HashSet<>();
@@ -52,7 +70,28 @@ public class EntityWrapper<T> extends Entity {
 
     private EntityRepository repository;
 
-    private Set<EntityRelationship> entityRelationships = new HashSet<>();
+    /**
+     * Sorted by the path of the related entity, so that a page of them can be
+     * found without looking at the others.
+     */
+    private ConcurrentNavigableMap<String, EntityRelationship> entityRelationships = new ConcurrentSkipListMap<>();
+
+    /**
+     * True once any of the sub-entities is embedded.
+     */
+    private volatile boolean embedsEntities;
+
+    /**
+     * Versions are drawn from a single sequence, so an entity replaced by
+     * another at the same path never has the same version as it.
+     */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private static final Objenesis OBJENESIS = new SpringObjenesis();
+
+    private volatile long version = VERSIONS.incrementAndGet();
+
+    private volatile long lastModified = System.currentTimeMillis();
 
     protected EntityWrapper(final EntityRepository repository,
             final String path, final T properties, final String title,
@@ -61,36 +100,17 @@ public class EntityWrapper<T> extends Entity {
         this.repository = repository;
         this.properties = properties;
         this.path = path;
-        add(new NavigationalRelationship(
-                new Link(new JavaAddress(repository, this), title),
+        addSelfAndActions();
+    }
+
+    private void addSelfAndActions() {
+        final JavaAddress address = new JavaAddress(repository, this);
+        add(new NavigationalRelationship(new Link(address, getTitle()),
                 Relationship.SELF));
-        final Method[] methods = this.getClass().getMethods();
-        for (final Method method : methods) {
-            final HttpMethod httpMethod = JavaAction
-                    .determineMethodNature(method);
-            boolean formTypes = Parameter.hasFormTypes(method);
-            if (formTypes && httpMethod != null) {
-                switch (httpMethod) {
-                case DELETE:
-                    actions.put(method.getName(), new JavaAction<DeletedEntity>(
-                            repository, this, method));
-                    break;
-                case POST:
-                    actions.put(method.getName(), new JavaAction<CreatedEntity>(
-                            repository, this, method));
-                    break;
-                case PUT:
-                    actions.put(method.getName(), new JavaAction<UpdatedEntity>(
-                            repository, this, method));
-                    break;
-                case GET:
-                    actions.put(method.getName(),
-                            new JavaAction<EntityWrapper<?>>(repository, this,
-                                    method));
-                    break;
-                default:
-                }
-            }
+        for (final JavaActionDescriptor descriptor : JavaActionDescriptor
+                .forClass(this.getClass())) {
+            actions.put(descriptor.getName(),
+                    new JavaAction<>(address, this, descriptor));
         }
     }
 
@@ -98,6 +118,29 @@ public class EntityWrapper<T> extends Entity {
         this.properties = properties;
     }
 
+    /**
+     * A view of {@code entity} with only the given sub-entities, and with
+     * some extra links.
+     */
+    private EntityWrapper(final EntityWrapper<T> entity,
+            final List<EntityRelationship> entities,
+            final List<NavigationalRelationship> links) {
+        super(entity.getTitle());
+        setClasses(entity.getClasses());
+        this.repository = entity.repository;
+        this.properties = entity.properties;
+        this.path = entity.path;
+        this.actions = entity.actions;
+        this.navigationalRelationships.addAll(entity.navigationalRelationships);
+        this.navigationalRelationships.addAll(links);
+        for (final EntityRelationship relationship : entities) {
+            this.entityRelationships.put(key(relationship), relationship);
+            this.embedsEntities |= relationship.isEmbedded();
+        }
+        this.version = entity.version;
+        this.lastModified = entity.lastModified;
+    }
+
     public void add(final NavigationalRelationship navigationalRelationship) {
         navigationalRelationships.add(navigationalRelationship);
     }
@@ -111,25 +154,337 @@ public class EntityWrapper<T> extends Entity {
         return ImmutableSet.copyOf(actions.values());
     }
 
+    /**
+     * @return a read only view of the actions, which unlike
+     *         {@link #getActions()} does not copy them
+     */
+    @JsonIgnore
+    public Collection<Action<?>> getActionsView() {
+        return Collections.unmodifiableCollection(actions.values());
+    }
+
     @JsonProperty("entities")
     public ImmutableSet<EntityRelationship> getEntities() {
-        return ImmutableSet.copyOf(entityRelationships);
+        return ImmutableSet.copyOf(entityRelationships.values());
+    }
+
+    /**
+     * @return a read only view of the entities, which unlike
+     *         {@link #getEntities()} does not copy them
+     */
+    @JsonIgnore
+    public Collection<EntityRelationship> getEntitiesView() {
+        return Collections.unmodifiableCollection(entityRelationships.values());
+    }
+
+    /**
+     * Returns a page of this entity's sub-entities, for when it's sent to a
+     * client. A page holds up to {@link #PAGE_SIZE} sub-entities, in the
+     * order of their paths, and has {@link Relationship#FIRST first},
+     * {@link Relationship#NEXT next} and {@link Relationship#PREV prev} links
+     * carrying the cursors of the neighbouring pages.
+     *
+     * The sub-entities on a page are found with
+     * {@link EntityRepository#findRange(String, String, String, int)} over
+     * the paths under this entity's path, so only a page of them is read.
+     * If the repository doesn't support range queries, the sub-entities on
+     * the page are found among the ones this entity relates to instead.
+     * Sub-entities stored anywhere else are all put on the first page.
+     *
+     * The {@link EntityRelationship#isEmbedded() embedded} sub-entities on
+     * the page are resolved along with it, and the relationships to them
+     * carry them, so that the page can be written without waiting on the
+     * repository.
+     *
+     * @param cursor
+     *            the cursor of the page, from one of those links, or
+     *            {@literal null} for the first page
+     * @return this entity, if it's the first page, all of the sub-entities
+     *         fit on it and none are embedded, otherwise a view of this
+     *         entity with only the sub-entities on the page
+     * @throws IllegalArgumentException
+     *             if {@code cursor} is not a valid cursor
+     */
+    public CompletableFuture<EntityWrapper<T>> page(final String cursor) {
+        final PageCursor decoded = cursor == null ? null
+                : PageCursor.decode(cursor);
+        if (decoded == null && entityRelationships.size() <= PAGE_SIZE) {
+            if (!embedsEntities) {
+                return CompletableFuture.completedFuture(this);
+            }
+            return view(entityRelationships.values(), new HashMap<>(),
+                    Collections.emptyList());
+        }
+        final String prefix = path + "/";
+        final boolean after = decoded == null || decoded.isAfter();
+        final List<EntityWrapper<?>> found = new ArrayList<>(PAGE_SIZE + 1);
+        return findRelated(prefix, decoded == null ? null : decoded.getKey(),
+                after, found).thenCompose(done -> {
+                    final boolean more = found.size() > PAGE_SIZE;
+                    final List<EntityWrapper<?>> onPage = !more ? found
+                            : after ? found.subList(0, PAGE_SIZE)
+                                    : found.subList(1, found.size());
+                    final List<EntityRelationship> page = new ArrayList<>();
+                    final ConcurrentNavigableMap<String, EntityRelationship> under = entityRelationships
+                            .subMap(prefix, prefix + Character.MAX_VALUE);
+                    if (decoded == null) {
+                        for (final Map.Entry<String, EntityRelationship> other : entityRelationships
+                                .entrySet()) {
+                            if (!under.containsKey(other.getKey())) {
+                                page.add(other.getValue());
+                            }
+                        }
+                    }
+                    final Map<String, EntityWrapper<?>> resolved = new HashMap<>();
+                    for (final EntityWrapper<?> entity : onPage) {
+                        page.addAll(relatedTo(entity.getId()).values());
+                        resolved.put(entity.getId(), entity);
+                    }
+                    final List<NavigationalRelationship> links = new ArrayList<>(
+                            3);
+                    links.add(pageLink(null, Relationship.FIRST));
+                    if (!onPage.isEmpty()) {
+                        final String first = onPage.get(0).getId();
+                        final String last = onPage.get(onPage.size() - 1)
+                                .getId();
+                        final boolean hasPrev = after
+                                ? decoded != null
+                                        && !under.headMap(first).isEmpty()
+                                : more;
+                        final boolean hasNext = after ? more
+                                : !under.tailMap(last + '\u0001').isEmpty();
+                        if (hasPrev) {
+                            links.add(pageLink(PageCursor.before(first),
+                                    Relationship.PREV));
+                        }
+                        if (hasNext) {
+                            links.add(pageLink(PageCursor.after(last),
+                                    Relationship.NEXT));
+                        }
+                    }
+                    return view(page, resolved, links);
+                });
+    }
+
+    /**
+     * @param found
+     *            the sub-entities already read, by path. Any embedded
+     *            sub-entities that aren't are looked up in one batch.
+     * @return a view of this entity with only {@code relationships}, the
+     *         embedded ones carrying their sub-entities, and with the extra
+     *         {@code links}
+     */
+    private CompletableFuture<EntityWrapper<T>> view(
+            final Collection<EntityRelationship> relationships,
+            final Map<String, EntityWrapper<?>> found,
+            final List<NavigationalRelationship> links) {
+        final Set<String> missing = new LinkedHashSet<>();
+        for (final EntityRelationship relationship : relationships) {
+            final String id = relationship.getEntity().getId();
+            if (relationship.isEmbedded() && id != null
+                    && !found.containsKey(id)) {
+                missing.add(id);
+            }
+        }
+        final CompletableFuture<Void> resolved = missing.isEmpty()
+                ? CompletableFuture.completedFuture(null)
+                : repository.findAll(missing).thenAccept(entities -> {
+                    for (final EntityWrapper<?> entity : entities) {
+                        if (entity != null) {
+                            found.put(entity.getId(), entity);
+                        }
+                    }
+                });
+        return resolved.thenApply(done -> {
+            final List<EntityRelationship> viewed = new ArrayList<>(
+                    relationships.size());
+            for (final EntityRelationship relationship : relationships) {
+                viewed.add(!relationship.isEmbedded() ? relationship
+                        : relationship.embedding(
+                                found.get(relationship.getEntity().getId())));
+            }
+            return new EntityWrapper<>(this, viewed, links);
+        });
+    }
+
+    /**
+     * Adds the entities under {@code prefix} that this entity relates to,
+     * in the order of their paths, to {@code found}, until it has one more
+     * than {@link #PAGE_SIZE} or there are no more. Entities it doesn't
+     * relate to are skipped, which may take more than one range query.
+     *
+     * @param from
+     *            the path the entities are after, or before, or null to
+     *            start at the first
+     * @param after
+     *            true for the entities after {@code from}, false for those
+     *            before it
+     */
+    private CompletableFuture<Void> findRelated(final String prefix,
+            final String from, final boolean after,
+            final List<EntityWrapper<?>> found) {
+        final int wanted = PAGE_SIZE + 1 - found.size();
+        return findRange(prefix, after ? from : null, after ? null : from,
+                wanted).thenCompose(range -> {
+                    final List<EntityWrapper<?>> related = new ArrayList<>(
+                            range.size());
+                    for (final EntityWrapper<?> entity : range) {
+                        if (!relatedTo(entity.getId()).isEmpty()) {
+                            related.add(entity);
+                        }
+                    }
+                    if (after) {
+                        found.addAll(related);
+                    } else {
+                        found.addAll(0, related);
+                    }
+                    if (range.size() < wanted
+                            || found.size() > PAGE_SIZE) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return findRelated(prefix,
+                            range.get(after ? range.size() - 1 : 0).getId(),
+                            after, found);
+                });
+    }
+
+    /**
+     * Finds a range of entities with
+     * {@link EntityRepository#findRange(String, String, String, int)}, or,
+     * if the repository doesn't support range queries, by looking up the
+     * ones in the range that this entity relates to.
+     */
+    private CompletableFuture<List<EntityWrapper<?>>> findRange(
+            final String prefix, final String after, final String before,
+            final int limit) {
+        return repository.findRange(prefix, after, before, limit)
+                .handle((range, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(range);
+                    }
+                    final Throwable cause = e instanceof CompletionException
+                            && e.getCause() != null ? e.getCause() : e;
+                    if (!(cause instanceof UnsupportedOperationException)) {
+                        throw e instanceof CompletionException
+                                ? (CompletionException) e
+                                : new CompletionException(e);
+                    }
+                    return findRelatedRange(prefix, after, before, limit);
+                }).thenCompose(range -> range);
+    }
+
+    private CompletableFuture<List<EntityWrapper<?>>> findRelatedRange(
+            final String prefix, final String after, final String before,
+            final int limit) {
+        // the relationships are sorted by the paths of their entities
+        final ConcurrentNavigableMap<String, EntityRelationship> range = entityRelationships
+                .subMap(after == null ? prefix : after + '\u0001',
+                        before == null ? prefix + Character.MAX_VALUE
+                                : before);
+        final List<String> ids = new ArrayList<>(limit);
+        for (final EntityRelationship relationship : after == null
+                && before != null ? range.descendingMap().values()
+                        : range.values()) {
+            final String id = relationship.getEntity().getId();
+            // relationships to the same entity are next to each other
+            if (!ids.isEmpty() && id.equals(ids.get(ids.size() - 1))) {
+                continue;
+            }
+            if (ids.size() == limit) {
+                break;
+            }
+            ids.add(id);
+        }
+        if (after == null && before != null) {
+            Collections.reverse(ids);
+        }
+        return repository.findAll(ids).thenApply(entities -> {
+            final List<EntityWrapper<?>> found = new ArrayList<>(
+                    entities.size());
+            for (final EntityWrapper<?> entity : entities) {
+                if (entity != null) {
+                    found.add(entity);
+                }
+            }
+            return found;
+        });
+    }
+
+    /**
+     * @return a read only view of the relationships to the sub-entity at
+     *         {@code path}, of which there's one for each set of rels
+     */
+    public Collection<EntityRelationship> relationshipsTo(final String path) {
+        return Collections.unmodifiableCollection(relatedTo(path).values());
+    }
+
+    /**
+     * @return true if any of the sub-entities are
+     *         {@link EntityRelationship#isEmbedded() embedded}, so that
+     *         their properties are part of this entity's representation
+     */
+    public boolean hasEmbeddedEntities() {
+        return embedsEntities;
+    }
+
+    /**
+     * @return a view of this entity without any of its sub-entities
+     */
+    public EntityWrapper<T> withoutEntities() {
+        return new EntityWrapper<>(this, Collections.emptyList(),
+                Collections.emptyList());
+    }
+
+    /**
+     * @return the relationships to the entity at {@code id}. Relationships
+     *         to the same entity are next to each other, as they are sorted
+     *         by its path first.
+     */
+    private ConcurrentNavigableMap<String, EntityRelationship> relatedTo(
+            final String id) {
+        return entityRelationships.subMap(id + '\u0000', id + '\u0001');
+    }
+
+    private NavigationalRelationship pageLink(final String cursor,
+            final String rel) {
+        final String href = cursor == null ? path
+                : path + "?" + CURSOR_PARAMETER + "=" + cursor;
+        return new NavigationalRelationship(
+                new Link(new JavaAddress(repository, href), getTitle()), rel);
+    }
+
+    /**
+     * @return the key {@code relationship} is sorted by. Relationships to the
+     *         same entity are told apart by their rels.
+     */
+    private static String key(final EntityRelationship relationship) {
+        final String id = relationship.getEntity().getId();
+        return (id == null ? "" : id) + '\u0000'
+                + String.join(",", relationship.getRelationships());
     }
 
     public Link getLink(final String rel) {
-        final Optional<NavigationalRelationship> link = getLinks().stream()
-                .filter(l -> l.hasRelationship(rel)).findAny();
-        if (link.isPresent()) {
-            return link.get().getLink();
-        } else {
-            return null;
+        for (final NavigationalRelationship link : navigationalRelationships) {
+            if (link.hasRelationship(rel)) {
+                return link.getLink();
+            }
         }
+        return null;
     }
 
     public ImmutableSet<NavigationalRelationship> getLinks() {
         return ImmutableSet.copyOf(navigationalRelationships);
     }
 
+    /**
+     * @return a read only view of the links, which unlike {@link #getLinks()}
+     *         does not copy them
+     */
+    @JsonIgnore
+    public Set<NavigationalRelationship> getLinksView() {
+        return Collections.unmodifiableSet(navigationalRelationships);
+    }
+
     public T getProperties() {
         return properties;
     }
@@ -163,15 +518,42 @@ public class EntityWrapper<T> extends Entity {
 
     public void setEntities(final EntityRelationship[] entities) {
         for (final EntityRelationship entity : entities) {
-            this.entityRelationships.add(entity);
+            relate(entity);
         }
 
     }
 
     public CompletableFuture<EntityWrapper<T>> addEntity(
             final EntityRelationship entityRelationship) {
-        this.entityRelationships.add(entityRelationship);
-        return repository.save(this);
+        relate(entityRelationship);
+        return getRepository().save(this);
+    }
+
+    private void relate(final EntityRelationship relationship) {
+        EntityRelationship related = relationship;
+        for (final String rel : relationship.getRelationships()) {
+            if (embeds(rel)) {
+                related = relationship.embedded();
+                break;
+            }
+        }
+        entityRelationships.put(key(related), related);
+        embedsEntities |= related.isEmbedded();
+    }
+
+    /**
+     * Sub-entities are only linked to, and are resolved through the
+     * repository when they are needed. Entities can override this to have
+     * the properties of the sub-entities with some rels written along with
+     * the links to them, so clients needn't follow those links.
+     *
+     * The version of this entity doesn't change when an embedded sub-entity
+     * is saved, but the tags of the representations that embed it do.
+     *
+     * @return true if sub-entities with {@code rel} are embedded
+     */
+    protected boolean embeds(final String rel) {
+        return false;
     }
 
     @Override
@@ -187,6 +569,127 @@ public class EntityWrapper<T> extends Entity {
         return new JavaAddress(repository, this);
     }
 
+    /**
+     * @return a number that changes every time the entity is saved
+     */
+    @JsonIgnore
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return when the entity was created or last saved, in milliseconds
+     *         since the epoch
+     */
+    @JsonIgnore
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Gives the entity a new version. Repositories call this when the entity
+     * is saved.
+     */
+    public void touch() {
+        lastModified = System.currentTimeMillis();
+        version = VERSIONS.incrementAndGet();
+    }
+
+    /**
+     * @return what a repository needs to store to be able to
+     *         {@link #restore(EntityRepository, EntityState) restore} this
+     *         entity
+     */
+    public EntityState toState() {
+        final List<EntityState.Reference> links = new ArrayList<>(
+                navigationalRelationships.size());
+        for (final NavigationalRelationship link : navigationalRelationships) {
+            if (!link.hasRelationship(Relationship.SELF)) {
+                links.add(reference(link.getLink(), link));
+            }
+        }
+        final List<EntityState.Reference> entities = new ArrayList<>(
+                entityRelationships.size());
+        for (final EntityRelationship entity : entityRelationships.values()) {
+            final LinkedEntity linked = entity.getEntityLink();
+            entities.add(new EntityState.Reference(entity.getRelationships(),
+                    linked.getId(), linked.getTitle(), linked.getClasses()));
+        }
+        return new EntityState(getClass().getName(), path, properties,
+                getTitle(), getClasses(), links, entities, version,
+                lastModified);
+    }
+
+    private static EntityState.Reference reference(final Link link,
+            final NavigationalRelationship relationship) {
+        return new EntityState.Reference(relationship.getRelationships(),
+                link.getPath(), link.getTitle(), link.getClasses());
+    }
+
+    /**
+     * Rebuilds a stored entity. The entity is created without calling any
+     * of its constructors, so anything it needs must be in its properties.
+     * Its links and sub-entities point at {@code repository}, and its
+     * sub-entities are {@link LinkedEntity linked} rather than embedded.
+     *
+     * @param repository
+     *            the repository the entity was stored in
+     * @param state
+     *            what was stored
+     * @return the entity
+     * @throws IllegalArgumentException
+     *             if the entity's class can't be found
+     */
+    public static EntityWrapper<?> restore(final EntityRepository repository,
+            final EntityState state) {
+        final Class<?> type;
+        try {
+            type = ClassUtils.forName(state.getType(), null);
+        } catch (final ClassNotFoundException | LinkageError e) {
+            throw new IllegalArgumentException(e);
+        }
+        if (!EntityWrapper.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException(
+                    state.getType() + " is not an entity");
+        }
+        @SuppressWarnings("unchecked")
+        final EntityWrapper<Object> entity = (EntityWrapper<Object>) OBJENESIS
+                .newInstance(type);
+        entity.setTitle(state.getTitle());
+        entity.setClasses(new HashSet<>(state.getClasses()));
+        entity.actions = new HashMap<>();
+        entity.navigationalRelationships = new HashSet<>();
+        entity.entityRelationships = new ConcurrentSkipListMap<>();
+        entity.repository = repository;
+        entity.path = state.getPath();
+        entity.properties = state.getProperties();
+        entity.addSelfAndActions();
+        for (final EntityState.Reference link : state.getLinks()) {
+            final Set<String> classes = link.getClasses();
+            entity.add(new NavigationalRelationship(
+                    new Link(new JavaAddress(repository, link.getPath()),
+                            link.getTitle(),
+                            classes.toArray(new String[classes.size()])),
+                    link.getRels()));
+        }
+        for (final EntityState.Reference child : state.getEntities()) {
+            // as EntityWrapper.toLinkedEntity() would link to it
+            final EntityRelationship relationship = new EntityRelationship(
+                    new LinkedEntity(
+                            new Link(new JavaAddress(repository,
+                                    child.getPath()), child.getTitle()),
+                            child.getTitle(),
+                            new HashSet<>(child.getClasses())),
+                    child.getRels());
+            entity.relate(relationship);
+        }
+        entity.version = state.getVersion();
+        entity.lastModified = state.getLastModified();
+        // so that saving the entity again gives it a newer version
+        VERSIONS.accumulateAndGet(state.getVersion(), Math::max);
+        return entity;
+    }
+
     @JsonIgnore
     public String getPath() {
         return path;
@@ -194,7 +697,10 @@ public class EntityWrapper<T> extends Entity {
 
     @JsonIgnore
     public EntityRepository getRepository() {
-        return this.repository;
+        // saves and deletes of a conditional action go through its view
+        final EntityRepository conditional = ConditionalEntityRepository
+                .applying(this);
+        return conditional == null ? this.repository : conditional;
     }
 
     @Override
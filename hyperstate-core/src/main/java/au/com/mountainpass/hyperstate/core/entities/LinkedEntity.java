@@ -7,11 +7,18 @@ import java.util.concurrent.ExecutionException;
 import org.apache.commons.lang3.NotImplementedException;
 import org.springframework.core.ParameterizedTypeReference;
 
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
 import com.fasterxml.jackson.annotation.JsonUnwrapped;
 
 import au.com.mountainpass.hyperstate.core.Address;
 import au.com.mountainpass.hyperstate.core.Link;
 
+/**
+ * The order of the properties is fixed, as otherwise it depends on the order
+ * the JVM lists the getters in, and the Siren serializer writes them in the
+ * same order.
+ */
+@JsonPropertyOrder({ "link", "address", "id", "title", "class" })
 public class LinkedEntity extends Entity {
     private final Link link;
 
@@ -0,0 +1,68 @@
+package au.com.mountainpass.hyperstate.core.entities;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * An opaque token identifying a page of an entity's sub-entities, as the
+ * sub-entities after, or before, a given one.
+ */
+final class PageCursor {
+
+    private static final char AFTER = 'a';
+
+    private static final char BEFORE = 'b';
+
+    /**
+     * @param token
+     *            a token from {@link #after(String)} or {@link #before(String)}
+     * @return the decoded cursor
+     * @throws IllegalArgumentException
+     *             if the token is not a valid cursor
+     */
+    static PageCursor decode(final String token) {
+        final String decoded = new String(
+                Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        if (decoded.isEmpty() || (decoded.charAt(0) != AFTER
+                && decoded.charAt(0) != BEFORE)) {
+            throw new IllegalArgumentException("Invalid cursor: " + token);
+        }
+        return new PageCursor(decoded.charAt(0) == AFTER,
+                decoded.substring(1));
+    }
+
+    static String after(final String key) {
+        return encode(AFTER, key);
+    }
+
+    static String before(final String key) {
+        return encode(BEFORE, key);
+    }
+
+    private static String encode(final char direction, final String key) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(
+                (direction + key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private final boolean after;
+
+    private final String key;
+
+    private PageCursor(final boolean after, final String key) {
+        this.after = after;
+        this.key = key;
+    }
+
+    /**
+     * @return true if the page is of the sub-entities after {@link #getKey()},
+     *         false if it is of those before it
+     */
+    boolean isAfter() {
+        return after;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+}
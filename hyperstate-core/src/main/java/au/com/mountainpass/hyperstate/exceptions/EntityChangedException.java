@@ -0,0 +1,15 @@
+package au.com.mountainpass.hyperstate.exceptions;
+
+/**
+ * Thrown when an entity is saved or deleted on condition that it hasn't
+ * changed, and it has.
+ */
+public class EntityChangedException extends RuntimeException {
+
+    private static final long serialVersionUID = 4620139271685406652L;
+
+    public EntityChangedException(final String path) {
+        super(path + " has changed");
+    }
+
+}
@@ -1,19 +1,99 @@
 package au.com.mountainpass.hyperstate.server;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Repository;
 
+import au.com.mountainpass.hyperstate.core.EntityChangedEvent;
 import au.com.mountainpass.hyperstate.core.EntityRepository;
+import au.com.mountainpass.hyperstate.core.IndexedProperty;
+import au.com.mountainpass.hyperstate.core.MonitoredTaskExecutor;
 import au.com.mountainpass.hyperstate.core.entities.DeletedEntity;
 import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
 
 @Repository()
-public class InMemoryEntityRepository implements EntityRepository {
+public class InMemoryEntityRepository implements EntityRepository, Closeable {
 
-    Map<String, EntityWrapper<?>> entities = new HashMap<>();
+    /**
+     * Reads are lock free and writes only lock the bin being written, so
+     * concurrent saves and lookups of different paths never contend.
+     */
+    final ConcurrentMap<String, EntityWrapper<?>> entities = new ConcurrentHashMap<>();
+
+    /**
+     * An entity's entries are updated while the bin holding the entity is
+     * locked, so concurrent writes to the same path can't leave stale
+     * entries behind.
+     */
+    final PropertyIndex indexes = new PropertyIndex();
+
+    /**
+     * The paths of the entities, in order, for range queries. Maintained
+     * along with the indexes.
+     */
+    final ConcurrentSkipListSet<String> paths = new ConcurrentSkipListSet<>();
+
+    /**
+     * When true, operations return already completed futures instead of
+     * handing the map access to another thread.
+     */
+    @Value("${au.com.mountainpass.hyperstate.repository.memory.synchronous:false}")
+    private boolean synchronous = false;
+
+    @Autowired(required = false)
+    @Qualifier(MonitoredTaskExecutor.REPOSITORY_EXECUTOR)
+    private Executor executor = ForkJoinPool.commonPool();
+
+    @Autowired(required = false)
+    private ApplicationEventPublisher publisher;
+
+    /**
+     * Where changes are logged, or null if they aren't.
+     */
+    private final WriteAheadLog log;
+
+    public InMemoryEntityRepository() {
+        this.log = null;
+    }
+
+    /**
+     * Restores the entities in {@code log}, and logs every change from then
+     * on. Changes only complete once they're logged. If a change can't be
+     * logged, every operation fails from then on, reads included, as the
+     * entities in memory may no longer match the log.
+     *
+     * @throws java.io.UncheckedIOException
+     *             if the log can't be read
+     */
+    public InMemoryEntityRepository(final WriteAheadLog log) {
+        log.open(this,
+                entity -> entities.compute(entity.getId(),
+                        (path, previous) -> reindex(path, entity)),
+                id -> entities.computeIfPresent(id,
+                        (path, previous) -> reindex(path, null)),
+                entities::values);
+        this.log = log;
+    }
 
     @Override
     public CompletableFuture<DeletedEntity> delete(
@@ -23,15 +103,23 @@ public class InMemoryEntityRepository implements EntityRepository {
 
     @Override
     public CompletableFuture<DeletedEntity> delete(final String id) {
-        return CompletableFuture.supplyAsync(() -> {
-            EntityWrapper<?> removed = entities.remove(id);
-            return new DeletedEntity(removed);
-        });
+        if (log == null) {
+            return complete(() -> {
+                EntityWrapper<?> removed = remove(id, null);
+                changed(id);
+                return new DeletedEntity(removed);
+            });
+        }
+        final Set<CompletableFuture<?>> logged = new HashSet<>();
+        final EntityWrapper<?> removed = remove(id, logged);
+        changed(id);
+        return afterLogged(logged, () -> removed == null ? new DeletedEntity()
+                : new DeletedEntity(removed));
     }
 
     @Override
     public CompletableFuture<Boolean> exists(final String id) {
-        return CompletableFuture.supplyAsync(() -> {
+        return complete(() -> {
             return entities.containsKey(id);
         });
     }
@@ -39,7 +127,7 @@ public class InMemoryEntityRepository implements EntityRepository {
     @Override
     public CompletableFuture<EntityWrapper<?>> findOne(
             final String identifier) {
-        return CompletableFuture.supplyAsync(() -> entities.get(identifier));
+        return complete(() -> entities.get(identifier));
     }
 
     @SuppressWarnings("unchecked")
@@ -52,15 +140,326 @@ public class InMemoryEntityRepository implements EntityRepository {
     @Override
     public <S extends EntityWrapper<?>> CompletableFuture<S> save(
             final S entity) {
-        entities.put(entity.getId(), entity);
-        return CompletableFuture.supplyAsync(() -> entity);
+        final Set<CompletableFuture<?>> logged = new HashSet<>();
+        put(entity, logged);
+        changed(entity.getId());
+        return afterLogged(logged, () -> entity);
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<Boolean> compareAndSave(
+            final EntityWrapper<?> expected, final S entity) {
+        final boolean[] saved = new boolean[1];
+        final Set<CompletableFuture<?>> logged = new HashSet<>();
+        // read before touching, in case expected is entity itself
+        final long expectedVersion = expected == null ? 0
+                : expected.getVersion();
+        beginChange();
+        try {
+            entities.compute(entity.getId(), (path, current) -> {
+                // the stored entity may also have been saved again in place
+                if (current != expected || current != null
+                        && current.getVersion() != expectedVersion) {
+                    return current;
+                }
+                saved[0] = true;
+                entity.touch();
+                if (log != null) {
+                    logged.add(log.put(log.encode(entity)));
+                }
+                return reindex(path, entity);
+            });
+        } finally {
+            endChange();
+        }
+        if (saved[0]) {
+            changed(entity.getId());
+        }
+        return afterLogged(logged, () -> saved[0]);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndDelete(
+            final EntityWrapper<?> expected) {
+        final boolean[] deleted = new boolean[1];
+        final Set<CompletableFuture<?>> logged = new HashSet<>();
+        final long expectedVersion = expected.getVersion();
+        beginChange();
+        try {
+            entities.computeIfPresent(expected.getId(), (path, current) -> {
+                if (current != expected
+                        || current.getVersion() != expectedVersion) {
+                    return current;
+                }
+                deleted[0] = true;
+                if (log != null) {
+                    logged.add(log.delete(path));
+                }
+                return reindex(path, null);
+            });
+        } finally {
+            endChange();
+        }
+        if (deleted[0]) {
+            changed(expected.getId());
+        }
+        return afterLogged(logged, () -> deleted[0]);
     }
 
     @Override
     public CompletableFuture<Void> deleteAll() {
-        return CompletableFuture.runAsync(() -> {
-            entities.clear();
+        if (log == null) {
+            return complete(() -> {
+                for (final String id : entities.keySet()) {
+                    remove(id, null);
+                }
+                changed(null);
+                return null;
+            });
+        }
+        final Set<CompletableFuture<?>> logged = new HashSet<>();
+        for (final String id : entities.keySet()) {
+            remove(id, logged);
+        }
+        changed(null);
+        return afterLogged(logged, () -> null);
+    }
+
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findAll(
+            final Collection<String> ids) {
+        return complete(() -> {
+            final List<EntityWrapper<?>> found = new ArrayList<>(ids.size());
+            for (final String id : ids) {
+                found.add(entities.get(id));
+            }
+            return found;
+        });
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<List<S>> saveAll(
+            final Collection<S> entities) {
+        final List<S> saved = new ArrayList<>(entities);
+        final Set<CompletableFuture<?>> logged = new HashSet<>();
+        for (final S entity : saved) {
+            put(entity, logged);
+            changed(entity.getId());
+        }
+        return afterLogged(logged, () -> saved);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll(final Collection<String> ids) {
+        if (log == null) {
+            return complete(() -> {
+                for (final String id : ids) {
+                    remove(id, null);
+                    changed(id);
+                }
+                return null;
+            });
+        }
+        final Set<CompletableFuture<?>> logged = new HashSet<>();
+        for (final String id : ids) {
+            remove(id, logged);
+            changed(id);
+        }
+        return afterLogged(logged, () -> null);
+    }
+
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findByProperty(
+            final String property, final Object value) {
+        return complete(() -> {
+            final List<EntityWrapper<?>> found = new ArrayList<>();
+            for (final String path : indexes.find(property, value)) {
+                final EntityWrapper<?> entity = entities.get(path);
+                // the index is updated before the entity is visible
+                if (entity != null && IndexedProperty.hasValue(entity,
+                        property, value)) {
+                    found.add(entity);
+                }
+            }
+            return found;
         });
     }
 
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findRange(
+            final String prefix, final String after, final String before,
+            final int limit) {
+        return complete(() -> {
+            final List<EntityWrapper<?>> found = new ArrayList<>(limit);
+            final boolean fromAfter = after != null
+                    && after.compareTo(prefix) >= 0;
+            final String from = fromAfter ? after : prefix;
+            String to = prefix + Character.MAX_VALUE;
+            if (before != null && before.compareTo(to) < 0) {
+                to = before;
+            }
+            if (from.compareTo(to) >= 0) {
+                return found;
+            }
+            final NavigableSet<String> range = paths.subSet(from, !fromAfter,
+                    to, false);
+            final boolean nearestBefore = after == null && before != null;
+            for (final String path : nearestBefore ? range.descendingSet()
+                    : range) {
+                if (found.size() == limit) {
+                    break;
+                }
+                final EntityWrapper<?> entity = entities.get(path);
+                if (entity != null && path.startsWith(prefix)) {
+                    found.add(entity);
+                }
+            }
+            if (nearestBefore) {
+                Collections.reverse(found);
+            }
+            return found;
+        });
+    }
+
+    /**
+     * @param logged
+     *            gets the future for the logging of the save, if there's a
+     *            log
+     */
+    private void put(final EntityWrapper<?> entity,
+            final Set<CompletableFuture<?>> logged) {
+        entity.touch();
+        final byte[] encoded = log == null ? null : log.encode(entity);
+        beginChange();
+        try {
+            entities.compute(entity.getId(), (path, previous) -> {
+                if (log != null) {
+                    // logged while the path is locked, so that changes to
+                    // it are logged in the order they're made
+                    logged.add(log.put(encoded));
+                }
+                return reindex(path, entity);
+            });
+        } finally {
+            endChange();
+        }
+    }
+
+    /**
+     * @param logged
+     *            gets the future for the logging of the delete, if there's a
+     *            log and there was an entity to delete
+     */
+    private EntityWrapper<?> remove(final String id,
+            final Set<CompletableFuture<?>> logged) {
+        final EntityWrapper<?>[] removed = new EntityWrapper<?>[1];
+        beginChange();
+        try {
+            entities.computeIfPresent(id, (path, previous) -> {
+                removed[0] = previous;
+                if (log != null) {
+                    logged.add(log.delete(path));
+                }
+                return reindex(path, null);
+            });
+        } finally {
+            endChange();
+        }
+        return removed[0];
+    }
+
+    private void beginChange() {
+        if (log != null) {
+            log.beginChange();
+        }
+    }
+
+    private void endChange() {
+        if (log != null) {
+            log.endChange();
+        }
+    }
+
+    /**
+     * Moves the index entries for {@code path} to the values of
+     * {@code current}, and adds or removes {@code path} from the ordered
+     * paths. Must only be called while the bin for {@code path} is locked.
+     *
+     * @return {@code current}
+     */
+    private EntityWrapper<?> reindex(final String path,
+            final EntityWrapper<?> current) {
+        indexes.update(path, current);
+        if (current == null) {
+            paths.remove(path);
+        } else {
+            paths.add(path);
+        }
+        return current;
+    }
+
+    private void changed(final String path) {
+        if (publisher != null) {
+            publisher.publishEvent(new EntityChangedEvent(this, path));
+        }
+    }
+
+    /**
+     * Changes are logged in batches, so there are only ever a few futures
+     * for the logging of even many changes.
+     */
+    private <T> CompletableFuture<T> afterLogged(
+            final Set<CompletableFuture<?>> logged,
+            final Supplier<T> supplier) {
+        if (logged.isEmpty()) {
+            return complete(supplier);
+        }
+        return CompletableFuture
+                .allOf(logged.toArray(new CompletableFuture<?>[logged.size()]))
+                .thenCompose(synced -> complete(supplier));
+    }
+
+    private <T> CompletableFuture<T> complete(final Supplier<T> supplier) {
+        final IOException failure = log == null ? null : log.getFailure();
+        if (failure != null) {
+            final CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new UncheckedIOException(failure));
+            return failed;
+        }
+        if (synchronous) {
+            return CompletableFuture.completedFuture(supplier.get());
+        }
+        return CompletableFuture.supplyAsync(supplier, executor);
+    }
+
+    public boolean isSynchronous() {
+        return synchronous;
+    }
+
+    public void setSynchronous(final boolean synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    public void setPublisher(final ApplicationEventPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+    /**
+     * Closes the write-ahead log, if there is one.
+     */
+    @Override
+    public void close() throws IOException {
+        if (log != null) {
+            log.close();
+        }
+    }
+
 }
@@ -0,0 +1,589 @@
+package au.com.mountainpass.hyperstate.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import au.com.mountainpass.hyperstate.core.BinaryEntityCodec;
+import au.com.mountainpass.hyperstate.core.EntityChangedEvent;
+import au.com.mountainpass.hyperstate.core.EntityCodec;
+import au.com.mountainpass.hyperstate.core.EntityRepository;
+import au.com.mountainpass.hyperstate.core.IndexedProperty;
+import au.com.mountainpass.hyperstate.core.MonitoredTaskExecutor;
+import au.com.mountainpass.hyperstate.core.entities.DeletedEntity;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * An {@link EntityRepository} that keeps entities encoded in direct buffers,
+ * outside of the heap, so that large repositories don't mean long garbage
+ * collections.
+ *
+ * Only the paths of the entities, the values of their indexed properties,
+ * and the most recently used entities, are kept on the heap. Any other entity is decoded when it's found, and then
+ * kept until it's pushed out of the hot set by others.
+ *
+ * Entities are appended to fixed size slabs. A slab is reused once none of
+ * the entities in it are current, which, as entities are mostly saved again
+ * in about the order they were first saved, keeps the space used to a small
+ * multiple of the space needed.
+ *
+ * Unlike {@link InMemoryEntityRepository}, finding an entity that has left
+ * the hot set gives a new instance, so
+ * {@link #compareAndSave(EntityWrapper, EntityWrapper)} compares versions
+ * rather than instances.
+ */
+public class OffHeapEntityRepository implements EntityRepository {
+
+    public static final int DEFAULT_SLAB_SIZE = 16 * 1024 * 1024;
+
+    public static final int DEFAULT_HOT_SET_SIZE = 10000;
+
+    /**
+     * The length and version of each entity precede it in its slab.
+     */
+    private static final int HEADER_SIZE = 4 + 8;
+
+    private static final class Slab {
+        private final int id;
+
+        private final ByteBuffer buffer;
+
+        private int end;
+
+        /**
+         * The number of current entities in the slab.
+         */
+        private int live;
+
+        private Slab(final int id, final int capacity) {
+            this.id = id;
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+        }
+
+        private boolean hasRoomFor(final int size) {
+            return buffer.capacity() - end >= size;
+        }
+    }
+
+    private final EntityCodec codec;
+
+    private final int slabSize;
+
+    /**
+     * Guards the locations and the slabs. Held for reading while entities
+     * are decoded, so that a slab can't be reused underneath them.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The location of each entity, by path, in order for range queries. A
+     * location is the id of its slab in the high int, and the offset into
+     * the slab in the low.
+     */
+    private final ConcurrentSkipListMap<String, Long> locations = new ConcurrentSkipListMap<>();
+
+    /**
+     * Only changed while the write lock is held.
+     */
+    private final PropertyIndex indexes = new PropertyIndex();
+
+    /**
+     * The slabs, by id. The ids of released slabs are reused.
+     */
+    private final List<Slab> slabs = new ArrayList<>();
+
+    private final Deque<Slab> emptySlabs = new ArrayDeque<>();
+
+    private final Deque<Integer> releasedIds = new ArrayDeque<>();
+
+    private Slab current;
+
+    /**
+     * The most recently used entities. Only changed while the lock is held,
+     * so that a lookup can't put back an entity that's just been replaced.
+     */
+    private final Cache<String, EntityWrapper<?>> hot;
+
+    /**
+     * When true, operations return already completed futures instead of
+     * handing the decoding to another thread.
+     */
+    @Value("${au.com.mountainpass.hyperstate.repository.offheap.synchronous:false}")
+    private boolean synchronous = false;
+
+    @Autowired(required = false)
+    @Qualifier(MonitoredTaskExecutor.REPOSITORY_EXECUTOR)
+    private Executor executor = ForkJoinPool.commonPool();
+
+    @Autowired(required = false)
+    private ApplicationEventPublisher publisher;
+
+    /**
+     * Encodes the entities in binary.
+     */
+    public OffHeapEntityRepository() {
+        this(new BinaryEntityCodec(), DEFAULT_SLAB_SIZE,
+                DEFAULT_HOT_SET_SIZE);
+    }
+
+    /**
+     * @param codec
+     *            how the entities are encoded
+     * @param slabSize
+     *            the size of each slab, in bytes. Entities bigger than this
+     *            get a slab of their own.
+     * @param hotSetSize
+     *            how many of the most recently used entities to keep on the
+     *            heap
+     */
+    public OffHeapEntityRepository(final EntityCodec codec,
+            final int slabSize, final int hotSetSize) {
+        this.codec = codec;
+        this.slabSize = slabSize;
+        this.hot = CacheBuilder.newBuilder().maximumSize(hotSetSize).build();
+        this.current = allocate(slabSize);
+    }
+
+    @Override
+    public CompletableFuture<DeletedEntity> delete(
+            final EntityWrapper<?> entity) {
+        return delete(entity.getId());
+    }
+
+    @Override
+    public CompletableFuture<DeletedEntity> delete(final String id) {
+        final EntityWrapper<?> removed = remove(id);
+        changed(id);
+        return complete(() -> removed == null ? new DeletedEntity()
+                : new DeletedEntity(removed));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> exists(final String id) {
+        return complete(() -> locations.containsKey(id));
+    }
+
+    @Override
+    public CompletableFuture<EntityWrapper<?>> findOne(
+            final String identifier) {
+        return complete(() -> find(identifier));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<S> findOne(
+            final String path, final Class<S> type) {
+        return (CompletableFuture<S>) findOne(path);
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<S> save(
+            final S entity) {
+        entity.touch();
+        final byte[] encoded = codec.encode(entity);
+        lock.writeLock().lock();
+        try {
+            put(entity, encoded);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        changed(entity.getId());
+        return complete(() -> entity);
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<Boolean> compareAndSave(
+            final EntityWrapper<?> expected, final S entity) {
+        boolean saved = false;
+        lock.writeLock().lock();
+        try {
+            final Long location = locations.get(entity.getId());
+            if (expected == null ? location == null
+                    : location != null
+                            && version(location) == expected.getVersion()) {
+                // touched once it's known to be saved, as expected may be
+                // entity itself, which may be the instance in the hot set
+                entity.touch();
+                put(entity, codec.encode(entity));
+                saved = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (saved) {
+            changed(entity.getId());
+        }
+        final boolean result = saved;
+        return complete(() -> result);
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndDelete(
+            final EntityWrapper<?> expected) {
+        final String id = expected.getId();
+        boolean deleted = false;
+        lock.writeLock().lock();
+        try {
+            final Long location = locations.get(id);
+            if (location != null
+                    && version(location) == expected.getVersion()) {
+                locations.remove(id);
+                indexes.update(id, null);
+                hot.invalidate(id);
+                release(location);
+                deleted = true;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (deleted) {
+            changed(id);
+        }
+        final boolean result = deleted;
+        return complete(() -> result);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll() {
+        lock.writeLock().lock();
+        try {
+            locations.clear();
+            indexes.clear();
+            hot.invalidateAll();
+            slabs.clear();
+            emptySlabs.clear();
+            releasedIds.clear();
+            current = allocate(slabSize);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        changed(null);
+        return complete(() -> null);
+    }
+
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findAll(
+            final Collection<String> ids) {
+        return complete(() -> {
+            final List<EntityWrapper<?>> found = new ArrayList<>(ids.size());
+            for (final String id : ids) {
+                found.add(find(id));
+            }
+            return found;
+        });
+    }
+
+    /**
+     * Saves the entities with a single lock of the slabs.
+     */
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<List<S>> saveAll(
+            final Collection<S> entities) {
+        final List<S> saved = new ArrayList<>(entities);
+        final List<byte[]> encoded = new ArrayList<>(saved.size());
+        for (final S entity : saved) {
+            entity.touch();
+            encoded.add(codec.encode(entity));
+        }
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < saved.size(); ++i) {
+                put(saved.get(i), encoded.get(i));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (final S entity : saved) {
+            changed(entity.getId());
+        }
+        return complete(() -> saved);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll(final Collection<String> ids) {
+        for (final String id : ids) {
+            remove(id);
+            changed(id);
+        }
+        return complete(() -> null);
+    }
+
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findByProperty(
+            final String property, final Object value) {
+        return complete(() -> {
+            final List<String> paths;
+            lock.readLock().lock();
+            try {
+                paths = new ArrayList<>(indexes.find(property, value));
+            } finally {
+                lock.readLock().unlock();
+            }
+            final List<EntityWrapper<?>> found = new ArrayList<>(
+                    paths.size());
+            for (final String path : paths) {
+                final EntityWrapper<?> entity = find(path);
+                // the path may have been saved again since, or a hot entity
+                // changed in place
+                if (entity != null && IndexedProperty.hasValue(entity,
+                        property, value)) {
+                    found.add(entity);
+                }
+            }
+            return found;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findRange(
+            final String prefix, final String after, final String before,
+            final int limit) {
+        return complete(() -> {
+            final List<EntityWrapper<?>> found = new ArrayList<>(limit);
+            final boolean fromAfter = after != null
+                    && after.compareTo(prefix) >= 0;
+            final String from = fromAfter ? after : prefix;
+            String to = prefix + Character.MAX_VALUE;
+            if (before != null && before.compareTo(to) < 0) {
+                to = before;
+            }
+            if (from.compareTo(to) >= 0) {
+                return found;
+            }
+            final NavigableMap<String, Long> range = locations.subMap(from,
+                    !fromAfter, to, false);
+            final boolean nearestBefore = after == null && before != null;
+            for (final String path : nearestBefore
+                    ? range.descendingKeySet() : range.keySet()) {
+                if (found.size() == limit) {
+                    break;
+                }
+                final EntityWrapper<?> entity = find(path);
+                if (entity != null && path.startsWith(prefix)) {
+                    found.add(entity);
+                }
+            }
+            if (nearestBefore) {
+                Collections.reverse(found);
+            }
+            return found;
+        });
+    }
+
+    /**
+     * @return the entity from the hot set, or else decoded from its slab
+     */
+    private EntityWrapper<?> find(final String id) {
+        lock.readLock().lock();
+        try {
+            final EntityWrapper<?> cached = hot.getIfPresent(id);
+            if (cached != null) {
+                return cached;
+            }
+            final Long location = locations.get(id);
+            if (location == null) {
+                return null;
+            }
+            final EntityWrapper<?> entity = codec.decode(this,
+                    encoded(location));
+            hot.put(id, entity);
+            return entity;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Appends the entity to the current slab, and makes it the current
+     * entity at its path. Must only be called while the write lock is held.
+     */
+    private void put(final EntityWrapper<?> entity, final byte[] encoded) {
+        final int size = HEADER_SIZE + encoded.length;
+        if (!current.hasRoomFor(size)) {
+            final Slab full = current;
+            current = allocate(size);
+            if (full.live == 0) {
+                free(full);
+            }
+        }
+        final ByteBuffer buffer = current.buffer.duplicate();
+        buffer.position(current.end);
+        buffer.putInt(encoded.length);
+        buffer.putLong(entity.getVersion());
+        buffer.put(encoded);
+        final long location = (long) current.id << 32 | current.end;
+        current.end += size;
+        ++current.live;
+        final Long previous = locations.put(entity.getId(), location);
+        if (previous != null) {
+            release(previous);
+        }
+        indexes.update(entity.getId(), entity);
+        hot.put(entity.getId(), entity);
+    }
+
+    /**
+     * @return the entity that was removed, or null if there wasn't one
+     */
+    private EntityWrapper<?> remove(final String id) {
+        lock.writeLock().lock();
+        try {
+            final Long location = locations.remove(id);
+            if (location == null) {
+                return null;
+            }
+            indexes.update(id, null);
+            EntityWrapper<?> removed = hot.getIfPresent(id);
+            if (removed == null) {
+                removed = codec.decode(this, encoded(location));
+            } else {
+                hot.invalidate(id);
+            }
+            release(location);
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Notes that the entity at {@code location} is no longer current, and
+     * frees its slab if it was the last in it. Must only be called while
+     * the write lock is held.
+     */
+    private void release(final long location) {
+        final Slab slab = slabs.get((int) (location >>> 32));
+        if (--slab.live == 0 && slab != current) {
+            free(slab);
+        }
+    }
+
+    private void free(final Slab slab) {
+        if (slab.buffer.capacity() == slabSize) {
+            slab.end = 0;
+            emptySlabs.push(slab);
+        } else {
+            // an oversized slab, for a single entity, isn't worth keeping
+            slabs.set(slab.id, null);
+            releasedIds.push(slab.id);
+        }
+    }
+
+    /**
+     * Must only be called while the write lock is held, or from the
+     * constructor.
+     *
+     * @return an empty slab with room for at least {@code size} bytes
+     */
+    private Slab allocate(final int size) {
+        if (size <= slabSize && !emptySlabs.isEmpty()) {
+            return emptySlabs.pop();
+        }
+        final int id = releasedIds.isEmpty() ? slabs.size()
+                : releasedIds.pop();
+        final Slab slab = new Slab(id, Math.max(slabSize, size));
+        if (id == slabs.size()) {
+            slabs.add(slab);
+        } else {
+            slabs.set(id, slab);
+        }
+        return slab;
+    }
+
+    private long version(final long location) {
+        final Slab slab = slabs.get((int) (location >>> 32));
+        return slab.buffer.getLong((int) location + 4);
+    }
+
+    /**
+     * @return a read only view of the encoded entity at {@code location}
+     */
+    private ByteBuffer encoded(final long location) {
+        final Slab slab = slabs.get((int) (location >>> 32));
+        final int offset = (int) location;
+        final ByteBuffer encoded = slab.buffer.asReadOnlyBuffer();
+        encoded.position(offset + HEADER_SIZE);
+        encoded.limit(offset + HEADER_SIZE + slab.buffer.getInt(offset));
+        return encoded.slice();
+    }
+
+    /**
+     * @return how many entities are on the heap, in the hot set
+     */
+    public long getHotSetSize() {
+        return hot.size();
+    }
+
+    /**
+     * @return the number of bytes allocated off the heap for entities,
+     *         whether they are in use or not
+     */
+    public long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            long allocated = 0;
+            for (final Slab slab : slabs) {
+                if (slab != null) {
+                    allocated += slab.buffer.capacity();
+                }
+            }
+            return allocated;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void changed(final String path) {
+        if (publisher != null) {
+            publisher.publishEvent(new EntityChangedEvent(this, path));
+        }
+    }
+
+    private <T> CompletableFuture<T> complete(final Supplier<T> supplier) {
+        if (synchronous) {
+            return CompletableFuture.completedFuture(supplier.get());
+        }
+        return CompletableFuture.supplyAsync(supplier, executor);
+    }
+
+    public boolean isSynchronous() {
+        return synchronous;
+    }
+
+    public void setSynchronous(final boolean synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    public void setPublisher(final ApplicationEventPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+}
@@ -0,0 +1,109 @@
+package au.com.mountainpass.hyperstate.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import au.com.mountainpass.hyperstate.core.IndexedProperty;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * The paths of the entities with each value of each
+ * {@link au.com.mountainpass.hyperstate.annotations.Indexed Indexed}
+ * property.
+ *
+ * The values indexed for each path are kept, and it's those that are
+ * removed when the path is indexed again, rather than the values of the
+ * entity it replaces. An entity that is changed in place and then saved is
+ * its own previous entity, so its previous values can't be read from it.
+ *
+ * Lookups can be made at any time, but a path must only be indexed by one
+ * thread at a time.
+ */
+final class PropertyIndex {
+
+    /**
+     * By property name and then value.
+     */
+    private final ConcurrentMap<String, ConcurrentMap<Object, Set<String>>> paths = new ConcurrentHashMap<>();
+
+    /**
+     * The values indexed for each path, by property name.
+     */
+    private final ConcurrentMap<String, Map<String, Object>> values = new ConcurrentHashMap<>();
+
+    /**
+     * Replaces the entries for {@code path} with those for the values of
+     * {@code entity}.
+     *
+     * @param entity
+     *            the entity now at {@code path}, or null to remove the
+     *            entries for {@code path}
+     */
+    void update(final String path, final EntityWrapper<?> entity) {
+        final Map<String, Object> previous = values.get(path);
+        if (previous != null) {
+            for (final Map.Entry<String, Object> value : previous
+                    .entrySet()) {
+                final ConcurrentMap<Object, Set<String>> byValue = paths
+                        .get(value.getKey());
+                if (byValue != null) {
+                    byValue.computeIfPresent(value.getValue(), (v, found) -> {
+                        found.remove(path);
+                        return found.isEmpty() ? null : found;
+                    });
+                }
+            }
+        }
+        final Map<String, Object> current = entity == null ? null
+                : valuesOf(entity);
+        if (current == null || current.isEmpty()) {
+            values.remove(path);
+            return;
+        }
+        for (final Map.Entry<String, Object> value : current.entrySet()) {
+            paths.computeIfAbsent(value.getKey(),
+                    name -> new ConcurrentHashMap<>())
+                    .compute(value.getValue(), (v, found) -> {
+                        final Set<String> added = found == null
+                                ? ConcurrentHashMap.newKeySet() : found;
+                        added.add(path);
+                        return added;
+                    });
+        }
+        values.put(path, current);
+    }
+
+    /**
+     * @return the paths indexed under {@code value} of {@code property}
+     */
+    Set<String> find(final String property, final Object value) {
+        final ConcurrentMap<Object, Set<String>> byValue = paths
+                .get(property);
+        final Set<String> found = byValue == null ? null
+                : byValue.get(value);
+        return found == null ? Collections.emptySet() : found;
+    }
+
+    void clear() {
+        paths.clear();
+        values.clear();
+    }
+
+    private static Map<String, Object> valuesOf(
+            final EntityWrapper<?> entity) {
+        final Map<String, Object> current = new HashMap<>();
+        for (final IndexedProperty property : IndexedProperty
+                .forEntity(entity)) {
+            final Object value = property.getValue(entity);
+            if (value != null) {
+                current.put(property.getName(), value);
+            }
+        }
+        return current;
+    }
+
+}
@@ -0,0 +1,587 @@
+package au.com.mountainpass.hyperstate.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import au.com.mountainpass.hyperstate.core.BinaryEntityCodec;
+import au.com.mountainpass.hyperstate.core.EntityCodec;
+import au.com.mountainpass.hyperstate.core.EntityRepository;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * Makes the changes to an {@link InMemoryEntityRepository} durable, by
+ * appending each save and delete to a log on disk, and periodically writing
+ * a snapshot of every entity, so that the log can be discarded up to it.
+ * When the repository is created, it's rebuilt from the latest snapshot and
+ * the log since.
+ *
+ * Changes are committed in groups. They're added to a batch in memory, and
+ * a single thread writes and syncs each batch in turn, while the next batch
+ * fills, so one sync covers every change made while the last was in
+ * progress. A change is only reported as made once its batch is synced.
+ *
+ * The log is kept in numbered segment files. Taking a snapshot starts a new
+ * segment, writes the snapshot with that segment's number, and then deletes
+ * the older segments and snapshots. Each record is laid out as
+ *
+ * <pre>
+ * int    the length of the body
+ * int    the CRC32 of the body
+ * body:
+ *   byte   PUT or DELETE
+ *   byte[] the encoded entity for PUTs, or the path, in UTF-8, for DELETEs
+ * </pre>
+ *
+ * so that a record that was only partly written when the process or machine
+ * crashed is discarded.
+ *
+ * If a batch can't be written, the log fails, and nothing more is written
+ * to it or snapshotted from it.
+ */
+public class WriteAheadLog implements Closeable {
+
+    public static final Duration DEFAULT_SNAPSHOT_INTERVAL = Duration
+            .ofMinutes(10);
+
+    private static final byte PUT = 1;
+
+    private static final byte DELETE = 2;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Records waiting to be written to a segment.
+     */
+    private static final class Batch {
+        private final long segment;
+        private final FileChannel channel;
+        private final CompletableFuture<Void> synced = new CompletableFuture<>();
+        private byte[] bytes = new byte[4096];
+        private int size;
+
+        private Batch(final long segment, final FileChannel channel) {
+            this.segment = segment;
+            this.channel = channel;
+        }
+
+        private void append(final byte kind, final byte[] body) {
+            final int length = 1 + body.length;
+            final int end = size + HEADER_SIZE + length;
+            if (end > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, end));
+            }
+            final ByteBuffer record = ByteBuffer.wrap(bytes, size,
+                    HEADER_SIZE + length);
+            final CRC32 crc = new CRC32();
+            crc.update(kind);
+            crc.update(body);
+            record.putInt(length);
+            record.putInt((int) crc.getValue());
+            record.put(kind);
+            record.put(body);
+            size = end;
+        }
+
+        private void writeTo(final FileChannel channel) throws IOException {
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, size);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+    private final Path directory;
+
+    private final EntityCodec codec;
+
+    private final Duration snapshotInterval;
+
+    /**
+     * Held for reading while a change is logged and made, and for writing
+     * while a new segment is started, so that every change logged in the
+     * old segments is in the repository before a snapshot is taken of it.
+     */
+    private final ReadWriteLock changes = new ReentrantReadWriteLock();
+
+    /**
+     * Guards the batches.
+     */
+    private final Object lock = new Object();
+
+    private final Deque<Batch> full = new ArrayDeque<>();
+
+    private Batch open;
+
+    private boolean closed;
+
+    /**
+     * Why the log couldn't be written, if it couldn't. Nothing more is
+     * written once it's set.
+     */
+    private volatile IOException failure;
+
+    private final AtomicLong syncs = new AtomicLong();
+
+    private Thread writer;
+
+    private ScheduledExecutorService snapshots;
+
+    private Supplier<Collection<EntityWrapper<?>>> entities;
+
+    /**
+     * Keeps the log in {@code directory}, with entities encoded in binary,
+     * and a snapshot taken every {@link #DEFAULT_SNAPSHOT_INTERVAL}.
+     */
+    public WriteAheadLog(final Path directory) {
+        this(directory, new BinaryEntityCodec(), DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * @param directory
+     *            where the segments and snapshots are kept
+     * @param codec
+     *            how the entities are encoded. Must be the same every time
+     *            the log is opened.
+     * @param snapshotInterval
+     *            how often to take a snapshot, or zero to only take them
+     *            when {@link #snapshot()} is called
+     */
+    public WriteAheadLog(final Path directory, final EntityCodec codec,
+            final Duration snapshotInterval) {
+        this.directory = directory;
+        this.codec = codec;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * Replays the latest snapshot and the log since, and then starts
+     * logging. Called by the repository as it's created.
+     *
+     * @param repository
+     *            the repository the entities are restored into
+     * @param put
+     *            saves a restored entity, without logging it
+     * @param delete
+     *            deletes an entity, without logging it
+     * @param entities
+     *            gives the repository's entities, for snapshots
+     * @throws UncheckedIOException
+     *             if the log can't be read
+     */
+    void open(final EntityRepository repository,
+            final Consumer<EntityWrapper<?>> put,
+            final Consumer<String> delete,
+            final Supplier<Collection<EntityWrapper<?>>> entities) {
+        this.entities = entities;
+        final long segment;
+        try {
+            segment = recover(repository, put, delete);
+            open = new Batch(segment, openSegment(segment));
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        writer = new Thread(this::write, "hyperstate-write-ahead-log");
+        writer.setDaemon(true);
+        writer.start();
+        if (!snapshotInterval.isZero()) {
+            snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+                final Thread thread = new Thread(task,
+                        "hyperstate-write-ahead-log-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleWithFixedDelay(() -> {
+                try {
+                    snapshot();
+                } catch (final IOException | RuntimeException e) {
+                    LOGGER.warn("could not take a snapshot", e);
+                }
+            }, snapshotInterval.toMillis(), snapshotInterval.toMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the number of the segment to start logging to
+     */
+    private long recover(final EntityRepository repository,
+            final Consumer<EntityWrapper<?>> put,
+            final Consumer<String> delete) throws IOException {
+        Files.createDirectories(directory);
+        final TreeMap<Long, Path> segments = new TreeMap<>();
+        final TreeMap<Long, Path> snapshots = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files
+                .newDirectoryStream(directory)) {
+            for (final Path file : stream) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(TEMPORARY_SUFFIX)) {
+                    // a snapshot that was being written
+                    Files.delete(file);
+                } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                    segments.put(number(name, SEGMENT_SUFFIX), file);
+                } else if (name.endsWith(SNAPSHOT_SUFFIX)) {
+                    snapshots.put(number(name, SNAPSHOT_SUFFIX), file);
+                }
+            }
+        }
+        long next = 1;
+        if (!snapshots.isEmpty()) {
+            next = snapshots.lastKey();
+            replay(snapshots.lastEntry().getValue(), repository, put,
+                    delete);
+        }
+        for (final Path segment : segments.tailMap(next).values()) {
+            replay(segment, repository, put, delete);
+        }
+        if (!segments.isEmpty()) {
+            next = Math.max(next, segments.lastKey() + 1);
+        }
+        return next;
+    }
+
+    private static long number(final String name, final String suffix) {
+        return Long.parseLong(
+                name.substring(0, name.length() - suffix.length()));
+    }
+
+    /**
+     * Replays the intact records in a file, and truncates anything after
+     * them, such as a record that was being written when the process
+     * crashed.
+     */
+    private void replay(final Path file, final EntityRepository repository,
+            final Consumer<EntityWrapper<?>> put,
+            final Consumer<String> delete) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0,
+                    channel.size());
+            int offset = 0;
+            while (offset + HEADER_SIZE <= buffer.capacity()) {
+                final int length = buffer.getInt(offset);
+                if (length < 1 || length > buffer.capacity() - offset
+                        - HEADER_SIZE) {
+                    break;
+                }
+                final ByteBuffer body = buffer.duplicate();
+                body.limit(offset + HEADER_SIZE + length);
+                body.position(offset + HEADER_SIZE);
+                final CRC32 crc = new CRC32();
+                crc.update(body.duplicate());
+                if (buffer.getInt(offset + 4) != (int) crc.getValue()) {
+                    break;
+                }
+                final byte kind = body.get();
+                if (kind == PUT) {
+                    put.accept(codec.decode(repository, body.slice()));
+                } else {
+                    final byte[] path = new byte[body.remaining()];
+                    body.get(path);
+                    delete.accept(new String(path, StandardCharsets.UTF_8));
+                }
+                offset += HEADER_SIZE + length;
+            }
+            if (offset < channel.size()) {
+                LOGGER.warn("discarding {} bytes of incomplete records in {}",
+                        channel.size() - offset, file);
+                channel.truncate(offset);
+            }
+        }
+    }
+
+    private FileChannel openSegment(final long segment) throws IOException {
+        return FileChannel.open(file(segment, SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private Path file(final long number, final String suffix) {
+        return directory.resolve(String.format("%016d", number) + suffix);
+    }
+
+    /**
+     * @return the encoded entity, to be {@link #put(byte[]) logged}
+     */
+    byte[] encode(final EntityWrapper<?> entity) {
+        return codec.encode(entity);
+    }
+
+    /**
+     * Must be called before a change is logged, and
+     * {@link #endChange()} after it's been made.
+     */
+    void beginChange() {
+        changes.readLock().lock();
+    }
+
+    void endChange() {
+        changes.readLock().unlock();
+    }
+
+    /**
+     * Logs a save. Must be called while the entity's path is locked, so
+     * that changes to a path are logged in the order they're made.
+     *
+     * @return a future that completes once the save is synced
+     */
+    CompletableFuture<Void> put(final byte[] encoded) {
+        return append(PUT, encoded);
+    }
+
+    /**
+     * Logs a delete, as for {@link #put(byte[])}.
+     */
+    CompletableFuture<Void> delete(final String path) {
+        return append(DELETE, path.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private CompletableFuture<Void> append(final byte kind,
+            final byte[] body) {
+        synchronized (lock) {
+            if (failure != null || closed) {
+                final CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(failure != null
+                        ? new UncheckedIOException(failure)
+                        : new IllegalStateException("the log is closed"));
+                return failed;
+            }
+            open.append(kind, body);
+            lock.notifyAll();
+            return open.synced;
+        }
+    }
+
+    /**
+     * Writes and syncs the batches, in order, until the log is closed.
+     */
+    private void write() {
+        while (true) {
+            final Batch batch;
+            synchronized (lock) {
+                while (full.isEmpty() && open.size == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        // nothing more will be written, so fail closed
+                        if (failure == null) {
+                            failure = new InterruptedIOException(
+                                    "the log writer was interrupted");
+                        }
+                        failPending();
+                        return;
+                    }
+                }
+                if (full.isEmpty() && open.size == 0) {
+                    return;
+                }
+                if (full.isEmpty()) {
+                    batch = open;
+                    open = new Batch(batch.segment, batch.channel);
+                } else {
+                    batch = full.poll();
+                }
+            }
+            if (failure != null) {
+                // a later batch mustn't be synced after a lost one
+                batch.synced.completeExceptionally(
+                        new UncheckedIOException(failure));
+                continue;
+            }
+            try {
+                batch.writeTo(batch.channel);
+                batch.channel.force(false);
+                syncs.incrementAndGet();
+                batch.synced.complete(null);
+            } catch (final IOException e) {
+                LOGGER.error("could not write to the log", e);
+                synchronized (lock) {
+                    failure = e;
+                }
+                batch.synced.completeExceptionally(new UncheckedIOException(e));
+            }
+        }
+    }
+
+    /**
+     * Fails every batch that hasn't been written. Must be called while
+     * holding the lock, once {@link #failure} is set.
+     */
+    private void failPending() {
+        final UncheckedIOException cause = new UncheckedIOException(failure);
+        for (final Batch batch : full) {
+            batch.synced.completeExceptionally(cause);
+        }
+        full.clear();
+        open.synced.completeExceptionally(cause);
+    }
+
+    /**
+     * Writes a snapshot of every entity, and deletes the log before it.
+     * Changes can be made while the snapshot is taken.
+     *
+     * @throws IOException
+     *             if the snapshot can't be written
+     */
+    public synchronized void snapshot() throws IOException {
+        final Batch last;
+        final long segment;
+        changes.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    throw new IllegalStateException("the log is closed");
+                }
+                if (failure != null) {
+                    // the repository may hold changes that weren't logged
+                    throw new IOException("the log can't be written",
+                            failure);
+                }
+                last = open;
+                segment = last.segment + 1;
+                full.add(last);
+                open = new Batch(segment, openSegment(segment));
+                lock.notifyAll();
+            }
+        } finally {
+            changes.writeLock().unlock();
+        }
+        // every change in the older segments is in the repository now, and
+        // once the last batch is synced, they're done with
+        last.synced.join();
+        last.channel.close();
+
+        final Path temporary = file(segment,
+                SNAPSHOT_SUFFIX + TEMPORARY_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            final Batch records = new Batch(segment, channel);
+            for (final EntityWrapper<?> entity : entities.get()) {
+                records.append(PUT, codec.encode(entity));
+                if (records.size > 1024 * 1024) {
+                    records.writeTo(channel);
+                    records.size = 0;
+                }
+            }
+            records.writeTo(channel);
+            channel.force(true);
+        }
+        Files.move(temporary, file(segment, SNAPSHOT_SUFFIX),
+                StandardCopyOption.ATOMIC_MOVE);
+        // the rename must be durable before the segments it replaces are
+        // deleted
+        syncDirectory();
+
+        try (DirectoryStream<Path> stream = Files
+                .newDirectoryStream(directory)) {
+            for (final Path file : stream) {
+                final String name = file.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX)
+                        && number(name, SEGMENT_SUFFIX) < segment
+                        || name.endsWith(SNAPSHOT_SUFFIX)
+                                && number(name, SNAPSHOT_SUFFIX) < segment) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory,
+                StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (final AccessDeniedException e) {
+            // directories can't be opened, or synced, on some platforms,
+            // such as Windows, where the rename is durable once it's made
+            LOGGER.debug("could not sync {}", directory, e);
+        }
+    }
+
+    /**
+     * @return why the log couldn't be written, or null if it's been written
+     *         so far
+     */
+    IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return how many times the log has been synced, which, with changes
+     *         made concurrently, is fewer than the number of changes
+     */
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Writes and syncs the changes logged so far, and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+        }
+        final Batch last;
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = open;
+            lock.notifyAll();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        last.channel.close();
+    }
+
+}
@@ -0,0 +1,647 @@
+package au.com.mountainpass.hyperstate.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+
+import au.com.mountainpass.hyperstate.core.EntityChangedEvent;
+import au.com.mountainpass.hyperstate.core.EntityCodec;
+import au.com.mountainpass.hyperstate.core.EntityRepository;
+import au.com.mountainpass.hyperstate.core.IndexedProperty;
+import au.com.mountainpass.hyperstate.core.JsonEntityCodec;
+import au.com.mountainpass.hyperstate.core.MonitoredTaskExecutor;
+import au.com.mountainpass.hyperstate.core.entities.DeletedEntity;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * An {@link EntityRepository} that keeps entities in memory mapped files in
+ * a directory, so that they survive restarts, and so that only the entities
+ * in use are on the heap.
+ *
+ * Every save and delete appends a record to the current segment file, and a
+ * new segment is started when it's full. An index held off the heap maps
+ * the paths of entities to their latest records. When the repository is
+ * opened, the index is rebuilt from the headers of the records, without
+ * decoding any entities, and any record that was torn by a crash is
+ * discarded.
+ *
+ * Entities are decoded each time they are found, so unlike
+ * {@code InMemoryEntityRepository}, finding the same path twice gives two
+ * instances, and {@link #compareAndSave(EntityWrapper, EntityWrapper)}
+ * compares versions rather than instances.
+ */
+public class MappedFileEntityRepository implements EntityRepository, Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".segment";
+
+    private static final long NOT_FOUND = 0;
+
+    private final Path directory;
+
+    private final EntityCodec codec;
+
+    private final int segmentSize;
+
+    /**
+     * Guards the index and the segments. Records are only ever appended, so
+     * once a record has been found it can be read without holding the
+     * lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<Integer, MappedSegment> segments = new HashMap<>();
+
+    private MappedSegment current;
+
+    private final OffHeapPathIndex index = new OffHeapPathIndex(0);
+
+    /**
+     * When true, writes are forced through to the disk before they
+     * complete, so that they survive the machine crashing as well as the
+     * process.
+     */
+    @Value("${au.com.mountainpass.hyperstate.repository.mmap.force:true}")
+    private boolean force = true;
+
+    /**
+     * When true, operations return already completed futures instead of
+     * handing the reads to another thread.
+     */
+    @Value("${au.com.mountainpass.hyperstate.repository.mmap.synchronous:false}")
+    private boolean synchronous = false;
+
+    @Autowired(required = false)
+    @Qualifier(MonitoredTaskExecutor.REPOSITORY_EXECUTOR)
+    private Executor executor = ForkJoinPool.commonPool();
+
+    @Autowired(required = false)
+    private ApplicationEventPublisher publisher;
+
+    /**
+     * Opens the repository in {@code directory}, creating it if need be,
+     * with entities encoded as JSON.
+     */
+    public MappedFileEntityRepository(final Path directory) {
+        this(directory, new JsonEntityCodec(), DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the repository in {@code directory}, creating it if need be.
+     *
+     * @param directory
+     *            where the segment files are kept
+     * @param codec
+     *            how the entities are encoded. Must be the same every time
+     *            the repository is opened.
+     * @param segmentSize
+     *            the size of each segment file, in bytes. Entities bigger
+     *            than this get a segment of their own.
+     * @throws UncheckedIOException
+     *             if the segment files can't be read
+     */
+    public MappedFileEntityRepository(final Path directory,
+            final EntityCodec codec, final int segmentSize) {
+        this.directory = directory;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        try {
+            open();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(directory);
+        final TreeMap<Integer, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+                "*" + SEGMENT_SUFFIX)) {
+            for (final Path file : stream) {
+                final String name = file.getFileName().toString();
+                try {
+                    files.put(Integer.valueOf(name.substring(0,
+                            name.length() - SEGMENT_SUFFIX.length())), file);
+                } catch (final NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        for (final Map.Entry<Integer, Path> file : files.entrySet()) {
+            final MappedSegment segment = MappedSegment.open(file.getKey(),
+                    file.getValue());
+            segments.put(segment.getId(), segment);
+            segment.recover(this::recovered);
+            current = segment;
+        }
+        if (current == null) {
+            current = createSegment(1, segmentSize);
+        }
+    }
+
+    private void recovered(final MappedSegment segment, final int offset,
+            final byte kind) {
+        final byte[] path = segment.path(offset);
+        if (kind == MappedSegment.PUT) {
+            index.put(MappedSegment.hash(path),
+                    location(segment.getId(), offset), isPath(path));
+        } else {
+            index.remove(MappedSegment.hash(path), isPath(path));
+        }
+    }
+
+    @Override
+    public CompletableFuture<DeletedEntity> delete(
+            final EntityWrapper<?> entity) {
+        return delete(entity.getId());
+    }
+
+    @Override
+    public CompletableFuture<DeletedEntity> delete(final String id) {
+        return write(() -> {
+            final ByteBuffer removed = remove(id);
+            changed(id);
+            return removed == null ? new DeletedEntity()
+                    : new DeletedEntity(codec.decode(this, removed));
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> exists(final String id) {
+        return complete(() -> {
+            final byte[] path = bytes(id);
+            lock.readLock().lock();
+            try {
+                return index.get(MappedSegment.hash(path),
+                        isPath(path)) != NOT_FOUND;
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<EntityWrapper<?>> findOne(
+            final String identifier) {
+        return complete(() -> find(identifier));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<S> findOne(
+            final String path, final Class<S> type) {
+        return (CompletableFuture<S>) findOne(path);
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<S> save(
+            final S entity) {
+        return write(() -> {
+            entity.touch();
+            final byte[] encoded = codec.encode(entity);
+            final MappedSegment written;
+            lock.writeLock().lock();
+            try {
+                written = put(entity, encoded);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            force(written);
+            changed(entity.getId());
+            return entity;
+        });
+    }
+
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<Boolean> compareAndSave(
+            final EntityWrapper<?> expected, final S entity) {
+        return write(() -> {
+            final byte[] path = bytes(entity.getId());
+            final MappedSegment written;
+            lock.writeLock().lock();
+            try {
+                final long location = index.get(MappedSegment.hash(path),
+                        isPath(path));
+                if (expected == null ? location != NOT_FOUND
+                        : location == NOT_FOUND || segment(location).version(
+                                offset(location)) != expected.getVersion()) {
+                    return false;
+                }
+                // touched once it's known to be saved, as expected may be
+                // entity itself
+                entity.touch();
+                written = put(entity, codec.encode(entity));
+            } finally {
+                lock.writeLock().unlock();
+            }
+            force(written);
+            changed(entity.getId());
+            return true;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Boolean> compareAndDelete(
+            final EntityWrapper<?> expected) {
+        return write(() -> {
+            final byte[] path = bytes(expected.getId());
+            final MappedSegment written;
+            lock.writeLock().lock();
+            try {
+                final long location = index.get(MappedSegment.hash(path),
+                        isPath(path));
+                if (location == NOT_FOUND || segment(location).version(
+                        offset(location)) != expected.getVersion()) {
+                    return false;
+                }
+                append(MappedSegment.DELETE, expected.getVersion(), path,
+                        null);
+                index.remove(MappedSegment.hash(path), isPath(path));
+                written = current;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            force(written);
+            changed(expected.getId());
+            return true;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll() {
+        return write(() -> {
+            lock.writeLock().lock();
+            try {
+                for (final MappedSegment segment : segments.values()) {
+                    segment.close();
+                    Files.delete(segment.getFile());
+                }
+                segments.clear();
+                index.clear();
+                current = createSegment(1, segmentSize);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            changed(null);
+            return null;
+        });
+    }
+
+    /**
+     * Saves the entities with a single lock of the index, and a single
+     * force.
+     */
+    @Override
+    public <S extends EntityWrapper<?>> CompletableFuture<List<S>> saveAll(
+            final Collection<S> entities) {
+        return write(() -> {
+            final List<S> saved = new ArrayList<>(entities);
+            final List<byte[]> encoded = new ArrayList<>(saved.size());
+            for (final S entity : saved) {
+                entity.touch();
+                encoded.add(codec.encode(entity));
+            }
+            MappedSegment written = null;
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < saved.size(); ++i) {
+                    final MappedSegment segment = put(saved.get(i),
+                            encoded.get(i));
+                    if (segment != written && written != null) {
+                        force(written);
+                    }
+                    written = segment;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (written != null) {
+                force(written);
+            }
+            for (final S entity : saved) {
+                changed(entity.getId());
+            }
+            return saved;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll(final Collection<String> ids) {
+        return write(() -> {
+            for (final String id : ids) {
+                remove(id);
+                changed(id);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * The index doesn't keep the paths in order, so the path of every
+     * record in it is read to find those in the range, though only the
+     * entities in the range are decoded, and only the nearest
+     * {@code limit} of them are held at a time.
+     */
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findRange(
+            final String prefix, final String after, final String before,
+            final int limit) {
+        return complete(() -> {
+            final List<EntityWrapper<?>> found = new ArrayList<>();
+            if (limit <= 0) {
+                return found;
+            }
+            final boolean nearestBefore = after == null && before != null;
+            final TreeMap<String, ByteBuffer> nearest = new TreeMap<>();
+            lock.readLock().lock();
+            try {
+                index.forEach(location -> {
+                    final MappedSegment segment = segment(location);
+                    final String path = new String(
+                            segment.path(offset(location)),
+                            StandardCharsets.UTF_8);
+                    if (!path.startsWith(prefix)
+                            || after != null && path.compareTo(after) <= 0
+                            || before != null
+                                    && path.compareTo(before) >= 0) {
+                        return;
+                    }
+                    if (nearest.size() == limit) {
+                        final String furthest = nearestBefore
+                                ? nearest.firstKey() : nearest.lastKey();
+                        if (nearestBefore ? path.compareTo(furthest) < 0
+                                : path.compareTo(furthest) > 0) {
+                            return;
+                        }
+                        nearest.remove(furthest);
+                    }
+                    nearest.put(path, segment.entity(offset(location)));
+                });
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (final ByteBuffer encoded : nearest.values()) {
+                found.add(codec.decode(this, encoded));
+            }
+            return found;
+        });
+    }
+
+    /**
+     * There's no index of the values of indexed properties, as that would
+     * mean decoding every entity when the repository is opened, so every
+     * entity is decoded and checked instead.
+     */
+    @Override
+    public CompletableFuture<List<EntityWrapper<?>>> findByProperty(
+            final String property, final Object value) {
+        return complete(() -> {
+            final List<ByteBuffer> records = new ArrayList<>();
+            lock.readLock().lock();
+            try {
+                index.forEach(location -> records
+                        .add(segment(location).entity(offset(location))));
+            } finally {
+                lock.readLock().unlock();
+            }
+            final List<EntityWrapper<?>> found = new ArrayList<>();
+            for (final ByteBuffer encoded : records) {
+                final EntityWrapper<?> entity = codec.decode(this, encoded);
+                if (IndexedProperty.hasValue(entity, property, value)) {
+                    found.add(entity);
+                }
+            }
+            return found;
+        });
+    }
+
+    /**
+     * Writes everything through to the disk and closes the segment files.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            current.force();
+            for (final MappedSegment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private EntityWrapper<?> find(final String id) {
+        final byte[] path = bytes(id);
+        final ByteBuffer encoded;
+        lock.readLock().lock();
+        try {
+            final long location = index.get(MappedSegment.hash(path),
+                    isPath(path));
+            if (location == NOT_FOUND) {
+                return null;
+            }
+            encoded = segment(location).entity(offset(location));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return codec.decode(this, encoded);
+    }
+
+    /**
+     * Appends a record for the entity and indexes it. Must only be called
+     * while the write lock is held.
+     *
+     * @return the segment the record was appended to
+     */
+    private MappedSegment put(final EntityWrapper<?> entity,
+            final byte[] encoded) {
+        final byte[] path = bytes(entity.getId());
+        final long location = append(MappedSegment.PUT, entity.getVersion(),
+                path, encoded);
+        index.put(MappedSegment.hash(path), location, isPath(path));
+        return current;
+    }
+
+    /**
+     * @return the encoded entity that was removed, or null if there wasn't
+     *         one
+     */
+    private ByteBuffer remove(final String id) {
+        final byte[] path = bytes(id);
+        final ByteBuffer removed;
+        final MappedSegment written;
+        lock.writeLock().lock();
+        try {
+            final long location = index.get(MappedSegment.hash(path),
+                    isPath(path));
+            if (location == NOT_FOUND) {
+                return null;
+            }
+            final MappedSegment segment = segment(location);
+            removed = segment.entity(offset(location));
+            // appended first, so that if it can't be, the entity is still
+            // found, as it will be when the repository is reopened
+            append(MappedSegment.DELETE, segment.version(offset(location)),
+                    path, null);
+            index.remove(MappedSegment.hash(path), isPath(path));
+            written = current;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        force(written);
+        return removed;
+    }
+
+    /**
+     * Must only be called while the write lock is held.
+     *
+     * @return the location of the record
+     */
+    private long append(final byte kind, final long version,
+            final byte[] path, final byte[] encoded) {
+        final int size = MappedSegment.recordSize(path, encoded);
+        if (!current.hasRoomFor(size)) {
+            // the full segment is sealed, so it's forced whatever the
+            // setting of force
+            current.force();
+            try {
+                current = createSegment(current.getId() + 1,
+                        Math.max(segmentSize, size));
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return location(current.getId(),
+                current.append(kind, version, path, encoded));
+    }
+
+    private MappedSegment createSegment(final int id, final int capacity)
+            throws IOException {
+        final MappedSegment segment = MappedSegment.create(id,
+                directory.resolve(String.format("%08d", id) + SEGMENT_SUFFIX),
+                capacity);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void force(final MappedSegment segment) {
+        if (force) {
+            segment.force();
+        }
+    }
+
+    private LongPredicate isPath(final byte[] path) {
+        return location -> segment(location).pathEquals(offset(location),
+                path);
+    }
+
+    private MappedSegment segment(final long location) {
+        return segments.get((int) (location >>> 32));
+    }
+
+    private static int offset(final long location) {
+        return (int) location;
+    }
+
+    /**
+     * Segment ids start at one, so a location is never
+     * {@link #NOT_FOUND}.
+     */
+    private static long location(final int segment, final int offset) {
+        return (long) segment << 32 | offset & 0xFFFFFFFFL;
+    }
+
+    private static byte[] bytes(final String path) {
+        return path.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void changed(final String path) {
+        if (publisher != null) {
+            publisher.publishEvent(new EntityChangedEvent(this, path));
+        }
+    }
+
+    /**
+     * Makes a write on the calling thread, so that, as with
+     * {@code InMemoryEntityRepository}, it can be found as soon as the
+     * returned future exists.
+     */
+    private <T> CompletableFuture<T> write(final Supplier<T> write) {
+        final T result;
+        try {
+            result = write.get();
+        } catch (final RuntimeException e) {
+            final CompletableFuture<T> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return CompletableFuture.completedFuture(result);
+    }
+
+    private <T> CompletableFuture<T> complete(final Supplier<T> supplier) {
+        if (synchronous) {
+            return CompletableFuture.completedFuture(supplier.get());
+        }
+        return CompletableFuture.supplyAsync(supplier, executor);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public boolean isForce() {
+        return force;
+    }
+
+    public void setForce(final boolean force) {
+        this.force = force;
+    }
+
+    public boolean isSynchronous() {
+        return synchronous;
+    }
+
+    public void setSynchronous(final boolean synchronous) {
+        this.synchronous = synchronous;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(final Executor executor) {
+        this.executor = executor;
+    }
+
+    public void setPublisher(final ApplicationEventPublisher publisher) {
+        this.publisher = publisher;
+    }
+
+}
@@ -0,0 +1,258 @@
+package au.com.mountainpass.hyperstate.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A memory mapped file of records, which are only ever appended.
+ *
+ * Each record is laid out as
+ *
+ * <pre>
+ * int    the length of the body
+ * int    the CRC32 of the body
+ * body:
+ *   byte   PUT or DELETE
+ *   long   the version of the entity
+ *   int    the length of the path
+ *   byte[] the path, in UTF-8
+ *   byte[] the encoded entity, for PUTs
+ * </pre>
+ *
+ * The file is zeroed when it is created, so a zero length marks the end of
+ * the records. The length is written last, so a record that was only
+ * partly written when the process or machine crashed either isn't seen at
+ * all, or fails its checksum.
+ *
+ * Appends must not be made concurrently, but reads can be made at any
+ * time.
+ */
+final class MappedSegment implements Closeable {
+
+    static final byte PUT = 1;
+
+    static final byte DELETE = 2;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int BODY_PREFIX_SIZE = 1 + 8 + 4;
+
+    /**
+     * Called for each intact record, in order, while a segment is recovered.
+     */
+    interface RecordVisitor {
+        void visit(MappedSegment segment, int offset, byte kind);
+    }
+
+    private final int id;
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    private int end;
+
+    private MappedSegment(final int id, final Path file,
+            final FileChannel channel, final MappedByteBuffer buffer) {
+        this.id = id;
+        this.file = file;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates a new, empty, segment file.
+     */
+    static MappedSegment create(final int id, final Path file,
+            final int capacity) throws IOException {
+        final FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new MappedSegment(id, file, channel,
+                channel.map(MapMode.READ_WRITE, 0, capacity));
+    }
+
+    /**
+     * Opens an existing segment file. Its records aren't appended to until
+     * it has been {@link #recover(RecordVisitor) recovered}.
+     */
+    static MappedSegment open(final int id, final Path file)
+            throws IOException {
+        final FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new MappedSegment(id, file, channel,
+                channel.map(MapMode.READ_WRITE, 0, channel.size()));
+    }
+
+    /**
+     * @return the size of a record with the given path and encoded entity
+     */
+    static int recordSize(final byte[] path, final byte[] entity) {
+        return HEADER_SIZE + BODY_PREFIX_SIZE + path.length
+                + (entity == null ? 0 : entity.length);
+    }
+
+    /**
+     * @return the hash of a path, in UTF-8
+     */
+    static int hash(final byte[] path) {
+        int hash = 1;
+        for (final byte b : path) {
+            hash = 31 * hash + b;
+        }
+        return hash;
+    }
+
+    /**
+     * Visits each of the intact records, and finds where the next record
+     * should be appended. Anything after the last intact record, such as a
+     * record that was being written when the process crashed, is zeroed.
+     */
+    void recover(final RecordVisitor visitor) {
+        int offset = 0;
+        int torn = 0;
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            final int length = buffer.getInt(offset);
+            final int available = buffer.capacity() - offset - HEADER_SIZE;
+            if (length < BODY_PREFIX_SIZE || length > available) {
+                torn = Math.max(0, Math.min(length, available));
+                break;
+            }
+            if (buffer.getInt(offset + 4) != checksum(offset + HEADER_SIZE,
+                    length)) {
+                torn = length;
+                break;
+            }
+            visitor.visit(this, offset, kind(offset));
+            offset += HEADER_SIZE + length;
+        }
+        end = offset;
+        int i = offset;
+        while (i < buffer.capacity() && (i < offset + HEADER_SIZE + torn
+                || buffer.get(i) != 0)) {
+            buffer.put(i++, (byte) 0);
+        }
+    }
+
+    /**
+     * @return true if a record of {@code size} bytes can be appended
+     */
+    boolean hasRoomFor(final int size) {
+        return buffer.capacity() - end >= size;
+    }
+
+    /**
+     * Appends a record, which must fit.
+     *
+     * @return the offset of the record
+     */
+    int append(final byte kind, final long version, final byte[] path,
+            final byte[] entity) {
+        final int offset = end;
+        final int size = recordSize(path, entity);
+        final int length = size - HEADER_SIZE;
+        final ByteBuffer record = buffer.duplicate();
+        record.position(offset + HEADER_SIZE);
+        record.put(kind);
+        record.putLong(version);
+        record.putInt(path.length);
+        record.put(path);
+        if (entity != null) {
+            record.put(entity);
+        }
+        buffer.putInt(offset + 4, checksum(offset + HEADER_SIZE, length));
+        // written last, so that the record is only seen once it's complete
+        buffer.putInt(offset, length);
+        end = offset + size;
+        return offset;
+    }
+
+    /**
+     * Writes appended records through to the disk.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    int getId() {
+        return id;
+    }
+
+    Path getFile() {
+        return file;
+    }
+
+    byte kind(final int offset) {
+        return buffer.get(offset + HEADER_SIZE);
+    }
+
+    long version(final int offset) {
+        return buffer.getLong(offset + HEADER_SIZE + 1);
+    }
+
+    boolean pathEquals(final int offset, final byte[] path) {
+        if (pathLength(offset) != path.length) {
+            return false;
+        }
+        final int start = offset + HEADER_SIZE + BODY_PREFIX_SIZE;
+        for (int i = 0; i < path.length; ++i) {
+            if (buffer.get(start + i) != path[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    byte[] path(final int offset) {
+        final byte[] path = new byte[pathLength(offset)];
+        final ByteBuffer record = buffer.duplicate();
+        record.position(offset + HEADER_SIZE + BODY_PREFIX_SIZE);
+        record.get(path);
+        return path;
+    }
+
+    /**
+     * @return a read only view of the encoded entity in a PUT record
+     */
+    ByteBuffer entity(final int offset) {
+        final int length = buffer.getInt(offset);
+        final ByteBuffer record = buffer.asReadOnlyBuffer();
+        record.limit(offset + HEADER_SIZE + length);
+        record.position(offset + HEADER_SIZE + BODY_PREFIX_SIZE
+                + pathLength(offset));
+        return record.slice();
+    }
+
+    private int pathLength(final int offset) {
+        return buffer.getInt(offset + HEADER_SIZE + 1 + 8);
+    }
+
+    private int checksum(final int start, final int length) {
+        final ByteBuffer body = buffer.duplicate();
+        body.limit(start + length);
+        body.position(start);
+        final CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Closes the file. The mapping stays valid until it's garbage
+     * collected, so records being read as the segment is closed can still
+     * be.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,170 @@
+package au.com.mountainpass.hyperstate.server;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/**
+ * A hash table from the paths of entities to the locations of their latest
+ * records, held in a direct buffer so that it adds next to nothing to the
+ * heap, however many entities there are.
+ *
+ * The paths themselves aren't held. Each slot holds only the hash of a path
+ * and a location, so finding a path means asking whether the record at each
+ * location with the path's hash is for that path. Locations must not be 0
+ * or -1.
+ *
+ * Not thread safe.
+ */
+final class OffHeapPathIndex {
+
+    private static final int SLOT_SIZE = 4 + 8;
+
+    private static final long EMPTY = 0;
+
+    private static final long REMOVED = -1;
+
+    private ByteBuffer slots;
+
+    private int capacity;
+
+    private int size;
+
+    /**
+     * The slots that aren't empty, including those that have been removed.
+     */
+    private int used;
+
+    OffHeapPathIndex(final int expectedSize) {
+        allocate(expectedSize);
+    }
+
+    /**
+     * @return the location for the path, or 0 if there isn't one
+     */
+    long get(final int hash, final LongPredicate isPath) {
+        final int slot = find(hash, isPath);
+        return slot < 0 ? EMPTY : location(slot);
+    }
+
+    /**
+     * @return the previous location for the path, or 0 if there wasn't one
+     */
+    long put(final int hash, final long location,
+            final LongPredicate isPath) {
+        final int slot = find(hash, isPath);
+        if (slot >= 0) {
+            final long previous = location(slot);
+            slots.putLong(slot * SLOT_SIZE + 4, location);
+            return previous;
+        }
+        if ((used + 1) * 4L > capacity * 3L) {
+            rehash(size + 1);
+        }
+        insert(hash, location);
+        ++size;
+        return EMPTY;
+    }
+
+    /**
+     * @return the location for the path, or 0 if there wasn't one
+     */
+    long remove(final int hash, final LongPredicate isPath) {
+        final int slot = find(hash, isPath);
+        if (slot < 0) {
+            return EMPTY;
+        }
+        final long previous = location(slot);
+        slots.putLong(slot * SLOT_SIZE + 4, REMOVED);
+        --size;
+        return previous;
+    }
+
+    /**
+     * Passes each location in the table to {@code action}, in no particular
+     * order.
+     */
+    void forEach(final LongConsumer action) {
+        for (int slot = 0; slot < capacity; ++slot) {
+            final long location = location(slot);
+            if (location != EMPTY && location != REMOVED) {
+                action.accept(location);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        allocate(0);
+    }
+
+    private int find(final int hash, final LongPredicate isPath) {
+        for (int slot = start(hash);; slot = (slot + 1) & (capacity - 1)) {
+            final long location = location(slot);
+            if (location == EMPTY) {
+                return -1;
+            }
+            if (location != REMOVED
+                    && slots.getInt(slot * SLOT_SIZE) == hash
+                    && isPath.test(location)) {
+                return slot;
+            }
+        }
+    }
+
+    private void insert(final int hash, final long location) {
+        int slot = start(hash);
+        long current;
+        while ((current = location(slot)) != EMPTY && current != REMOVED) {
+            slot = (slot + 1) & (capacity - 1);
+        }
+        if (current == EMPTY) {
+            ++used;
+        }
+        slots.putInt(slot * SLOT_SIZE, hash);
+        slots.putLong(slot * SLOT_SIZE + 4, location);
+    }
+
+    /**
+     * Moves the entries to a table with room for at least {@code entries},
+     * dropping the removed slots.
+     */
+    private void rehash(final int entries) {
+        final ByteBuffer old = slots;
+        final int oldCapacity = capacity;
+        allocate(entries);
+        for (int slot = 0; slot < oldCapacity; ++slot) {
+            final long location = old.getLong(slot * SLOT_SIZE + 4);
+            if (location != EMPTY && location != REMOVED) {
+                insert(old.getInt(slot * SLOT_SIZE), location);
+                ++size;
+            }
+        }
+    }
+
+    private void allocate(final int entries) {
+        capacity = 16;
+        while (capacity * 3L < entries * 8L) {
+            capacity <<= 1;
+        }
+        // direct buffers are zeroed, i.e. every slot is empty
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        size = 0;
+        used = 0;
+    }
+
+    private long location(final int slot) {
+        return slots.getLong(slot * SLOT_SIZE + 4);
+    }
+
+    private int start(final int hash) {
+        // the hashes of similar paths differ mostly in their low bits, so
+        // the slot is taken from the high bits of a multiplicative hash
+        return (hash * 0x9E3779B9) >>> (Integer.SIZE
+                - Integer.numberOfTrailingZeros(capacity));
+    }
+
+}
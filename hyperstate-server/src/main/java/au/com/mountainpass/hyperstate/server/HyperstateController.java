@@ -1,13 +1,31 @@
 package au.com.mountainpass.hyperstate.server;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import javax.annotation.PostConstruct;
 import javax.script.ScriptException;
@@ -17,14 +35,18 @@ import org.apache.commons.lang3.NotImplementedException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.i18n.LocaleContextHolder;
 import org.springframework.core.annotation.AnnotationUtils;
 import org.springframework.core.io.InputStreamResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -33,16 +55,28 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.context.request.RequestAttributes;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import au.com.mountainpass.hyperstate.core.Action;
+import au.com.mountainpass.hyperstate.core.ConditionalEntityRepository;
+import au.com.mountainpass.hyperstate.core.EntityRelationship;
 import au.com.mountainpass.hyperstate.core.EntityRepository;
+import au.com.mountainpass.hyperstate.core.JavaAddress;
 import au.com.mountainpass.hyperstate.core.Link;
 import au.com.mountainpass.hyperstate.core.MediaTypes;
+import au.com.mountainpass.hyperstate.core.MonitoredTaskExecutor;
 import au.com.mountainpass.hyperstate.core.Titled;
 import au.com.mountainpass.hyperstate.core.entities.Entity;
 import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+import au.com.mountainpass.hyperstate.exceptions.EntityChangedException;
+import au.com.mountainpass.hyperstate.server.serialization.RepresentationCache;
+import au.com.mountainpass.hyperstate.server.serialization.SirenModule;
 import au.com.mountainpass.hyperstate.server.serialization.mixins.LinkSerialisationMixin;
 import au.com.mountainpass.hyperstate.server.serialization.mixins.TitledSerialisationMixin;
 
@@ -50,6 +84,24 @@ import au.com.mountainpass.hyperstate.server.serialization.mixins.TitledSerialis
         MediaType.APPLICATION_JSON_VALUE })
 public abstract class HyperstateController {
 
+    /**
+     * The request parameter that asks for an entity to be streamed whole,
+     * rather than returned a page at a time.
+     */
+    public static final String STREAM_PARAMETER = "stream";
+
+    /**
+     * The number of sub-entities read from the repository at a time when an
+     * entity is streamed.
+     */
+    public static final int STREAM_PAGE_SIZE = 100;
+
+    /**
+     * The Siren fields written before "entities".
+     */
+    private static final Set<String> FIELDS_BEFORE_ENTITIES = new HashSet<>(
+            Arrays.asList("class", "properties"));
+
     private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
 
     @Autowired
@@ -58,6 +110,24 @@ public abstract class HyperstateController {
     @Autowired
     ObjectMapper objectMapper;
 
+    @Autowired(required = false)
+    @Qualifier(MonitoredTaskExecutor.ACTION_EXECUTOR)
+    private Executor actionExecutor = ForkJoinPool.commonPool();
+
+    @Autowired(required = false)
+    @Qualifier(MonitoredTaskExecutor.SERIALIZATION_EXECUTOR)
+    private Executor serializationExecutor = ForkJoinPool.commonPool();
+
+    /**
+     * Differs between runs, so that entity tags handed out before a restart
+     * never match the versions of entities created after it.
+     */
+    private static final String ETAG_PREFIX = Long
+            .toHexString(new SecureRandom().nextLong());
+
+    @Autowired(required = false)
+    private RepresentationCache representationCache;
+
     public HyperstateController() {
     }
 
@@ -65,6 +135,7 @@ public abstract class HyperstateController {
     public void postConstructed() {
         objectMapper.addMixIn(Link.class, LinkSerialisationMixin.class);
         objectMapper.addMixIn(Titled.class, TitledSerialisationMixin.class);
+        objectMapper.registerModule(new SirenModule());
         objectMapper.findAndRegisterModules();
         onConstructed();
     }
@@ -75,7 +146,7 @@ public abstract class HyperstateController {
             "application/vnd.siren+json",
             "application/json" }, consumes = MediaType.APPLICATION_FORM_URLENCODED_VALUE)
     @ResponseBody
-    @Async
+    @Async(MonitoredTaskExecutor.ACTION_EXECUTOR)
     public CompletableFuture<ResponseEntity<?>> delete(
             @RequestParam final MultiValueMap<String, Object> allRequestParams,
             final HttpServletRequest req)
@@ -93,19 +164,29 @@ public abstract class HyperstateController {
         String base = fullUrl.substring(0,
                 fullUrl.length() - uri.length() + ctx.length());
 
+        final String ifMatch = req.getHeader(HttpHeaders.IF_MATCH);
+
         // todo: we don't need to fetch the entity to delete it.
         return getEntity(url)
-                .thenApplyAsync(entity -> deleteEntityAndRespond(entity,
-                        allRequestParams, URI.create(base)));
+                .thenComposeAsync(entity -> deleteEntityAndRespond(entity,
+                        allRequestParams, URI.create(base), ifMatch),
+                        actionExecutor);
     }
 
-    private ResponseEntity<?> deleteEntityAndRespond(EntityWrapper<?> entity,
-            MultiValueMap<String, Object> allRequestParams, URI location) {
+    private CompletableFuture<ResponseEntity<?>> deleteEntityAndRespond(
+            EntityWrapper<?> entity,
+            MultiValueMap<String, Object> allRequestParams, URI location,
+            String ifMatch) {
+        final ResponseEntity<?> preconditionFailed = checkIfMatch(ifMatch,
+                entity);
+        if (preconditionFailed != null) {
+            return completed(preconditionFailed);
+        }
         if (entity == null) {
             // trying to delete something that potentially already deleted
             // let them know it's gone, rather than complaining that
             // we can't find the thing we want them to delete.
-            return ResponseEntity.noContent().build();
+            return completed(ResponseEntity.noContent().build());
         }
 
         Object actionName = allRequestParams.getFirst("action");
@@ -115,53 +196,542 @@ public abstract class HyperstateController {
         final Action<?> action = entity.getAction(actionName.toString());
         if (action == null) {
             // todo add body with classes indicating what is missing
-            return ResponseEntity.badRequest().build();
+            return completed(ResponseEntity.badRequest().build());
         }
+        final CompletableFuture<?> invocationResult;
         try {
-            final CompletableFuture<?> invocationResult = action
-                    .invoke(new HashMap<>());
-            invocationResult.join();
+            invocationResult = conditionally(ifMatch, entity,
+                    () -> action.invoke(new HashMap<>()));
         } catch (final Exception e) {
             LOGGER.error(e.getMessage(), e);
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
-                    .build();
+            return completed(ResponseEntity
+                    .status(HttpStatus.INTERNAL_SERVER_ERROR).build());
         }
-
-        return ResponseEntity.noContent().location(location).build();
-
+        return invocationResult.handle((result, e) -> {
+            if (isEntityChanged(e)) {
+                return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED)
+                        .build();
+            }
+            if (e != null) {
+                LOGGER.error(e.getMessage(), e);
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                        .build();
+            }
+            return ResponseEntity.noContent().location(location).build();
+        });
     }
 
     @RequestMapping(value = "**", method = RequestMethod.GET, produces = {
             MediaTypes.SIREN_JSON_VALUE, MediaType.APPLICATION_JSON_VALUE })
     @ResponseBody
-    @Async
     public CompletableFuture<ResponseEntity<?>> get(
             @RequestParam final Map<String, Object> allRequestParams,
             final HttpServletRequest request) {
-        CompletableFuture<EntityWrapper<?>> entityFuture = getEntity(
+        final CompletableFuture<EntityWrapper<?>> entityFuture = getEntity(
                 allRequestParams, request);
-        return entityFuture.thenApplyAsync(entity -> {
-            RequestContextHolder.setRequestAttributes(
-                    RequestContextHolder.getRequestAttributes());
-            if (entity == null) {
-                return ResponseEntity.notFound().build();
-            } else {
-                if (allRequestParams.containsKey("action")) {
-                    Action<?> action = entity.getAction(
-                            allRequestParams.get("action").toString());
-                    if (action != null) {
-                        return ResponseEntity
-                                .ok(action.invoke(allRequestParams).join());
-                    } else {
-                        throw new NotImplementedException("TODO");
-                    }
-                } else {
-                    return ResponseEntity.ok(entity);
+        if (allRequestParams.containsKey("action")) {
+            // actions may block, so never run them on the request thread
+            return entityFuture.thenComposeAsync(entity -> {
+                if (entity == null) {
+                    return completed(ResponseEntity.notFound().build());
                 }
+                Action<?> action = entity
+                        .getAction(allRequestParams.get("action").toString());
+                if (action == null) {
+                    throw new NotImplementedException("TODO");
+                }
+                return action.invoke(allRequestParams)
+                        .<ResponseEntity<?>> thenApply(ResponseEntity::ok);
+            }, actionExecutor);
+        }
+        final String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        final long ifModifiedSince = getDateHeader(request,
+                HttpHeaders.IF_MODIFIED_SINCE);
+        final Object cursorParameter = allRequestParams
+                .get(EntityWrapper.CURSOR_PARAMETER);
+        final String cursor = cursorParameter == null ? null
+                : cursorParameter.toString();
+        final CachedRepresentation cached = representationCache == null
+                ? null : new CachedRepresentation(request, cursor);
+        return thenCompose(entityFuture, entity -> represent(entity, cursor,
+                ifNoneMatch, ifModifiedSince, cached), serializationExecutor);
+    }
+
+    /**
+     * Answers a GET of {@code entity}, conditional on {@code ifNoneMatch}
+     * and {@code ifModifiedSince}.
+     *
+     * @param cached
+     *            the representation cache lookup and store to wrap the
+     *            rendering in, or null to render the body without the cache
+     */
+    private CompletableFuture<ResponseEntity<?>> represent(
+            final EntityWrapper<?> entity, final String cursor,
+            final String ifNoneMatch, final long ifModifiedSince,
+            final CachedRepresentation cached) {
+        if (entity == null) {
+            return completed(ResponseEntity.notFound().build());
+        }
+        // read before serializing, so the tag is never newer than the body
+        final long version = entity.getVersion();
+        final long lastModified = entity.getLastModified();
+        // the properties of embedded sub-entities are part of the
+        // representation, so they're resolved before it's tagged
+        final boolean embeds = entity.hasEmbeddedEntities();
+        final CompletableFuture<? extends EntityWrapper<?>> resolved = embeds
+                ? page(entity, cursor)
+                : CompletableFuture.completedFuture(entity);
+        if (resolved == null) {
+            return completed(ResponseEntity.badRequest().build());
+        }
+        return thenCompose(resolved, tagged -> {
+            final String eTag = eTag(version, tagged);
+            final long modified = lastModified(lastModified, tagged);
+            if (isNotModified(ifNoneMatch, ifModifiedSince, eTag, modified)) {
+                return completed(notModified(eTag, modified));
             }
+            if (cached != null) {
+                final ResponseEntity<?> hit = cached.get(entity, eTag,
+                        modified);
+                if (hit != null) {
+                    return completed(hit);
+                }
+            }
+            final CompletableFuture<? extends EntityWrapper<?>> page = embeds
+                    ? resolved : page(entity, cursor);
+            if (page == null) {
+                return completed(ResponseEntity.badRequest().build());
+            }
+            return thenApply(page,
+                    found -> cached != null
+                            ? cached.put(entity, version, eTag, modified,
+                                    found)
+                            : ResponseEntity.ok().eTag(eTag)
+                                    .lastModified(modified).body(found),
+                    serializationExecutor);
+        }, serializationExecutor);
+    }
+
+    /**
+     * Looks a GET's representation up in the {@link RepresentationCache},
+     * and serializes and stores it there if it isn't found.
+     */
+    private final class CachedRepresentation {
+
+        private final String path;
+
+        private final MediaType mediaType;
+
+        private final RepresentationCache.Variant variant;
+
+        private final RequestAttributes requestAttributes;
+
+        private CachedRepresentation(final HttpServletRequest request,
+                final String cursor) {
+            this.path = (String) request.getAttribute(
+                    HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
+            this.mediaType = representationFormat(request);
+            this.variant = new RepresentationCache.Variant(
+                    JavaAddress.getBaseUri().toString(), mediaType.toString(),
+                    LocaleContextHolder.getLocale().toString(), cursor);
+            this.requestAttributes = RequestContextHolder
+                    .getRequestAttributes();
+        }
+
+        /**
+         * @return the cached response, or null if it isn't cached
+         */
+        private ResponseEntity<?> get(final EntityWrapper<?> entity,
+                final String eTag, final long lastModified) {
+            final byte[] body = representationCache.get(path, variant,
+                    entity, eTag);
+            return body == null ? null
+                    : ok(mediaType, eTag, lastModified, body);
+        }
+
+        /**
+         * @param version
+         *            the version of {@code entity} read before it was paged
+         */
+        private ResponseEntity<?> put(final EntityWrapper<?> entity,
+                final long version, final String eTag,
+                final long lastModified, final EntityWrapper<?> page) {
+            final byte[] body = withRequestAttributes(requestAttributes,
+                    () -> serialize(page));
+            representationCache.put(path, variant, entity, eTag, body,
+                    version);
+            return ok(mediaType, eTag, lastModified, body);
+        }
+    }
+
+    /**
+     * @return the page of {@code entity} at {@code cursor}, or null if the
+     *         cursor isn't valid
+     */
+    private static CompletableFuture<? extends EntityWrapper<?>> page(
+            final EntityWrapper<?> entity, final String cursor) {
+        try {
+            return entity.page(cursor);
+        } catch (final IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static ResponseEntity<?> ok(final MediaType mediaType,
+            final String eTag, final long lastModified, final byte[] body) {
+        return ResponseEntity.ok()
+                .contentType(new MediaType(mediaType, StandardCharsets.UTF_8))
+                .eTag(eTag).lastModified(lastModified).body(body);
+    }
+
+    /**
+     * Writes the whole entity, with every one of its sub-entities rather than
+     * a page of them, straight to the response as it is serialized. The
+     * sub-entities are read from the repository {@link #STREAM_PAGE_SIZE} at
+     * a time and written as they're read, and nothing is buffered or cached,
+     * so beyond the links the entity itself holds, memory use doesn't grow
+     * with the size of the collection. As writes block while the client
+     * falls behind, so does reading.
+     */
+    @RequestMapping(value = "**", method = RequestMethod.GET, params = STREAM_PARAMETER, produces = {
+            MediaTypes.SIREN_JSON_VALUE, MediaType.APPLICATION_JSON_VALUE })
+    public CompletableFuture<ResponseEntity<StreamingResponseBody>> stream(
+            final HttpServletRequest request) {
+        final String path = (String) request.getAttribute(
+                HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
+        final String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        final long ifModifiedSince = getDateHeader(request,
+                HttpHeaders.IF_MODIFIED_SINCE);
+        final MediaType mediaType = representationFormat(request);
+        final RequestAttributes currentRequestAttributes = RequestContextHolder
+                .getRequestAttributes();
+        return getEntity(path).thenApply(entity -> {
+            if (entity == null) {
+                return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+            }
+            final StreamingResponseBody body = out -> withRequestAttributes(
+                    currentRequestAttributes, () -> write(entity, out));
+            final MediaType contentType = new MediaType(mediaType,
+                    StandardCharsets.UTF_8);
+            if (entity.hasEmbeddedEntities()) {
+                // what the embedded sub-entities are isn't known until
+                // they're written, so the representation can't be tagged
+                return ResponseEntity.ok().contentType(contentType)
+                        .body(body);
+            }
+            final long lastModified = entity.getLastModified();
+            final String eTag = eTag(entity.getVersion());
+            if (isNotModified(ifNoneMatch, ifModifiedSince, eTag,
+                    lastModified)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(eTag).lastModified(lastModified).body(null);
+            }
+            return ResponseEntity.ok().contentType(contentType).eTag(eTag)
+                    .lastModified(lastModified).body(body);
         });
     }
 
+    private Void write(final EntityWrapper<?> entity, final OutputStream out) {
+        // everything but the sub-entities is small, and is written as usual
+        final ObjectNode written = objectMapper
+                .valueToTree(entity.withoutEntities());
+        try (JsonGenerator gen = objectMapper.getFactory()
+                .createGenerator(out)) {
+            // the servlet container owns the response stream
+            gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            gen.writeStartObject();
+            boolean entitiesWritten = false;
+            final Iterator<Map.Entry<String, JsonNode>> fields = written
+                    .fields();
+            while (fields.hasNext()) {
+                final Map.Entry<String, JsonNode> field = fields.next();
+                if (!entitiesWritten
+                        && !FIELDS_BEFORE_ENTITIES.contains(field.getKey())) {
+                    writeEntities(entity, gen);
+                    entitiesWritten = true;
+                }
+                gen.writeFieldName(field.getKey());
+                objectMapper.writeTree(gen, field.getValue());
+            }
+            if (!entitiesWritten) {
+                writeEntities(entity, gen);
+            }
+            gen.writeEndObject();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the sub-entities stored under the entity's path in the order of
+     * their paths, a page at a time, after any stored elsewhere, as
+     * {@link EntityWrapper#page(String)} would.
+     */
+    private void writeEntities(final EntityWrapper<?> entity,
+            final JsonGenerator gen) throws IOException {
+        final String prefix = entity.getPath() + "/";
+        final List<EntityRelationship> elsewhere = new ArrayList<>();
+        final Set<String> embedded = new LinkedHashSet<>();
+        for (final EntityRelationship relationship : entity
+                .getEntitiesView()) {
+            final String id = relationship.getEntity().getId();
+            if (id == null || !id.startsWith(prefix)) {
+                elsewhere.add(relationship);
+                if (relationship.isEmbedded() && id != null) {
+                    embedded.add(id);
+                }
+            }
+        }
+        final Map<String, EntityWrapper<?>> resolved = new HashMap<>();
+        if (!embedded.isEmpty()) {
+            for (final EntityWrapper<?> found : repository.findAll(embedded)
+                    .join()) {
+                if (found != null) {
+                    resolved.put(found.getId(), found);
+                }
+            }
+        }
+        boolean started = false;
+        for (final EntityRelationship relationship : elsewhere) {
+            started = writeEntity(relationship,
+                    resolved.get(relationship.getEntity().getId()), started,
+                    gen);
+        }
+        String after = null;
+        List<EntityWrapper<?>> page;
+        do {
+            page = repository.findRange(prefix, after, null, STREAM_PAGE_SIZE)
+                    .join();
+            for (final EntityWrapper<?> found : page) {
+                for (final EntityRelationship relationship : entity
+                        .relationshipsTo(found.getId())) {
+                    started = writeEntity(relationship, found, started, gen);
+                }
+                after = found.getId();
+            }
+            // so that the client gets each page as it's read
+            gen.flush();
+        } while (page.size() == STREAM_PAGE_SIZE);
+        if (started) {
+            gen.writeEndArray();
+        }
+    }
+
+    /**
+     * @param entity
+     *            the sub-entity, to write its properties if it's embedded,
+     *            or null if it couldn't be found
+     * @param started
+     *            true if the "entities" array has been started
+     * @return true, as the array has been started
+     */
+    private boolean writeEntity(final EntityRelationship relationship,
+            final EntityWrapper<?> entity, final boolean started,
+            final JsonGenerator gen) throws IOException {
+        if (!started) {
+            gen.writeArrayFieldStart("entities");
+        }
+        objectMapper.writeValue(gen, relationship.isEmbedded()
+                ? relationship.embedding(entity) : relationship);
+        return true;
+    }
+
+    /**
+     * @return a strong entity tag for the given version of an entity
+     */
+    private static String eTag(final long version) {
+        return "\"" + ETAG_PREFIX + "-" + version + "\"";
+    }
+
+    /**
+     * Versions are drawn from a single sequence, so the versions of the
+     * embedded sub-entities tell their states apart as well as the version
+     * of the entity tells its own. One that can't be found counts as 0.
+     *
+     * @param representation
+     *            the entity, or the page of it, that will be written
+     * @return a strong entity tag for a representation of the given version
+     *         of an entity, which also changes with any sub-entities it
+     *         embeds
+     */
+    private static String eTag(final long version,
+            final EntityWrapper<?> representation) {
+        if (!representation.hasEmbeddedEntities()) {
+            return eTag(version);
+        }
+        long embedded = 0;
+        for (final EntityRelationship relationship : representation
+                .getEntitiesView()) {
+            if (relationship.isEmbedded()) {
+                final EntityWrapper<?> entity = relationship
+                        .getEmbeddedEntity();
+                embedded = 31 * embedded
+                        + (entity == null ? 0 : entity.getVersion());
+            }
+        }
+        return "\"" + ETAG_PREFIX + "-" + version + "-"
+                + Long.toHexString(embedded) + "\"";
+    }
+
+    /**
+     * @return the later of {@code lastModified} and when any of the
+     *         sub-entities {@code representation} embeds were last modified
+     */
+    private static long lastModified(final long lastModified,
+            final EntityWrapper<?> representation) {
+        if (!representation.hasEmbeddedEntities()) {
+            return lastModified;
+        }
+        long latest = lastModified;
+        for (final EntityRelationship relationship : representation
+                .getEntitiesView()) {
+            final EntityWrapper<?> entity = relationship.getEmbeddedEntity();
+            if (entity != null) {
+                latest = Math.max(latest, entity.getLastModified());
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @param header
+     *            the value of an {@code If-Match} or {@code If-None-Match}
+     *            header
+     * @param eTag
+     *            the entity tag of the current representation
+     * @param weak
+     *            true to use weak comparison, as {@code If-None-Match} does
+     * @return true if the header lists {@code eTag}, or is "*"
+     */
+    private static boolean eTagMatches(final String header, final String eTag,
+            final boolean weak) {
+        for (String candidate : StringUtils
+                .commaDelimitedListToStringArray(header)) {
+            candidate = candidate.trim();
+            if (weak && candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || eTag.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNotModified(final String ifNoneMatch,
+            final long ifModifiedSince, final String eTag,
+            final long lastModified) {
+        if (ifNoneMatch != null) {
+            return eTagMatches(ifNoneMatch, eTag, true);
+        }
+        // HTTP dates only go down to the second
+        return ifModifiedSince >= 0
+                && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static ResponseEntity<?> notModified(final String eTag,
+            final long lastModified) {
+        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag)
+                .lastModified(lastModified).build();
+    }
+
+    /**
+     * @return the {@code If-Match} precondition failure for the entity, or
+     *         null if the request may go ahead
+     */
+    private static ResponseEntity<?> checkIfMatch(final String ifMatch,
+            final EntityWrapper<?> entity) {
+        if (ifMatch == null) {
+            return null;
+        }
+        if (entity == null) {
+            return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED)
+                    .build();
+        }
+        final String eTag = eTag(entity.getVersion());
+        if (eTagMatches(ifMatch, eTag, false)) {
+            return null;
+        }
+        // actions don't change embedded sub-entities, so the tag of any
+        // representation of this version of the entity will do
+        final String embedding = eTag.substring(0, eTag.length() - 1) + "-";
+        for (final String candidate : StringUtils
+                .commaDelimitedListToStringArray(ifMatch)) {
+            if (candidate.trim().startsWith(embedding)) {
+                return null;
+            }
+        }
+        return ResponseEntity.status(HttpStatus.PRECONDITION_FAILED)
+                .eTag(eTag).build();
+    }
+
+    /**
+     * Invokes an action on {@code entity}. For a request with an
+     * {@code If-Match} header, the entity is only saved or deleted if it
+     * hasn't changed since the header was checked against it, so that the
+     * check and the action are applied atomically.
+     */
+    private <T> CompletableFuture<T> conditionally(final String ifMatch,
+            final EntityWrapper<?> entity,
+            final Supplier<CompletableFuture<T>> invocation) {
+        if (ifMatch == null) {
+            return invocation.get();
+        }
+        return new ConditionalEntityRepository(repository, entity)
+                .apply(invocation);
+    }
+
+    /**
+     * @return true if {@code e} is from a conditional action finding that
+     *         its entity had changed
+     */
+    private static boolean isEntityChanged(final Throwable e) {
+        Throwable cause = e;
+        while (cause instanceof CompletionException
+                && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof EntityChangedException;
+    }
+
+    private static long getDateHeader(final HttpServletRequest request,
+            final String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (final IllegalArgumentException e) {
+            // unparseable dates are ignored
+            return -1;
+        }
+    }
+
+    private byte[] serialize(final EntityWrapper<?> entity) {
+        try {
+            return objectMapper.writeValueAsBytes(entity);
+        } catch (final JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the media type an entity will be written as, given what the
+     *         request accepts. As with {@code produces}, Siren is preferred.
+     */
+    private static MediaType representationFormat(
+            final HttpServletRequest request) {
+        final List<MediaType> accepted = MediaType
+                .parseMediaTypes(request.getHeader(HttpHeaders.ACCEPT));
+        MediaType.sortBySpecificityAndQuality(accepted);
+        for (final MediaType type : accepted) {
+            if (type.isCompatibleWith(MediaTypes.SIREN_JSON)) {
+                return MediaTypes.SIREN_JSON;
+            } else if (type.isCompatibleWith(MediaType.APPLICATION_JSON)) {
+                return MediaType.APPLICATION_JSON;
+            }
+        }
+        return MediaTypes.SIREN_JSON;
+    }
+
     private CompletableFuture<EntityWrapper<?>> getEntity(
             final Map<String, Object> allRequestParams,
             final HttpServletRequest request) {
@@ -179,6 +749,61 @@ public abstract class HyperstateController {
         return repository.findOne(identifier);
     }
 
+    private static CompletableFuture<ResponseEntity<?>> completed(
+            final ResponseEntity<?> response) {
+        return CompletableFuture.completedFuture(response);
+    }
+
+    /**
+     * Runs {@code supplier} with the given request attributes bound to the
+     * current thread, so that hrefs can be built off the request thread.
+     */
+    private static <T> T withRequestAttributes(
+            final RequestAttributes requestAttributes,
+            final Supplier<T> supplier) {
+        final RequestAttributes previous = RequestContextHolder
+                .getRequestAttributes();
+        RequestContextHolder.setRequestAttributes(requestAttributes);
+        try {
+            return supplier.get();
+        } finally {
+            if (previous == null) {
+                RequestContextHolder.resetRequestAttributes();
+            } else {
+                RequestContextHolder.setRequestAttributes(previous);
+            }
+        }
+    }
+
+    /**
+     * Applies {@code fn} straight away on the calling thread if
+     * {@code future} has already completed (e.g. the entity was already in
+     * memory), otherwise applies it on {@code executor} once it completes.
+     */
+    private static <T, U> CompletableFuture<U> thenApply(
+            final CompletableFuture<T> future,
+            final Function<? super T, ? extends U> fn,
+            final Executor executor) {
+        if (future.isDone()) {
+            return future.thenApply(fn);
+        }
+        return future.thenApplyAsync(fn, executor);
+    }
+
+    /**
+     * Like {@link #thenApply(CompletableFuture, Function, Executor)}, for a
+     * function that returns a future.
+     */
+    private static <T, U> CompletableFuture<U> thenCompose(
+            final CompletableFuture<T> future,
+            final Function<? super T, ? extends CompletionStage<U>> fn,
+            final Executor executor) {
+        if (future.isDone()) {
+            return future.thenCompose(fn);
+        }
+        return future.thenComposeAsync(fn, executor);
+    }
+
     public CompletableFuture<EntityWrapper<?>> getRoot() {
         return getEntity(getRootPath());
     }
@@ -198,7 +823,6 @@ public abstract class HyperstateController {
     @RequestMapping(value = "**", method = RequestMethod.GET, produces = {
             MediaType.ALL_VALUE })
     @ResponseBody
-    @Async
     public CompletableFuture<ResponseEntity<?>> getResource(
             @RequestParam final Map<String, Object> allRequestParams,
             final HttpServletRequest request) {
@@ -206,7 +830,7 @@ public abstract class HyperstateController {
                 HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
         CompletableFuture<EntityWrapper<?>> entityFuture = getEntity(
                 allRequestParams, request);
-        return entityFuture.thenApplyAsync(entity -> {
+        return thenApply(entityFuture, entity -> {
             RequestContextHolder.setRequestAttributes(
                     RequestContextHolder.getRequestAttributes());
             if (entity == null) {
@@ -214,7 +838,7 @@ public abstract class HyperstateController {
             } else {
                 return getIndex(HttpStatus.OK);
             }
-        });
+        }, serializationExecutor);
     }
 
     private ResponseEntity<?> getIndex(HttpStatus status) {
@@ -266,38 +890,37 @@ public abstract class HyperstateController {
                     InterruptedException, ExecutionException {
         final String path = (String) request.getAttribute(
                 HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
-        RequestAttributes currentRequestAttributes = RequestContextHolder
+        final RequestAttributes currentRequestAttributes = RequestContextHolder
                 .getRequestAttributes();
-        RequestContextHolder.setRequestAttributes(currentRequestAttributes,
-                Boolean.TRUE);
 
-        return getEntity(path).thenApply(entity -> {
+        return getEntity(path).thenComposeAsync(entity -> {
             if (entity == null) {
-                return ResponseEntity.notFound().build();
+                return completed(ResponseEntity.notFound().build());
             }
 
             final Object actionName = allRequestParams.getFirst("action");
             if (actionName == null) {
                 // todo add body with classes indicating what is missing
-                return ResponseEntity.badRequest().build();
+                return completed(ResponseEntity.badRequest().build());
             }
             final Action<?> action = entity.getAction(actionName.toString());
             if (action == null) {
                 // todo add body with classes indicating what is missing
-                return ResponseEntity.badRequest().build();
+                return completed(ResponseEntity.badRequest().build());
             }
             // todo: post actions should have a link return value
             // todo: automatically treat actions that return links as POST
             // actions
+            @SuppressWarnings("unchecked")
             final CompletableFuture<Entity> futureResult = (CompletableFuture<Entity>) action
                     .invoke(allRequestParams.toSingleValueMap());
 
-            RequestContextHolder.setRequestAttributes(currentRequestAttributes,
-                    Boolean.TRUE);
-            return ResponseEntity
-                    .created(futureResult.join().getAddress().getHref())
-                    .build();
-        });
+            return futureResult.thenApply(
+                    result -> withRequestAttributes(currentRequestAttributes,
+                            () -> ResponseEntity
+                                    .created(result.getAddress().getHref())
+                                    .build()));
+        }, actionExecutor);
 
     }
 
@@ -305,35 +928,53 @@ public abstract class HyperstateController {
             "application/vnd.siren+json",
             "application/json" }, consumes = MediaType.APPLICATION_FORM_URLENCODED_VALUE)
     @ResponseBody
-    public ResponseEntity<?> put(
+    public CompletableFuture<ResponseEntity<?>> put(
             @RequestParam final MultiValueMap<String, Object> queryParams,
-
-    final HttpServletRequest request) throws IllegalAccessException,
-            IllegalArgumentException, InvocationTargetException,
-            URISyntaxException, InterruptedException, ExecutionException {
+            final HttpServletRequest request) {
         final String url = (String) request.getAttribute(
                 HandlerMapping.PATH_WITHIN_HANDLER_MAPPING_ATTRIBUTE);
-        final EntityWrapper<?> entity = getEntity(url).get();
-        if (entity == null) {
-            return ResponseEntity.notFound().build();
-        }
-        final MultiValueMap<String, Object> params = new LinkedMultiValueMap<>();
-        params.putAll(queryParams);
-        final String actionName = (String) queryParams.getFirst("action");
-        if (actionName == null) {
-            // todo add body with classes indicating what is missing
-            return ResponseEntity.badRequest().build();
-        }
-        final au.com.mountainpass.hyperstate.core.Action<?> action = entity
-                .getAction(actionName);
-        if (action == null) {
-            // todo add body with classes indicating what is missing
-            return ResponseEntity.badRequest().build();
-        }
+        final String ifMatch = request.getHeader(HttpHeaders.IF_MATCH);
+        return getEntity(url).thenComposeAsync(entity -> {
+            if (entity == null) {
+                return completed(ResponseEntity.notFound().build());
+            }
+            final ResponseEntity<?> preconditionFailed = checkIfMatch(ifMatch,
+                    entity);
+            if (preconditionFailed != null) {
+                return completed(preconditionFailed);
+            }
+            final MultiValueMap<String, Object> params = new LinkedMultiValueMap<>();
+            params.putAll(queryParams);
+            final String actionName = (String) queryParams.getFirst("action");
+            if (actionName == null) {
+                // todo add body with classes indicating what is missing
+                return completed(ResponseEntity.badRequest().build());
+            }
+            final au.com.mountainpass.hyperstate.core.Action<?> action = entity
+                    .getAction(actionName);
+            if (action == null) {
+                // todo add body with classes indicating what is missing
+                return completed(ResponseEntity.badRequest().build());
+            }
 
-        action.invoke(params.toSingleValueMap());
-        // todo: automatically treat actions that return void as PUT actions
-        return ResponseEntity.noContent().build();
+            // todo: automatically treat actions that return void as PUT
+            // actions
+            return conditionally(ifMatch, entity,
+                    () -> action.invoke(params.toSingleValueMap()))
+                    .<ResponseEntity<?>> handle((result, e) -> {
+                        if (isEntityChanged(e)) {
+                            return ResponseEntity
+                                    .status(HttpStatus.PRECONDITION_FAILED)
+                                    .build();
+                        }
+                        if (e != null) {
+                            throw e instanceof CompletionException
+                                    ? (CompletionException) e
+                                    : new CompletionException(e);
+                        }
+                        return ResponseEntity.noContent().build();
+                    });
+        }, actionExecutor);
     }
 
     public ObjectMapper getObjectMapper() {
@@ -0,0 +1,98 @@
+package au.com.mountainpass.hyperstate.server.config;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import au.com.mountainpass.hyperstate.core.MonitoredTaskExecutor;
+
+/**
+ * Separate, bounded executors for each stage of request processing, so a
+ * slow stage (e.g. a blocking action) can't starve the others.
+ *
+ * Setting {@code au.com.mountainpass.hyperstate.executor.mode} to
+ * {@code virtual} runs actions and response handling on a new virtual thread
+ * per task instead, when the JVM supports virtual threads. On older JVMs it
+ * falls back to the bounded executors.
+ */
+@Configuration
+public class HyperstateExecutorConfiguration {
+
+    public static final String VIRTUAL_MODE = "virtual";
+
+    private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${au.com.mountainpass.hyperstate.executor.mode:bounded}")
+    private String mode;
+
+    @Bean(name = MonitoredTaskExecutor.REPOSITORY_EXECUTOR)
+    public MonitoredTaskExecutor repositoryExecutor(
+            @Value("${au.com.mountainpass.hyperstate.executor.repository.core-pool-size:8}") final int corePoolSize,
+            @Value("${au.com.mountainpass.hyperstate.executor.repository.max-pool-size:32}") final int maxPoolSize,
+            @Value("${au.com.mountainpass.hyperstate.executor.repository.queue-capacity:1000}") final int queueCapacity) {
+        return new MonitoredTaskExecutor(
+                MonitoredTaskExecutor.REPOSITORY_EXECUTOR, corePoolSize,
+                maxPoolSize, queueCapacity);
+    }
+
+    @Bean(name = MonitoredTaskExecutor.ACTION_EXECUTOR)
+    public Executor actionExecutor(
+            @Value("${au.com.mountainpass.hyperstate.executor.action.core-pool-size:16}") final int corePoolSize,
+            @Value("${au.com.mountainpass.hyperstate.executor.action.max-pool-size:64}") final int maxPoolSize,
+            @Value("${au.com.mountainpass.hyperstate.executor.action.queue-capacity:1000}") final int queueCapacity) {
+        return stageExecutor(MonitoredTaskExecutor.ACTION_EXECUTOR,
+                corePoolSize, maxPoolSize, queueCapacity);
+    }
+
+    @Bean(name = MonitoredTaskExecutor.SERIALIZATION_EXECUTOR)
+    public Executor serializationExecutor(
+            @Value("${au.com.mountainpass.hyperstate.executor.serialization.core-pool-size:8}") final int corePoolSize,
+            @Value("${au.com.mountainpass.hyperstate.executor.serialization.max-pool-size:32}") final int maxPoolSize,
+            @Value("${au.com.mountainpass.hyperstate.executor.serialization.queue-capacity:1000}") final int queueCapacity) {
+        return stageExecutor(MonitoredTaskExecutor.SERIALIZATION_EXECUTOR,
+                corePoolSize, maxPoolSize, queueCapacity);
+    }
+
+    private Executor stageExecutor(final String name, final int corePoolSize,
+            final int maxPoolSize, final int queueCapacity) {
+        if (VIRTUAL_MODE.equals(mode)) {
+            final ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+            if (virtualThreadExecutor != null) {
+                LOGGER.info("{} will run each task on a new virtual thread",
+                        name);
+                return new TaskExecutorAdapter(virtualThreadExecutor);
+            }
+            LOGGER.warn(
+                    "virtual threads are not supported by this JVM. {} will use a bounded thread pool",
+                    name);
+        }
+        return new MonitoredTaskExecutor(name, corePoolSize, maxPoolSize,
+                queueCapacity);
+    }
+
+    /**
+     * Looked up reflectively, as we still need to run on JVMs that predate
+     * virtual threads.
+     *
+     * @return an executor that starts a new virtual thread for each task, or
+     *         {@literal null} if virtual threads aren't supported
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException
+                | InvocationTargetException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package au.com.mountainpass.hyperstate.server.config;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import au.com.mountainpass.hyperstate.core.MonitoredTaskExecutor;
+
+/**
+ * Publishes queue depth, rejections, etc. for each
+ * {@link MonitoredTaskExecutor} to the actuator {@code /metrics} endpoint.
+ */
+@Component
+public class HyperstateExecutorMetrics implements PublicMetrics {
+
+    @Autowired(required = false)
+    private Map<String, Executor> executors = Collections.emptyMap();
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        for (final Executor candidate : executors.values()) {
+            if (!(candidate instanceof MonitoredTaskExecutor)) {
+                continue;
+            }
+            final MonitoredTaskExecutor executor = (MonitoredTaskExecutor) candidate;
+            if (!executor.isInitialized()) {
+                continue;
+            }
+            final String prefix = "hyperstate.executor." + executor.getName()
+                    + ".";
+            metrics.add(new Metric<Integer>(prefix + "queue.depth",
+                    executor.getQueueDepth()));
+            metrics.add(new Metric<Integer>(prefix + "queue.remaining",
+                    executor.getQueueRemainingCapacity()));
+            metrics.add(new Metric<Integer>(prefix + "active",
+                    executor.getActiveCount()));
+            metrics.add(new Metric<Integer>(prefix + "pool.size",
+                    executor.getPoolSize()));
+            metrics.add(new Metric<Long>(prefix + "completed",
+                    executor.getCompletedTaskCount()));
+            metrics.add(new Metric<Long>(prefix + "rejected",
+                    executor.getRejectedCount()));
+        }
+        return metrics;
+    }
+
+}
@@ -0,0 +1,215 @@
+package au.com.mountainpass.hyperstate.server.serialization;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import au.com.mountainpass.hyperstate.core.EntityChangedEvent;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * Keeps the serialized representations of recently requested entities, so
+ * that repeat GETs of an unchanged entity don't have to serialize it again.
+ *
+ * Representations are kept per path, with a variant for each base URI,
+ * media type, locale and page they have been requested in. A path's
+ * representations are dropped whenever the repository reports that the
+ * entity at that path has changed, and the least recently used paths are
+ * dropped once there are more than {@code maximum-size} of them.
+ *
+ * A representation is only used for the very entity instance it was
+ * serialized from, and only while its entity tag, which changes with the
+ * entity's version and those of the sub-entities it embeds, is current. It
+ * is only kept if the entity wasn't saved while it was serialized, and never
+ * replaces a representation of a later version.
+ */
+@Component
+public class RepresentationCache implements PublicMetrics {
+
+    private static final class Representation {
+        private final EntityWrapper<?> entity;
+        private final long version;
+        private final String eTag;
+        private final byte[] body;
+
+        private Representation(final EntityWrapper<?> entity,
+                final long version, final String eTag, final byte[] body) {
+            this.entity = entity;
+            this.version = version;
+            this.eTag = eTag;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Identifies a representation of an entity.
+     */
+    public static final class Variant {
+        private final String baseUri;
+        private final String mediaType;
+        private final String locale;
+        private final String cursor;
+
+        public Variant(final String baseUri, final String mediaType,
+                final String locale, final String cursor) {
+            this.baseUri = baseUri;
+            this.mediaType = mediaType;
+            this.locale = locale;
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Variant)) {
+                return false;
+            }
+            final Variant other = (Variant) obj;
+            return Objects.equals(baseUri, other.baseUri)
+                    && Objects.equals(mediaType, other.mediaType)
+                    && Objects.equals(locale, other.locale)
+                    && Objects.equals(cursor, other.cursor);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(baseUri, mediaType, locale, cursor);
+        }
+    }
+
+    private final Cache<String, ConcurrentMap<Variant, Representation>> representations;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public RepresentationCache(
+            @Value("${au.com.mountainpass.hyperstate.cache.representation.maximum-size:1000}") final long maximumSize) {
+        this.representations = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize).recordStats().build();
+    }
+
+    /**
+     * @param path
+     *            the path of the entity
+     * @param variant
+     *            the representation wanted
+     * @param entity
+     *            the entity currently at that path
+     * @param eTag
+     *            the entity tag of its current representation
+     * @return the serialized representation of {@code entity}, or
+     *         {@literal null} if it isn't cached
+     */
+    public byte[] get(final String path, final Variant variant,
+            final EntityWrapper<?> entity, final String eTag) {
+        final ConcurrentMap<Variant, Representation> variants = representations
+                .getIfPresent(path);
+        final Representation representation = variants == null ? null
+                : variants.get(variant);
+        if (representation == null || representation.entity != entity
+                || !representation.eTag.equals(eTag)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return representation.body;
+    }
+
+    /**
+     * Caches a serialized representation, unless the entity has been saved
+     * since {@code version} was read, or a representation of a later version
+     * of the entity at {@code path} is already cached.
+     *
+     * @param path
+     *            the path of the entity
+     * @param variant
+     *            the representation
+     * @param entity
+     *            the entity that was serialized
+     * @param eTag
+     *            the entity tag of the representation
+     * @param body
+     *            the serialized entity
+     * @param version
+     *            the version of {@code entity} read before it was serialized
+     */
+    public void put(final String path, final Variant variant,
+            final EntityWrapper<?> entity, final String eTag,
+            final byte[] body, final long version) {
+        if (entity.getVersion() != version) {
+            return;
+        }
+        final ConcurrentMap<Variant, Representation> variants = representations
+                .asMap().computeIfAbsent(path, p -> new ConcurrentHashMap<>());
+        final Representation representation = new Representation(entity,
+                version, eTag, body);
+        // versions only go up, so the later of two renders is kept
+        variants.compute(variant,
+                (v, current) -> current != null && current.version > version
+                        ? current : representation);
+        // the entity may have been saved between the check above and the put
+        if (entity.getVersion() != version) {
+            variants.remove(variant, representation);
+        }
+    }
+
+    /**
+     * Drops the representations of the entity at {@code path}.
+     *
+     * @param path
+     *            the path of the entity, or {@literal null} to drop every
+     *            representation
+     */
+    public void invalidate(final String path) {
+        if (path == null) {
+            representations.invalidateAll();
+        } else {
+            representations.invalidate(path);
+        }
+    }
+
+    /**
+     * @return the number of representations served from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of representations that had to be serialized
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    @EventListener
+    public void onEntityChanged(final EntityChangedEvent event) {
+        invalidate(event.getPath());
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final String prefix = "hyperstate.cache.representation.";
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<Long>(prefix + "size", representations.size()));
+        metrics.add(new Metric<Long>(prefix + "hits", hits.get()));
+        metrics.add(new Metric<Long>(prefix + "misses", misses.get()));
+        metrics.add(new Metric<Long>(prefix + "evictions",
+                representations.stats().evictionCount()));
+        return metrics;
+    }
+
+}
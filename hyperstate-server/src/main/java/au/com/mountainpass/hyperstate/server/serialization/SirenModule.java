@@ -0,0 +1,67 @@
+package au.com.mountainpass.hyperstate.server.serialization;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.databind.ser.std.BeanSerializerBase;
+
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+
+/**
+ * Serializes entities with a {@link SirenSerializer}.
+ *
+ * The serializer is worked out once per entity class, from the bean
+ * serializer Jackson would otherwise use. Entity classes with properties of
+ * their own, and mappers configured in ways that would change the output,
+ * keep the bean serializer.
+ */
+@SuppressWarnings("serial")
+public class SirenModule extends SimpleModule {
+
+    public SirenModule() {
+        super(SirenModule.class.getSimpleName());
+        setSerializerModifier(new BeanSerializerModifier() {
+            @Override
+            public JsonSerializer<?> modifySerializer(
+                    final SerializationConfig config,
+                    final BeanDescription beanDesc,
+                    final JsonSerializer<?> serializer) {
+                if (EntityWrapper.class
+                        .isAssignableFrom(beanDesc.getBeanClass())
+                        && serializer instanceof BeanSerializerBase
+                        && isDefaultConfig(config)
+                        && SirenSerializer.canReplace(
+                                (BeanSerializerBase) serializer)) {
+                    return new SirenSerializer(
+                            (BeanSerializerBase) serializer);
+                }
+                return serializer;
+            }
+        });
+    }
+
+    /**
+     * Empty arrays are left out through the default property inclusion, such
+     * as {@link JsonInclude.Include#NON_EMPTY}, rather than through the
+     * deprecated {@code WRITE_EMPTY_JSON_ARRAYS} feature, so only the
+     * inclusion is checked for them.
+     */
+    private static boolean isDefaultConfig(final SerializationConfig config) {
+        final JsonInclude.Value inclusion = config
+                .getDefaultPropertyInclusion();
+        return isIncluded(inclusion.getValueInclusion())
+                && isIncluded(inclusion.getContentInclusion())
+                && !config.isEnabled(
+                        SerializationFeature.WRITE_SINGLE_ELEM_ARRAYS_UNWRAPPED);
+    }
+
+    private static boolean isIncluded(final JsonInclude.Include inclusion) {
+        return inclusion == JsonInclude.Include.ALWAYS
+                || inclusion == JsonInclude.Include.USE_DEFAULTS;
+    }
+
+}
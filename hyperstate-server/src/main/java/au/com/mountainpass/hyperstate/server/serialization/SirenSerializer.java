@@ -0,0 +1,440 @@
+package au.com.mountainpass.hyperstate.server.serialization;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+import com.fasterxml.jackson.databind.ser.PropertyWriter;
+import com.fasterxml.jackson.databind.ser.ResolvableSerializer;
+import com.fasterxml.jackson.databind.ser.std.BeanSerializerBase;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.databind.util.NameTransformer;
+
+import au.com.mountainpass.hyperstate.core.Action;
+import au.com.mountainpass.hyperstate.core.Address;
+import au.com.mountainpass.hyperstate.core.EntityRelationship;
+import au.com.mountainpass.hyperstate.core.JavaAction;
+import au.com.mountainpass.hyperstate.core.JavaAddress;
+import au.com.mountainpass.hyperstate.core.Link;
+import au.com.mountainpass.hyperstate.core.MediaTypes;
+import au.com.mountainpass.hyperstate.core.NavigationalRelationship;
+import au.com.mountainpass.hyperstate.core.Parameter;
+import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+import au.com.mountainpass.hyperstate.core.entities.LinkedEntity;
+
+/**
+ * Writes an {@link EntityWrapper} as Siren in a single pass over the entity,
+ * straight to the {@link JsonGenerator}.
+ *
+ * The output is the same as the bean serializer it replaces, but the
+ * entities, actions and links are read from views rather than copied, and
+ * the {@code @JsonUnwrapped} links and addresses are written inline instead
+ * of through unwrapping serializers. The "class", "properties" and "title"
+ * of the entity itself are still written by the bean serializer's property
+ * writers, so that any configuration of those is honoured.
+ *
+ * Links, actions and relationships of a type this serializer doesn't know
+ * are handed back to Jackson.
+ */
+@SuppressWarnings("serial")
+public class SirenSerializer extends StdSerializer<EntityWrapper<?>>
+        implements ResolvableSerializer {
+
+    private static final List<String> PROPERTY_ORDER = Arrays.asList("class",
+            "properties", "entities", "actions", "links", "title");
+
+    /**
+     * @param serializer
+     *            the bean serializer Jackson built for an entity class
+     * @return true if the entity class only has the standard Siren
+     *         properties, in the standard order
+     */
+    public static boolean canReplace(final BeanSerializerBase serializer) {
+        if (serializer.usesObjectId()) {
+            return false;
+        }
+        int next = 0;
+        final Iterator<PropertyWriter> properties = serializer.properties();
+        while (properties.hasNext()) {
+            final PropertyWriter property = properties.next();
+            final int index = PROPERTY_ORDER.indexOf(property.getName());
+            if (index < next || !(property instanceof BeanPropertyWriter)) {
+                return false;
+            }
+            next = index + 1;
+        }
+        return true;
+    }
+
+    private final BeanSerializerBase beanSerializer;
+
+    private BeanPropertyWriter classWriter;
+
+    private BeanPropertyWriter propertiesWriter;
+
+    private BeanPropertyWriter titleWriter;
+
+    private boolean hasEntities;
+
+    private boolean hasActions;
+
+    private boolean hasLinks;
+
+    private JsonSerializer<Object> titleSerializer;
+
+    private JsonSerializer<Object> methodSerializer;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public SirenSerializer(final BeanSerializerBase beanSerializer) {
+        super((Class) beanSerializer.handledType());
+        this.beanSerializer = beanSerializer;
+    }
+
+    @Override
+    public void resolve(final SerializerProvider provider)
+            throws JsonMappingException {
+        beanSerializer.resolve(provider);
+        final Iterator<PropertyWriter> properties = beanSerializer
+                .properties();
+        while (properties.hasNext()) {
+            final BeanPropertyWriter property = (BeanPropertyWriter) properties
+                    .next();
+            switch (property.getName()) {
+            case "class":
+                classWriter = property;
+                break;
+            case "properties":
+                propertiesWriter = property;
+                break;
+            case "entities":
+                hasEntities = true;
+                break;
+            case "actions":
+                hasActions = true;
+                break;
+            case "links":
+                hasLinks = true;
+                break;
+            case "title":
+                titleWriter = property;
+                break;
+            default:
+            }
+        }
+        // titles of links and actions are written the same way as the
+        // entity's
+        if (titleWriter != null && titleWriter.hasSerializer()) {
+            titleSerializer = titleWriter.getSerializer();
+        } else {
+            titleSerializer = provider.findValueSerializer(String.class);
+        }
+        methodSerializer = provider.findValueSerializer(HttpMethod.class);
+    }
+
+    @Override
+    public void serialize(final EntityWrapper<?> entity,
+            final JsonGenerator gen, final SerializerProvider provider)
+            throws IOException {
+        gen.writeStartObject(entity);
+        if (classWriter != null) {
+            writeProperty(classWriter, entity, gen, provider);
+        }
+        if (propertiesWriter != null) {
+            writeProperty(propertiesWriter, entity, gen, provider);
+        }
+        if (hasEntities) {
+            final Collection<EntityRelationship> entities = entity
+                    .getEntitiesView();
+            if (!entities.isEmpty()) {
+                gen.writeArrayFieldStart("entities");
+                for (final EntityRelationship relationship : entities) {
+                    writeEntityRelationship(relationship, gen, provider);
+                }
+                gen.writeEndArray();
+            }
+        }
+        if (hasActions) {
+            final Collection<Action<?>> actions = entity.getActionsView();
+            if (!actions.isEmpty()) {
+                gen.writeArrayFieldStart("actions");
+                for (final Action<?> action : actions) {
+                    writeAction(action, gen, provider);
+                }
+                gen.writeEndArray();
+            }
+        }
+        if (hasLinks) {
+            final Set<NavigationalRelationship> links = entity
+                    .getLinksView();
+            if (!links.isEmpty()) {
+                gen.writeArrayFieldStart("links");
+                for (final NavigationalRelationship link : links) {
+                    writeNavigationalRelationship(link, gen, provider);
+                }
+                gen.writeEndArray();
+            }
+        }
+        if (titleWriter != null) {
+            writeProperty(titleWriter, entity, gen, provider);
+        }
+        gen.writeEndObject();
+    }
+
+    @Override
+    public void serializeWithType(final EntityWrapper<?> entity,
+            final JsonGenerator gen, final SerializerProvider provider,
+            final TypeSerializer typeSer) throws IOException {
+        beanSerializer.serializeWithType(entity, gen, provider, typeSer);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Override
+    public JsonSerializer<EntityWrapper<?>> unwrappingSerializer(
+            final NameTransformer unwrapper) {
+        return (JsonSerializer) beanSerializer.unwrappingSerializer(unwrapper);
+    }
+
+    private void writeProperty(final BeanPropertyWriter property,
+            final EntityWrapper<?> entity, final JsonGenerator gen,
+            final SerializerProvider provider) throws IOException {
+        try {
+            property.serializeAsField(entity, gen, provider);
+        } catch (final Exception e) {
+            wrapAndThrow(provider, e, entity, property.getName());
+        }
+    }
+
+    private void writeEntityRelationship(
+            final EntityRelationship relationship, final JsonGenerator gen,
+            final SerializerProvider provider) throws IOException {
+        if (relationship.getClass() != EntityRelationship.class) {
+            provider.defaultSerializeValue(relationship, gen);
+            return;
+        }
+        gen.writeStartObject(relationship);
+        final LinkedEntity linkedEntity = relationship.getEntityLink();
+        if (linkedEntity != null) {
+            if (linkedEntity.getClass() == LinkedEntity.class) {
+                writeLinkedEntityFields(linkedEntity, gen, provider);
+            } else {
+                writeUnwrapped(linkedEntity, gen, provider);
+            }
+        }
+        // in the order fixed by EntityRelationship's @JsonPropertyOrder
+        writeStrings("rel", relationship.getRelationships(), gen);
+        if (relationship.isEmbedded()) {
+            final Object properties = relationship.getEmbeddedProperties();
+            if (properties != null) {
+                provider.defaultSerializeField("properties", properties, gen);
+            }
+        }
+        gen.writeEndObject();
+    }
+
+    private void writeLinkedEntityFields(final LinkedEntity linkedEntity,
+            final JsonGenerator gen, final SerializerProvider provider)
+            throws IOException {
+        final Link link = linkedEntity.getLink();
+        if (link != null) {
+            writeLinkFields(link, gen, provider);
+        }
+        // in the order fixed by LinkedEntity's @JsonPropertyOrder
+        final Address address = linkedEntity.getAddress();
+        gen.writeFieldName("address");
+        if (address == null) {
+            gen.writeNull();
+        } else if (address.getClass() == JavaAddress.class) {
+            gen.writeStartObject(address);
+            writeHref((JavaAddress) address, gen);
+            gen.writeEndObject();
+        } else {
+            provider.defaultSerializeValue(address, gen);
+        }
+        gen.writeStringField("id", linkedEntity.getId());
+        gen.writeFieldName("title");
+        if (linkedEntity.getTitle() == null) {
+            gen.writeNull();
+        } else {
+            titleSerializer.serialize(linkedEntity.getTitle(), gen, provider);
+        }
+        writeStrings("class", linkedEntity.getClasses(), gen);
+    }
+
+    private void writeNavigationalRelationship(
+            final NavigationalRelationship relationship,
+            final JsonGenerator gen, final SerializerProvider provider)
+            throws IOException {
+        if (relationship.getClass() != NavigationalRelationship.class) {
+            provider.defaultSerializeValue(relationship, gen);
+            return;
+        }
+        gen.writeStartObject(relationship);
+        final Link link = relationship.getLink();
+        if (link != null) {
+            writeLinkFields(link, gen, provider);
+        }
+        writeStrings("rel", relationship.getRelationships(), gen);
+        gen.writeEndObject();
+    }
+
+    /**
+     * Writes the fields of a {@link Link}, for the object it is unwrapped
+     * into. Like the bean serializer, fields that still have the value a
+     * new {@link Link} has are left out.
+     */
+    private void writeLinkFields(final Link link, final JsonGenerator gen,
+            final SerializerProvider provider) throws IOException {
+        if (link.getClass() != Link.class) {
+            writeUnwrapped(link, gen, provider);
+            return;
+        }
+        if (link.getTitle() != null) {
+            gen.writeFieldName("title");
+            titleSerializer.serialize(link.getTitle(), gen, provider);
+        }
+        writeNonEmptyStrings("class", link.getClasses(), gen);
+        final Address address = link.getAddress();
+        if (address != null) {
+            writeAddressFields(address, gen, provider);
+        }
+        final MediaType type = link.getRepresentationFormat();
+        if (!MediaTypes.SIREN_JSON.equals(type)) {
+            gen.writeStringField("type", type.toString());
+        }
+    }
+
+    /**
+     * Writes a {@link JavaAction}, leaving out the fields that still have
+     * the value a new {@link JavaAction} has.
+     */
+    private void writeAction(final Action<?> action, final JsonGenerator gen,
+            final SerializerProvider provider) throws IOException {
+        if (action.getClass() != JavaAction.class) {
+            provider.defaultSerializeValue(action, gen);
+            return;
+        }
+        gen.writeStartObject(action);
+        if (action.getName() != null) {
+            gen.writeStringField("name", action.getName());
+        }
+        final Address address = action.getAddress();
+        if (address != null) {
+            writeAddressFields(address, gen, provider);
+        }
+        if (action.getTitle() != null) {
+            gen.writeFieldName("title");
+            titleSerializer.serialize(action.getTitle(), gen, provider);
+        }
+        final List<Parameter> parameters = action.getParameters();
+        if (!parameters.isEmpty()) {
+            gen.writeArrayFieldStart("fields");
+            for (final Parameter parameter : parameters) {
+                writeParameter(parameter, gen, provider);
+            }
+            gen.writeEndArray();
+        }
+        final HttpMethod method = action.getNature();
+        if (method != null) {
+            gen.writeFieldName("method");
+            methodSerializer.serialize(method, gen, provider);
+        }
+        writeNonEmptyStrings("class", action.getClasses(), gen);
+        gen.writeEndObject();
+    }
+
+    private void writeParameter(final Parameter parameter,
+            final JsonGenerator gen, final SerializerProvider provider)
+            throws IOException {
+        if (parameter.getClass() != Parameter.class) {
+            provider.defaultSerializeValue(parameter, gen);
+            return;
+        }
+        gen.writeStartObject(parameter);
+        if (parameter.getIdentifier() != null) {
+            gen.writeStringField("name", parameter.getIdentifier());
+        }
+        if (parameter.getValue() != null) {
+            gen.writeStringField("value", parameter.getValue());
+        }
+        if (parameter.getTitle() != null) {
+            gen.writeStringField("title", parameter.getTitle());
+        }
+        if (parameter.getType() != null) {
+            gen.writeStringField("type", parameter.getType());
+        }
+        gen.writeEndObject();
+    }
+
+    private void writeAddressFields(final Address address,
+            final JsonGenerator gen, final SerializerProvider provider)
+            throws IOException {
+        if (address.getClass() == JavaAddress.class) {
+            writeHref((JavaAddress) address, gen);
+        } else {
+            writeUnwrapped(address, gen, provider);
+        }
+    }
+
+    private void writeHref(final JavaAddress address, final JsonGenerator gen)
+            throws IOException {
+        gen.writeStringField("href", address.getHrefString());
+    }
+
+    private void writeUnwrapped(final Object value, final JsonGenerator gen,
+            final SerializerProvider provider) throws IOException {
+        provider.findValueSerializer(value.getClass())
+                .unwrappingSerializer(NameTransformer.NOP)
+                .serialize(value, gen, provider);
+    }
+
+    /**
+     * Writes the strings, or null, as the bean serializer does for
+     * properties that are always included.
+     */
+    private void writeStrings(final String name, final Object strings,
+            final JsonGenerator gen) throws IOException {
+        gen.writeFieldName(name);
+        if (strings == null) {
+            gen.writeNull();
+        } else if (strings instanceof String[]) {
+            final String[] array = (String[]) strings;
+            gen.writeStartArray(array.length);
+            for (final String string : array) {
+                gen.writeString(string);
+            }
+            gen.writeEndArray();
+        } else {
+            final Collection<?> collection = (Collection<?>) strings;
+            gen.writeStartArray(collection.size());
+            for (final Object string : collection) {
+                gen.writeString((String) string);
+            }
+            gen.writeEndArray();
+        }
+    }
+
+    /**
+     * Writes the strings, unless they are empty, as the bean serializer does
+     * for properties that default to an empty set.
+     */
+    private void writeNonEmptyStrings(final String name,
+            final Set<String> strings, final JsonGenerator gen)
+            throws IOException {
+        if (strings == null || !strings.isEmpty()) {
+            writeStrings(name, strings, gen);
+        }
+    }
+
+}
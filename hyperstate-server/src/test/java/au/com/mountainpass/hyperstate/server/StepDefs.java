@@ -5,19 +5,53 @@ import static org.hamcrest.Matchers.*;
 import static org.junit.Assert.*;
 import static org.junit.Assume.*;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.net.ssl.SSLContext;
 
 import org.junit.AssumptionViolatedException;
 import org.junit.Rule;
@@ -33,33 +67,79 @@ import org.springframework.boot.test.WebIntegrationTest;
 import org.springframework.context.ApplicationContext;
 import org.springframework.core.annotation.AnnotationUtils;
 import org.springframework.core.env.Environment;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.util.ReflectionUtils;
+import org.springframework.util.concurrent.SettableListenableFuture;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableSet;
 
+import au.com.mountainpass.hyperstate.client.PooledHttpTransport;
+import au.com.mountainpass.hyperstate.client.PrefetchPolicy;
 import au.com.mountainpass.hyperstate.client.RepositoryResolver;
+import au.com.mountainpass.hyperstate.client.RestAddress;
 import au.com.mountainpass.hyperstate.client.RestTemplateResolver;
+import au.com.mountainpass.hyperstate.client.cache.GuavaResponseCache;
 import au.com.mountainpass.hyperstate.client.webdriver.WebDriverResolver;
 import au.com.mountainpass.hyperstate.core.Action;
+import au.com.mountainpass.hyperstate.core.BinaryEntityCodec;
+import au.com.mountainpass.hyperstate.core.CoalescingEntityRepository;
+import au.com.mountainpass.hyperstate.core.ConditionalEntityRepository;
+import au.com.mountainpass.hyperstate.core.EntityRelationship;
 import au.com.mountainpass.hyperstate.core.EntityRepository;
+import au.com.mountainpass.hyperstate.core.FutureConverter;
+import au.com.mountainpass.hyperstate.core.JsonEntityCodec;
 import au.com.mountainpass.hyperstate.core.Link;
+import au.com.mountainpass.hyperstate.core.MediaTypes;
+import au.com.mountainpass.hyperstate.core.MonitoredTaskExecutor;
 import au.com.mountainpass.hyperstate.core.NavigationalRelationship;
 import au.com.mountainpass.hyperstate.core.Relationship;
 import au.com.mountainpass.hyperstate.core.Resolver;
+import au.com.mountainpass.hyperstate.core.Titled;
+import au.com.mountainpass.hyperstate.core.entities.DeletedEntity;
 import au.com.mountainpass.hyperstate.core.entities.Entity;
 import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+import au.com.mountainpass.hyperstate.core.entities.LinkedEntity;
 import au.com.mountainpass.hyperstate.core.entities.UpdatedEntity;
 import au.com.mountainpass.hyperstate.core.entities.VanillaEntity;
+import au.com.mountainpass.hyperstate.exceptions.EntityChangedException;
 import au.com.mountainpass.hyperstate.exceptions.EntityNotFoundException;
+import au.com.mountainpass.hyperstate.server.config.HyperstateExecutorConfiguration;
 import au.com.mountainpass.hyperstate.server.config.HyperstateTestConfiguration;
 import au.com.mountainpass.hyperstate.server.entities.Account;
 import au.com.mountainpass.hyperstate.server.entities.AccountBuilder;
+import au.com.mountainpass.hyperstate.server.entities.AccountProperties;
 import au.com.mountainpass.hyperstate.server.entities.AccountWithDelete;
 import au.com.mountainpass.hyperstate.server.entities.AccountWithUpdate;
 import au.com.mountainpass.hyperstate.server.entities.Accounts;
+import au.com.mountainpass.hyperstate.server.entities.AccountsWithEmbeddedItems;
+import au.com.mountainpass.hyperstate.server.serialization.RepresentationCache;
+import au.com.mountainpass.hyperstate.server.serialization.SirenModule;
+import au.com.mountainpass.hyperstate.server.serialization.SirenSerializer;
+import au.com.mountainpass.hyperstate.server.serialization.mixins.LinkSerialisationMixin;
+import au.com.mountainpass.hyperstate.server.serialization.mixins.TitledSerialisationMixin;
 import cucumber.api.PendingException;
 import cucumber.api.Scenario;
 import cucumber.api.java.After;
@@ -114,6 +194,81 @@ public class StepDefs {
     @Autowired(required = false)
     private WebDriver webDriver;
 
+    private final Map<String, String> savedUsernames = new ConcurrentHashMap<>();
+
+    private ResponseEntity<?> httpResponse;
+
+    private ResponseEntity<?> previousHttpResponse;
+
+    @Autowired
+    private RepresentationCache representationCache;
+
+    private String sirenSerialized;
+
+    private long cacheHitsBefore;
+
+    private long cacheMissesBefore;
+
+    private String cachedPath;
+
+    private Action<?> checkedAction;
+
+    private ConditionalEntityRepository checkedActionRepository;
+
+    private CompletableFuture<?> checkedActionResult;
+
+    private final Map<RepresentationCache.Variant, String> cachedVariants = new HashMap<>();
+
+    private ResponseEntity<JsonNode> streamedResponse;
+
+    private Path repositoryDirectory;
+
+    /**
+     * Opens the repository kept in {@link #repositoryDirectory}.
+     */
+    private Supplier<EntityRepository> openRepository;
+
+    private WriteAheadLog writeAheadLog;
+
+    @Autowired
+    private SSLContext sslContext;
+
+    private PooledHttpTransport transport;
+
+    private List<ResponseEntity<String>> fetchedResponses;
+
+    private RestTemplateResolver prefetchingResolver;
+
+    private GuavaResponseCache prefetchCache;
+
+    private final AtomicInteger requestsMade = new AtomicInteger();
+
+    /**
+     * Completed once the responses to the client's GETs can be let through.
+     */
+    private volatile CompletableFuture<Void> heldResponses = CompletableFuture
+            .completedFuture(null);
+
+    private final AtomicInteger responsesHeld = new AtomicInteger();
+
+    private List<CompletableFuture<VanillaEntity>> clientResolutions;
+
+    private long lookupsCoalescedBefore;
+
+    private int underlyingLookups;
+
+    private List<CompletableFuture<EntityWrapper<?>>> lookups;
+
+    private final Map<String, Executor> replacedExecutors = new HashMap<>();
+
+    /**
+     * The controller's own repository, while it's replaced by a
+     * {@link RecordingEntityRepository}.
+     */
+    private EntityRepository replacedRepository;
+
+    private RecordingEntityRepository throwingRepository;
+
     @Before
     public void _before(Scenario scenario) {
 
@@ -137,7 +292,30 @@ public class StepDefs {
     }
 
     @After
-    public void _after(Scenario scenario) {
+    public void _after(Scenario scenario) throws IOException {
+        if (repository instanceof Closeable) {
+            ((Closeable) repository).close();
+        }
+        if (repositoryDirectory != null) {
+            FileSystemUtils.deleteRecursively(repositoryDirectory.toFile());
+        }
+        if (transport != null) {
+            transport.close();
+        }
+        final Object controllerTarget = getControllerTarget();
+        for (final Entry<String, Executor> replaced : replacedExecutors
+                .entrySet()) {
+            final Object current = ReflectionTestUtils
+                    .getField(controllerTarget, replaced.getKey());
+            if (current instanceof MonitoredTaskExecutor) {
+                ((MonitoredTaskExecutor) current).shutdown();
+            }
+            ReflectionTestUtils.setField(controllerTarget, replaced.getKey(),
+                    replaced.getValue());
+        }
+        if (replacedRepository != null) {
+            setControllerRepository(replacedRepository);
+        }
     }
 
     @Given("^a Hyperstate controller \"([^\"]*)\" at \"([^\"]*)\"$")
@@ -457,4 +635,1456 @@ public class StepDefs {
             throw ee.getCause();
         }
     }
+
+    private void runConcurrently(final int threads, final Callable<Void> task)
+            throws Throwable {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        try {
+            final List<Future<Void>> results = new ArrayList<>();
+            for (int i = 0; i < threads; ++i) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+            for (final Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @When("^(\\d+) threads concurrently look up \"([^\"]*)\" while the first lookup is in flight$")
+    public void threads_concurrently_look_up_while_the_first_lookup_is_in_flight(
+            final int threads, final String path) throws Throwable {
+        assertThat(repository, instanceOf(CoalescingEntityRepository.class));
+        final InMemoryEntityRepository underlying = (InMemoryEntityRepository) context
+                .getBean(EntityRepository.class);
+        lookupsCoalescedBefore = ((CoalescingEntityRepository) repository)
+                .getCoalescedCount();
+        // lookups queue here, rather than completing, until all are made
+        final List<Runnable> queued = Collections
+                .synchronizedList(new ArrayList<>());
+        final Executor executor = underlying.getExecutor();
+        final boolean synchronous = underlying.isSynchronous();
+        underlying.setSynchronous(false);
+        underlying.setExecutor(queued::add);
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<CompletableFuture<EntityWrapper<?>>>> made = new ArrayList<>();
+            for (int i = 0; i < threads; ++i) {
+                made.add(pool.submit(() -> {
+                    start.await();
+                    return repository.findOne(path);
+                }));
+            }
+            start.countDown();
+            lookups = new ArrayList<>();
+            for (final Future<CompletableFuture<EntityWrapper<?>>> lookup : made) {
+                lookups.add(lookup.get());
+            }
+        } finally {
+            pool.shutdown();
+            underlying.setExecutor(executor);
+            underlying.setSynchronous(synchronous);
+        }
+        underlyingLookups = queued.size();
+        for (final Runnable lookup : queued) {
+            lookup.run();
+        }
+    }
+
+    @Given("^lookups in the underlying repository throw$")
+    public void lookups_in_the_underlying_repository_throw() throws Throwable {
+        throwingRepository = new RecordingEntityRepository(repository);
+        throwingRepository.lookupFailure = new IllegalStateException(
+                "the lookup failed");
+        repository = throwingRepository;
+    }
+
+    @Given("^lookups in the underlying repository no longer throw$")
+    public void lookups_in_the_underlying_repository_no_longer_throw()
+            throws Throwable {
+        throwingRepository.lookupFailure = null;
+    }
+
+    @When("^looking up \"([^\"]*)\" throws$")
+    public void looking_up_throws(final String path) throws Throwable {
+        try {
+            repository.findOne(path).join();
+            fail("expected the lookup to fail");
+        } catch (final CompletionException e) {
+            assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+        }
+    }
+
+    @Then("^looking up \"([^\"]*)\" will find it$")
+    public void looking_up_will_find_it(final String path) throws Throwable {
+        assertThat(repository.findOne(path).get(10, TimeUnit.SECONDS).getId(),
+                equalTo(path));
+    }
+
+    @Then("^all (\\d+) lookups will find the entity at \"([^\"]*)\"$")
+    public void all_lookups_will_find_the_entity_at(final int count,
+            final String path) throws Throwable {
+        assertThat(lookups.size(), equalTo(count));
+        for (final CompletableFuture<EntityWrapper<?>> lookup : lookups) {
+            assertThat(lookup.get().getId(), equalTo(path));
+        }
+    }
+
+    @Then("^the underlying repository will have been looked up (\\d+) times?$")
+    public void the_underlying_repository_will_have_been_looked_up_times(
+            final int count) throws Throwable {
+        assertThat(underlyingLookups, equalTo(count));
+    }
+
+    @Then("^(\\d+) of the lookups will have been coalesced$")
+    public void of_the_lookups_will_have_been_coalesced(final int count)
+            throws Throwable {
+        assertThat(((CoalescingEntityRepository) repository)
+                .getCoalescedCount() - lookupsCoalescedBefore,
+                equalTo((long) count));
+    }
+
+    @Given("^lookups in the entity repository are coalesced$")
+    public void lookups_in_the_entity_repository_are_coalesced()
+            throws Throwable {
+        repository = new CoalescingEntityRepository(repository);
+    }
+
+    @Given("^the entity repository doesn't maintain indexes$")
+    public void the_entity_repository_doesn_t_maintain_indexes()
+            throws Throwable {
+        repository = new RecordingEntityRepository(repository);
+    }
+
+    @Given("^the entity repository doesn't support range queries$")
+    public void the_entity_repository_doesn_t_support_range_queries()
+            throws Throwable {
+        repository = new RecordingEntityRepository(repository, false);
+    }
+
+    @Given("^the entity repository is kept in memory-mapped files$")
+    public void the_entity_repository_is_kept_in_memory_mapped_files()
+            throws Throwable {
+        repositoryDirectory = Files.createTempDirectory("hyperstate");
+        // small segments, so that the entities are spread over several
+        openRepository = () -> new MappedFileEntityRepository(
+                repositoryDirectory, new JsonEntityCodec(), 4096);
+        repository = openRepository.get();
+    }
+
+    @Given("^the entity repository is kept in memory with a write-ahead log$")
+    public void the_entity_repository_is_kept_in_memory_with_a_write_ahead_log()
+            throws Throwable {
+        repositoryDirectory = Files.createTempDirectory("hyperstate");
+        openRepository = () -> {
+            // snapshots are only taken when the scenario asks for them
+            writeAheadLog = new WriteAheadLog(repositoryDirectory,
+                    new BinaryEntityCodec(), Duration.ZERO);
+            return new InMemoryEntityRepository(writeAheadLog);
+        };
+        repository = openRepository.get();
+    }
+
+    @When("^a snapshot of the repository is taken$")
+    public void a_snapshot_of_the_repository_is_taken() throws Throwable {
+        writeAheadLog.snapshot();
+    }
+
+    @When("^the write-ahead log can no longer be written to$")
+    public void the_write_ahead_log_can_no_longer_be_written_to()
+            throws Throwable {
+        final Field open = ReflectionUtils.findField(WriteAheadLog.class,
+                "open");
+        ReflectionUtils.makeAccessible(open);
+        final Object batch = ReflectionUtils.getField(open, writeAheadLog);
+        final Field channel = ReflectionUtils.findField(batch.getClass(),
+                "channel");
+        ReflectionUtils.makeAccessible(channel);
+        ((FileChannel) ReflectionUtils.getField(channel, batch)).close();
+    }
+
+    @When("^the write-ahead log's writer is interrupted$")
+    public void the_write_ahead_log_s_writer_is_interrupted()
+            throws Throwable {
+        final Field writer = ReflectionUtils.findField(WriteAheadLog.class,
+                "writer");
+        ReflectionUtils.makeAccessible(writer);
+        final Thread thread = (Thread) ReflectionUtils.getField(writer,
+                writeAheadLog);
+        thread.interrupt();
+        thread.join(TimeUnit.SECONDS.toMillis(10));
+        assertThat(thread.isAlive(), equalTo(false));
+    }
+
+    @Then("^changing the username at \"([^\"]*)\" to \"([^\"]*)\" will fail$")
+    public void changing_the_username_at_to_will_fail(final String path,
+            final String username) throws Throwable {
+        try {
+            the_username_at_has_been_changed_to(path, username);
+            fail("expected the save to fail");
+        } catch (final CompletionException e) {
+            assertThat(e.getCause(), instanceOf(UncheckedIOException.class));
+        }
+    }
+
+    @Then("^looking up \"([^\"]*)\" will fail$")
+    public void looking_up_will_fail(final String path) throws Throwable {
+        try {
+            repository.findOne(path).join();
+            fail("expected the lookup to fail");
+        } catch (final CompletionException e) {
+            assertThat(e.getCause(), instanceOf(UncheckedIOException.class));
+        }
+    }
+
+    @Then("^only the latest snapshot and the log since it will be kept$")
+    public void only_the_latest_snapshot_and_the_log_since_it_will_be_kept()
+            throws Throwable {
+        final List<String> files;
+        try (Stream<Path> list = Files.list(repositoryDirectory)) {
+            files = list.map(file -> file.getFileName().toString()).sorted()
+                    .collect(Collectors.toList());
+        }
+        assertThat(files, hasSize(2));
+        assertThat(files.get(0), endsWith(".log"));
+        assertThat(files.get(1), endsWith(".snapshot"));
+        assertThat(files.get(0).replace(".log", ""),
+                equalTo(files.get(1).replace(".snapshot", "")));
+    }
+
+    @Then("^the write-ahead log will have been synced fewer times than it was written to$")
+    public void the_write_ahead_log_will_have_been_synced_fewer_times_than_it_was_written_to()
+            throws Throwable {
+        assertThat(writeAheadLog.getSyncs(),
+                lessThan((long) savedUsernames.size()));
+    }
+
+    @When("^the repository is reopened$")
+    public void the_repository_is_reopened() throws Throwable {
+        ((Closeable) repository).close();
+        repository = openRepository.get();
+    }
+
+    @When("^the repository is reopened after a crash tore its last write$")
+    public void the_repository_is_reopened_after_a_crash_tore_its_last_write()
+            throws Throwable {
+        ((Closeable) repository).close();
+        final Path segment;
+        try (Stream<Path> files = Files.list(repositoryDirectory)) {
+            segment = files.max(Comparator.naturalOrder()).get();
+        }
+        try (FileChannel channel = FileChannel.open(segment,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(MapMode.READ_WRITE, 0,
+                    channel.size());
+            // the last byte of the last record, which is never zero
+            int last = buffer.capacity() - 1;
+            while (buffer.get(last) == 0) {
+                --last;
+            }
+            buffer.put(last, (byte) ~buffer.get(last));
+        }
+        repository = openRepository.get();
+    }
+
+    @Given("^the entity repository is kept off the heap with a hot set of (\\d+) entities$")
+    public void the_entity_repository_is_kept_off_the_heap_with_a_hot_set_of_entities(
+            final int hotSetSize) throws Throwable {
+        // small slabs, so that the entities are spread over several
+        repository = new OffHeapEntityRepository(new BinaryEntityCodec(),
+                4096, hotSetSize);
+    }
+
+    @When("^every saved entity is saved again (\\d+) times$")
+    public void every_saved_entity_is_saved_again_times(final int times)
+            throws Throwable {
+        for (int i = 0; i < times; ++i) {
+            repository.saveAll(
+                    repository.findAll(savedUsernames.keySet()).join())
+                    .join();
+        }
+    }
+
+    @Then("^at most (\\d+) entities will be held on the heap$")
+    public void at_most_entities_will_be_held_on_the_heap(final int count)
+            throws Throwable {
+        assertThat(((OffHeapEntityRepository) repository).getHotSetSize(),
+                lessThanOrEqualTo((long) count));
+    }
+
+    @Then("^at most (\\d+) bytes will have been allocated off the heap$")
+    public void at_most_bytes_will_have_been_allocated_off_the_heap(
+            final int bytes) throws Throwable {
+        assertThat(((OffHeapEntityRepository) repository).getAllocatedBytes(),
+                lessThanOrEqualTo((long) bytes));
+    }
+
+    @Then("^the entity at \"([^\"]*)\" will be restored the same from binary as from JSON$")
+    public void the_entity_at_will_be_restored_the_same_from_binary_as_from_JSON(
+            final String path) throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        final JsonEntityCodec json = new JsonEntityCodec(om);
+        final BinaryEntityCodec binary = new BinaryEntityCodec(om);
+        final EntityWrapper<?> fromJson = json.decode(repository,
+                ByteBuffer.wrap(json.encode(entity)));
+        final EntityWrapper<?> fromBinary = binary.decode(repository,
+                ByteBuffer.wrap(binary.encode(entity)));
+        assertThat(fromBinary.getClass(), equalTo(entity.getClass()));
+        assertThat(new String(json.encode(fromBinary), StandardCharsets.UTF_8),
+                equalTo(new String(json.encode(fromJson),
+                        StandardCharsets.UTF_8)));
+    }
+
+    @Then("^the entity at \"([^\"]*)\" will be less than half the size in binary as in JSON$")
+    public void the_entity_at_will_be_less_than_half_the_size_in_binary_as_in_JSON(
+            final String path) throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        assertThat(new BinaryEntityCodec(om).encode(entity).length * 2,
+                lessThan(new JsonEntityCodec(om).encode(entity).length));
+    }
+
+    @When("^(\\d+) threads concurrently save and read (\\d+) \"Account\" domain entities each$")
+    public void threads_concurrently_save_and_read_domain_entities_each(
+            final int threads, final int count) throws Throwable {
+        runConcurrently(threads, () -> {
+            final String prefix = "/accounts/" + Thread.currentThread().getId();
+            for (int i = 0; i < count; ++i) {
+                final String path = prefix + "/" + i;
+                final String username = "user" + path;
+                final Account account = new Account(repository,
+                        new AccountProperties(username, LocalDateTime.now()),
+                        path, username);
+                repository.save(account).join();
+                savedUsernames.put(path, username);
+                final EntityWrapper<?> found = repository.findOne(path).join();
+                assertThat(found, sameInstance(account));
+            }
+            return null;
+        });
+    }
+
+    @Then("^the repository will contain every saved entity$")
+    public void the_repository_will_contain_every_saved_entity()
+            throws Throwable {
+        assertThat(savedUsernames.size(), greaterThan(0));
+        for (final Entry<String, String> saved : savedUsernames.entrySet()) {
+            final EntityWrapper<?> found = repository.findOne(saved.getKey())
+                    .join();
+            assertThat(found, notNullValue());
+            assertThat(found.getProperty("username"),
+                    equalTo(saved.getValue()));
+        }
+    }
+
+    @When("^(\\d+) \"Account\" domain entities are saved in one batch$")
+    public void domain_entities_are_saved_in_one_batch(final int count)
+            throws Throwable {
+        final List<Account> accounts = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            final String path = "/accounts/batch/" + i;
+            final String username = "user" + i;
+            accounts.add(new Account(repository,
+                    new AccountProperties(username, LocalDateTime.now()), path,
+                    username));
+            savedUsernames.put(path, username);
+        }
+        final List<Account> saved = repository.saveAll(accounts).join();
+        assertThat(saved, equalTo(accounts));
+    }
+
+    @Then("^looking them up in one batch will find every saved entity$")
+    public void looking_them_up_in_one_batch_will_find_every_saved_entity()
+            throws Throwable {
+        final List<String> paths = new ArrayList<>(savedUsernames.keySet());
+        final List<EntityWrapper<?>> found = repository.findAll(paths).join();
+        assertThat(found.size(), equalTo(paths.size()));
+        for (int i = 0; i < paths.size(); ++i) {
+            assertThat(found.get(i).getId(), equalTo(paths.get(i)));
+            assertThat(found.get(i).getProperty("username"),
+                    equalTo(savedUsernames.get(paths.get(i))));
+        }
+    }
+
+    @Then("^looking them up in one batch will find every saved entity but \"([^\"]*)\"$")
+    public void looking_them_up_in_one_batch_will_find_every_saved_entity_but(
+            final String missing) throws Throwable {
+        final List<String> paths = new ArrayList<>(savedUsernames.keySet());
+        final List<EntityWrapper<?>> found = repository.findAll(paths).join();
+        for (int i = 0; i < paths.size(); ++i) {
+            if (paths.get(i).equals(missing)) {
+                assertThat(found.get(i), nullValue());
+            } else {
+                assertThat(found.get(i).getProperty("username"),
+                        equalTo(savedUsernames.get(paths.get(i))));
+            }
+        }
+    }
+
+    @When("^they are deleted in one batch$")
+    public void they_are_deleted_in_one_batch() throws Throwable {
+        repository.deleteAll(savedUsernames.keySet()).join();
+    }
+
+    @Then("^looking them up in one batch will find no entities$")
+    public void looking_them_up_in_one_batch_will_find_no_entities()
+            throws Throwable {
+        final List<EntityWrapper<?>> found = repository
+                .findAll(savedUsernames.keySet()).join();
+        assertThat(found.size(), equalTo(savedUsernames.size()));
+        for (final EntityWrapper<?> entity : found) {
+            assertThat(entity, nullValue());
+        }
+    }
+
+    @Then("^looking up the accounts with username \"([^\"]*)\" will find \"([^\"]*)\"$")
+    public void looking_up_the_accounts_with_username_will_find(
+            final String username, final String path) throws Throwable {
+        final List<EntityWrapper<?>> found = repository
+                .findByProperty("username", username).join();
+        assertThat(found.size(), equalTo(1));
+        assertThat(found.get(0).getId(), equalTo(path));
+    }
+
+    @Then("^looking up the accounts with username \"([^\"]*)\" will find nothing$")
+    public void looking_up_the_accounts_with_username_will_find_nothing(
+            final String username) throws Throwable {
+        assertThat(repository.findByProperty("username", username).join(),
+                empty());
+    }
+
+    @Given("^it has (\\d+) \"Account\" sub-entities$")
+    public void it_has_Account_sub_entities(final int count) throws Throwable {
+        the_entity_at_has_Account_sub_entities("/accounts", count);
+    }
+
+    @Given("^the entity at \"([^\"]*)\" has (\\d+) \"Account\" sub-entities$")
+    public void the_entity_at_has_Account_sub_entities(final String path,
+            final int count) throws Throwable {
+        final Accounts accounts = repository.findOne(path, Accounts.class)
+                .join();
+        final List<Account> children = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            final String username = String.format("paged%03d", i);
+            children.add(new Account(repository,
+                    new AccountProperties(username, LocalDateTime.now()),
+                    path + "/" + username, username));
+        }
+        repository.saveAll(children).join();
+        accounts.setEntities(children.stream()
+                .map(child -> new EntityRelationship(child, Relationship.ITEM))
+                .toArray(EntityRelationship[]::new));
+        repository.save(accounts).join();
+    }
+
+    @Given("^(\\d+) \"Account\" domain entities that aren't its sub-entities are saved under \"([^\"]*)\"$")
+    public void account_domain_entities_that_aren_t_its_sub_entities_are_saved_under(
+            final int count, final String prefix) throws Throwable {
+        final List<Account> others = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            final String username = String.format("other%03d", i);
+            others.add(new Account(repository,
+                    new AccountProperties(username, LocalDateTime.now()),
+                    prefix + username, username));
+        }
+        repository.saveAll(others).join();
+    }
+
+    @Given("^an \"Accounts\" domain entity that embeds its items at \"([^\"]*)\"$")
+    public void an_Accounts_domain_entity_that_embeds_its_items_at(
+            final String path) throws Throwable {
+        repository.save(new AccountsWithEmbeddedItems(repository, path))
+                .join();
+    }
+
+    @Then("^the sub-entities of \"([^\"]*)\" will only be linked to$")
+    public void the_sub_entities_of_will_only_be_linked_to(final String path)
+            throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        assertThat(entity.getEntitiesView(), not(empty()));
+        for (final EntityRelationship relationship : entity
+                .getEntitiesView()) {
+            assertThat(relationship.getEntity(), instanceOf(LinkedEntity.class));
+            assertThat(relationship.isEmbedded(), equalTo(false));
+        }
+    }
+
+    @Then("^the entity at \"([^\"]*)\" won't hold its embedded sub-entities$")
+    public void the_entity_at_won_t_hold_its_embedded_sub_entities(
+            final String path) throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        assertThat(entity.getEntitiesView(), not(empty()));
+        for (final EntityRelationship relationship : entity
+                .getEntitiesView()) {
+            assertThat(relationship.isEmbedded(), equalTo(true));
+            assertThat(relationship.getEmbeddedEntity(), nullValue());
+        }
+    }
+
+    @Then("^the sub-entities of \"([^\"]*)\" will resolve to the entities saved at their paths$")
+    public void the_sub_entities_of_will_resolve_to_the_entities_saved_at_their_paths(
+            final String path) throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        for (final EntityRelationship relationship : entity
+                .getEntitiesView()) {
+            assertThat(relationship.resolve(Account.class).join(),
+                    sameInstance(repository
+                            .findOne(relationship.getEntity().getId()).join()));
+        }
+    }
+
+    @Then("^every sub-entity in the streamed response will have a \"([^\"]*)\" property$")
+    public void every_sub_entity_in_the_streamed_response_will_have_a_property(
+            final String name) throws Throwable {
+        final JsonNode entities = streamedResponse.getBody().path("entities");
+        assertThat(entities.size(), greaterThan(0));
+        for (final JsonNode entity : entities) {
+            assertThat(entity.path("properties").has(name), equalTo(true));
+        }
+    }
+
+    @Then("^no sub-entity in the streamed response will have properties$")
+    public void no_sub_entity_in_the_streamed_response_will_have_properties()
+            throws Throwable {
+        final JsonNode entities = streamedResponse.getBody().path("entities");
+        assertThat(entities.size(), greaterThan(0));
+        for (final JsonNode entity : entities) {
+            assertThat(entity.has("properties"), equalTo(false));
+        }
+    }
+
+    @Then("^the response will have (\\d+) sub-entities$")
+    public void the_response_will_have_sub_entities(final int count)
+            throws Throwable {
+        assertThat(currentEntity.getEntities().size(), equalTo(count));
+    }
+
+    @Then("^it will have an? \"([^\"]*)\" link$")
+    public void it_will_have_a_link(final String rel) throws Throwable {
+        assertThat(currentEntity.getLink(rel), notNullValue());
+    }
+
+    @Then("^it will not have an? \"([^\"]*)\" link$")
+    public void it_will_not_have_a_link(final String rel) throws Throwable {
+        assertThat(currentEntity.getLink(rel), nullValue());
+    }
+
+    @Then("^paging through the entities under \"([^\"]*)\" (\\d+) at a time will find every saved entity in order$")
+    public void paging_through_the_entities_under_at_a_time_will_find_every_saved_entity_in_order(
+            final String prefix, final int limit) throws Throwable {
+        final List<String> expected = new ArrayList<>(
+                new TreeSet<>(savedUsernames.keySet()));
+
+        final List<String> forwards = new ArrayList<>();
+        List<EntityWrapper<?>> page = repository
+                .findRange(prefix, null, null, limit).join();
+        while (!page.isEmpty()) {
+            assertThat(page.size(), lessThanOrEqualTo(limit));
+            page.forEach(entity -> forwards.add(entity.getId()));
+            page = repository.findRange(prefix,
+                    forwards.get(forwards.size() - 1), null, limit).join();
+        }
+        assertThat(forwards, equalTo(expected));
+
+        final List<String> backwards = new ArrayList<>();
+        page = repository.findRange(prefix, null,
+                expected.get(expected.size() - 1), limit).join();
+        backwards.add(expected.get(expected.size() - 1));
+        while (!page.isEmpty()) {
+            for (int i = page.size() - 1; i >= 0; --i) {
+                backwards.add(page.get(i).getId());
+            }
+            page = repository.findRange(prefix, null,
+                    backwards.get(backwards.size() - 1), limit).join();
+        }
+        Collections.reverse(backwards);
+        assertThat(backwards, equalTo(expected));
+    }
+
+    @When("^(\\d+) threads concurrently increment the username at \"([^\"]*)\" (\\d+) times each$")
+    public void threads_concurrently_increment_the_username_at_times_each(
+            final int threads, final String path, final int count)
+                    throws Throwable {
+        runConcurrently(threads, () -> {
+            for (int i = 0; i < count; ++i) {
+                boolean saved;
+                do {
+                    final Account current = repository
+                            .findOne(path, Account.class).join();
+                    final int value = Integer.parseInt(
+                            current.getProperties().getUsername());
+                    final Account next = new Account(repository,
+                            new AccountProperties(Integer.toString(value + 1),
+                                    current.getProperties().getCreationDate()),
+                            path, current.getTitle());
+                    saved = repository.compareAndSave(current, next).join();
+                } while (!saved);
+            }
+            return null;
+        });
+    }
+
+    @Then("^the username at \"([^\"]*)\" will be \"([^\"]*)\"$")
+    public void the_username_at_will_be(final String path,
+            final String username) throws Throwable {
+        final Account account = repository.findOne(path, Account.class).join();
+        assertThat(account.getProperties().getUsername(), equalTo(username));
+    }
+
+    @Then("^the entity at \"([^\"]*)\" will still be stored in the repository$")
+    public void the_entity_at_will_still_be_stored_in_the_repository(
+            final String path) throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        assertThat(entity.getRepository(), sameInstance(repository));
+    }
+
+    @Then("^the entity at \"([^\"]*)\" will be serialized the same with and without the Siren serializer$")
+    public void the_entity_at_will_be_serialized_the_same_with_and_without_the_Siren_serializer(
+            final String path) throws Throwable {
+        // as it's written to clients, with any embedded sub-entities resolved
+        final EntityWrapper<?> entity = repository.findOne(path).join()
+                .page(null).join();
+
+        final ObjectMapper beanMapper = Jackson2ObjectMapperBuilder.json()
+                .build();
+        beanMapper.addMixIn(Link.class, LinkSerialisationMixin.class);
+        beanMapper.addMixIn(Titled.class, TitledSerialisationMixin.class);
+        beanMapper.findAndRegisterModules();
+        final ObjectMapper sirenMapper = beanMapper.copy()
+                .registerModule(new SirenModule());
+        assertThat(
+                sirenMapper.getSerializerProviderInstance()
+                        .findValueSerializer(entity.getClass()),
+                instanceOf(SirenSerializer.class));
+
+        // hrefs are built from the current request
+        RequestContextHolder.setRequestAttributes(
+                new ServletRequestAttributes(new MockHttpServletRequest()));
+        try {
+            sirenSerialized = sirenMapper.writeValueAsString(entity);
+            assertThat(sirenSerialized,
+                    equalTo(beanMapper.writeValueAsString(entity)));
+        } finally {
+            RequestContextHolder.resetRequestAttributes();
+        }
+    }
+
+    @Then("^its sub-entities will have been written with the fields (.*)$")
+    public void its_sub_entities_will_have_been_written_with_the_fields(
+            final List<String> fields) throws Throwable {
+        final JsonNode entities = om.readTree(sirenSerialized)
+                .get("entities");
+        assertThat(entities.size(), greaterThan(0));
+        // read as tokens, as the link and the entity both have a title
+        try (JsonParser parser = om.getFactory()
+                .createParser(sirenSerialized)) {
+            while (!"entities".equals(parser.getCurrentName())
+                    || parser.getCurrentToken() != JsonToken.START_ARRAY) {
+                parser.nextToken();
+            }
+            for (int i = 0; i < entities.size(); ++i) {
+                assertThat(parser.nextToken(), equalTo(JsonToken.START_OBJECT));
+                final List<String> written = new ArrayList<>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    written.add(parser.getCurrentName());
+                    parser.nextToken();
+                    parser.skipChildren();
+                }
+                assertThat(written, equalTo(fields));
+            }
+        }
+    }
+
+    @Given("^\"([^\"]*)\" has been requested over HTTP$")
+    public void has_been_requested_over_HTTP(final String path)
+            throws Throwable {
+        exchange(path, HttpMethod.GET, new HttpHeaders(), null);
+        assertThat(httpResponse.getHeaders().getETag(), notNullValue());
+    }
+
+    @When("^\"([^\"]*)\" is requested over HTTP with its entity tag$")
+    public void is_requested_over_HTTP_with_its_entity_tag(final String path)
+            throws Throwable {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setIfNoneMatch(httpResponse.getHeaders().getETag());
+        exchange(path, HttpMethod.GET, headers, null);
+    }
+
+    @When("^\"([^\"]*)\" is requested over HTTP again$")
+    public void is_requested_over_HTTP_again(final String path)
+            throws Throwable {
+        previousHttpResponse = httpResponse;
+        cacheHitsBefore = representationCache.getHitCount();
+        cacheMissesBefore = representationCache.getMissCount();
+        exchange(path, HttpMethod.GET, new HttpHeaders(), null);
+        assertThat(httpResponse.getStatusCode(), equalTo(HttpStatus.OK));
+    }
+
+    @Then("^the response will have been served from the representation cache$")
+    public void the_response_will_have_been_served_from_the_representation_cache()
+            throws Throwable {
+        assertThat(representationCache.getHitCount(),
+                equalTo(cacheHitsBefore + 1));
+        assertThat(representationCache.getMissCount(),
+                equalTo(cacheMissesBefore));
+    }
+
+    @Then("^the response will have been serialized again$")
+    public void the_response_will_have_been_serialized_again()
+            throws Throwable {
+        assertThat(representationCache.getHitCount(),
+                equalTo(cacheHitsBefore));
+        assertThat(representationCache.getMissCount(),
+                equalTo(cacheMissesBefore + 1));
+    }
+
+    @Then("^it will be the same as the previous response$")
+    public void it_will_be_the_same_as_the_previous_response()
+            throws Throwable {
+        assertThat(httpResponse.getBody(),
+                equalTo(previousHttpResponse.getBody()));
+        assertThat(httpResponse.getHeaders().getETag(),
+                equalTo(previousHttpResponse.getHeaders().getETag()));
+    }
+
+    @Then("^its body will contain \"([^\"]*)\"$")
+    public void its_body_will_contain(final String text) throws Throwable {
+        assertThat(httpResponse.getBody().toString(), containsString(text));
+    }
+
+    @When("^a representation of \"([^\"]*)\" that was being serialized while it was saved is cached$")
+    public void a_representation_that_was_being_serialized_while_it_was_saved_is_cached(
+            final String path) throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        final long version = entity.getVersion();
+        final String eTag = cacheTag(entity);
+        repository.save(entity).join();
+        representationCache.put(path, cacheVariant(null), entity, eTag,
+                "stale".getBytes(StandardCharsets.UTF_8), version);
+    }
+
+    @When("^a representation of \"([^\"]*)\" that was being serialized while \"([^\"]*)\" was saved is cached$")
+    public void a_representation_that_was_being_serialized_while_another_entity_was_saved_is_cached(
+            final String path, final String otherPath) throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        final long version = entity.getVersion();
+        repository.save(new Account(repository,
+                new AccountProperties("other", LocalDateTime.now()),
+                otherPath, "other")).join();
+        representationCache.put(path, cacheVariant(null), entity,
+                cacheTag(entity), "current".getBytes(StandardCharsets.UTF_8),
+                version);
+    }
+
+    @When("^a representation of \"([^\"]*)\" is cached$")
+    public void a_representation_of_is_cached(final String path)
+            throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        representationCache.put(path, cacheVariant(null), entity,
+                cacheTag(entity), "current".getBytes(StandardCharsets.UTF_8),
+                entity.getVersion());
+    }
+
+    @Then("^the representation cache will have nothing for \"([^\"]*)\"$")
+    public void the_representation_cache_will_have_nothing_for(
+            final String path) throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        assertThat(representationCache.get(path, cacheVariant(null), entity,
+                cacheTag(entity)), nullValue());
+    }
+
+    @Then("^the representation cache will serve it for \"([^\"]*)\"$")
+    public void the_representation_cache_will_serve_it_for(final String path)
+            throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        final byte[] body = representationCache.get(path, cacheVariant(null),
+                entity, cacheTag(entity));
+        assertThat(body, notNullValue());
+        assertThat(new String(body, StandardCharsets.UTF_8),
+                equalTo("current"));
+    }
+
+    @When("^representations of \"([^\"]*)\" that differ only in their (base URI|media type|locale|cursor) are cached$")
+    public void representations_that_differ_only_in_their_are_cached(
+            final String path, final String component) throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        cachedPath = path;
+        cachedVariants.put(cacheVariant(null), "default");
+        cachedVariants.put(cacheVariant(component), component);
+        assertThat(cachedVariants.size(), equalTo(2));
+        for (final Entry<RepresentationCache.Variant, String> cached : cachedVariants
+                .entrySet()) {
+            representationCache.put(path, cached.getKey(), entity,
+                    cacheTag(entity),
+                    cached.getValue().getBytes(StandardCharsets.UTF_8),
+                    entity.getVersion());
+        }
+    }
+
+    @Then("^the representation cache will serve each of them for its own (?:base URI|media type|locale|cursor)$")
+    public void the_representation_cache_will_serve_each_of_them_for_its_own()
+            throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(cachedPath).join();
+        for (final Entry<RepresentationCache.Variant, String> cached : cachedVariants
+                .entrySet()) {
+            final byte[] body = representationCache.get(cachedPath,
+                    cached.getKey(), entity, cacheTag(entity));
+            assertThat(body, notNullValue());
+            assertThat(new String(body, StandardCharsets.UTF_8),
+                    equalTo(cached.getValue()));
+        }
+    }
+
+    /**
+     * @param component
+     *            the part of the variant to change, or {@literal null} for
+     *            the default variant
+     */
+    private RepresentationCache.Variant cacheVariant(final String component) {
+        final String baseUri = getBaseUri().toString();
+        final String mediaType = MediaTypes.SIREN_JSON_VALUE;
+        final String locale = "en_AU";
+        if (component == null) {
+            return new RepresentationCache.Variant(baseUri, mediaType, locale,
+                    null);
+        }
+        switch (component) {
+        case "base URI":
+            return new RepresentationCache.Variant("https://example.com",
+                    mediaType, locale, null);
+        case "media type":
+            return new RepresentationCache.Variant(baseUri,
+                    MediaType.APPLICATION_JSON_VALUE, locale, null);
+        case "locale":
+            return new RepresentationCache.Variant(baseUri, mediaType, "fr_FR",
+                    null);
+        case "cursor":
+            return new RepresentationCache.Variant(baseUri, mediaType, locale,
+                    "10");
+        default:
+            throw new PendingException("TODO: " + component);
+        }
+    }
+
+    private static String cacheTag(final EntityWrapper<?> entity) {
+        return "\"" + entity.getVersion() + "\"";
+    }
+
+    @Given("^the entity at \"([^\"]*)\" has been saved again$")
+    public void the_entity_at_has_been_saved_again(final String path)
+            throws Throwable {
+        repository.save(repository.findOne(path).join()).join();
+    }
+
+    @Given("^the username at \"([^\"]*)\" has been changed to \"([^\"]*)\"$")
+    public void the_username_at_has_been_changed_to(final String path,
+            final String username) throws Throwable {
+        final Account current = repository.findOne(path, Account.class).join();
+        repository.save(new Account(repository,
+                new AccountProperties(username,
+                        current.getProperties().getCreationDate()),
+                path, current.getTitle())).join();
+    }
+
+    @When("^the username at \"([^\"]*)\" has been changed in place to \"([^\"]*)\"$")
+    public void the_username_at_has_been_changed_in_place_to(
+            final String path, final String username) throws Throwable {
+        final Account current = repository.findOne(path, Account.class).join();
+        current.getProperties().setUsername(username);
+        repository.save(current).join();
+    }
+
+    @When("^the username at \"([^\"]*)\" is changed in place to \"([^\"]*)\" with compare and save$")
+    public void the_username_at_is_changed_in_place_to_with_compare_and_save(
+            final String path, final String username) throws Throwable {
+        final Account current = repository.findOne(path, Account.class).join();
+        current.getProperties().setUsername(username);
+        assertThat(repository.compareAndSave(current, current).join(),
+                equalTo(true));
+    }
+
+    @When("^the \"([^\"]*)\" action at \"([^\"]*)\" is submitted over HTTP with its entity tag and$")
+    public void the_action_at_is_submitted_over_HTTP_with_its_entity_tag_and(
+            final String actionName, final String path,
+            final Map<String, String> properties) throws Throwable {
+        final Action<?> action = repository.findOne(path).join()
+                .getAction(actionName);
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setIfMatch(httpResponse.getHeaders().getETag());
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+        final MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+        form.setAll(properties);
+        form.set("action", actionName);
+        exchange(path, HttpMethod.valueOf(action.getNature().name()), headers,
+                form);
+    }
+
+    @When("^the \"([^\"]*)\" action at \"([^\"]*)\" is submitted over HTTP$")
+    public void the_action_at_is_submitted_over_HTTP(final String actionName,
+            final String path) throws Throwable {
+        the_action_at_is_submitted_over_HTTP_with(actionName, path,
+                new HashMap<>());
+    }
+
+    @When("^the \"([^\"]*)\" action at \"([^\"]*)\" is submitted over HTTP with$")
+    public void the_action_at_is_submitted_over_HTTP_with(
+            final String actionName, final String path,
+            final Map<String, String> properties) throws Throwable {
+        final Action<?> action = repository.findOne(path).join()
+                .getAction(actionName);
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+        final MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+        form.setAll(properties);
+        form.set("action", actionName);
+        exchange(path, HttpMethod.valueOf(action.getNature().name()), headers,
+                form);
+    }
+
+    @Given("^the JVM doesn't support virtual threads$")
+    public void the_JVM_doesn_t_support_virtual_threads() throws Throwable {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            throw new PendingException(
+                    "skipped. This JVM supports virtual threads");
+        } catch (final NoSuchMethodException e) {
+            // expected on Java 8
+        }
+    }
+
+    @Given("^the controller's executors are created in \"([^\"]*)\" mode$")
+    public void the_controller_s_executors_are_created_in_mode(
+            final String mode) throws Throwable {
+        final HyperstateExecutorConfiguration configuration = new HyperstateExecutorConfiguration();
+        ReflectionTestUtils.setField(configuration, "mode", mode);
+        replaceControllerExecutor("actionExecutor",
+                configuration.actionExecutor(2, 4, 100));
+        replaceControllerExecutor("serializationExecutor",
+                configuration.serializationExecutor(2, 4, 100));
+    }
+
+    private void replaceControllerExecutor(final String field,
+            final Executor executor) throws Exception {
+        if (executor instanceof MonitoredTaskExecutor) {
+            ((MonitoredTaskExecutor) executor).afterPropertiesSet();
+        }
+        final Object controllerTarget = getControllerTarget();
+        replacedExecutors.putIfAbsent(field, (Executor) ReflectionTestUtils
+                .getField(controllerTarget, field));
+        ReflectionTestUtils.setField(controllerTarget, field, executor);
+    }
+
+    /**
+     * @return the test controller itself, rather than the proxy that runs its
+     *         {@literal @}Async methods
+     */
+    private Object getControllerTarget() {
+        return AopTestUtils.getUltimateTargetObject(testController);
+    }
+
+    @Then("^the controller's executors will be bounded thread pools$")
+    public void the_controller_s_executors_will_be_bounded_thread_pools()
+            throws Throwable {
+        final Object controllerTarget = getControllerTarget();
+        assertThat(ReflectionTestUtils.getField(controllerTarget,
+                "actionExecutor"), instanceOf(MonitoredTaskExecutor.class));
+        assertThat(
+                ReflectionTestUtils.getField(controllerTarget,
+                        "serializationExecutor"),
+                instanceOf(MonitoredTaskExecutor.class));
+    }
+
+    @Given("^the \"([^\"]*)\" action at \"([^\"]*)\" has been checked against its entity tag$")
+    public void the_action_at_has_been_checked_against_its_entity_tag(
+            final String actionName, final String path) throws Throwable {
+        final EntityWrapper<?> entity = repository.findOne(path).join();
+        checkedAction = entity.getAction(actionName);
+        assertThat(checkedAction, notNullValue());
+        checkedActionRepository = new ConditionalEntityRepository(repository,
+                entity);
+    }
+
+    @When("^the checked action is called with$")
+    public void the_checked_action_is_called_with(
+            final Map<String, Object> properties) throws Throwable {
+        checkedActionResult = checkedActionRepository
+                .apply(() -> checkedAction.invoke(properties));
+    }
+
+    @Then("^it will fail because the entity has changed$")
+    public void it_will_fail_because_the_entity_has_changed()
+            throws Throwable {
+        try {
+            checkedActionResult.join();
+            fail("expected the action to fail");
+        } catch (final CompletionException e) {
+            assertThat(e.getCause(), instanceOf(EntityChangedException.class));
+        }
+    }
+
+    @Then("^the HTTP response status will be (\\d+)$")
+    public void the_HTTP_response_status_will_be(final int status)
+            throws Throwable {
+        assertThat(httpResponse.getStatusCode().value(), equalTo(status));
+    }
+
+    @When("^\"([^\"]*)\" is streamed over HTTP$")
+    public void is_streamed_over_HTTP(final String path) throws Throwable {
+        streamedResponse = asyncRestTemplate.execute(
+                getBaseUri().resolve(path + "?"
+                        + HyperstateController.STREAM_PARAMETER + "=true"),
+                HttpMethod.GET,
+                request -> request.getHeaders()
+                        .setAccept(Arrays.asList(MediaTypes.SIREN_JSON)),
+                response -> new ResponseEntity<>(
+                        new ObjectMapper().readTree(response.getBody()),
+                        response.getHeaders(), response.getStatusCode()))
+                .get();
+    }
+
+    @Then("^the streamed response will have (\\d+) sub-entities$")
+    public void the_streamed_response_will_have_sub_entities(final int count)
+            throws Throwable {
+        assertThat(streamedResponse.getBody().get("entities").size(),
+                equalTo(count));
+    }
+
+    @Then("^the streamed response will not have an? \"([^\"]*)\" link$")
+    public void the_streamed_response_will_not_have_a_link(final String rel)
+            throws Throwable {
+        for (final JsonNode link : streamedResponse.getBody().path("links")) {
+            for (final JsonNode linkRel : link.path("rel")) {
+                assertThat(linkRel.asText(), not(equalTo(rel)));
+            }
+        }
+    }
+
+    @Given("^the controller's range queries are recorded$")
+    public void the_controller_s_range_queries_are_recorded()
+            throws Throwable {
+        replacedRepository = getControllerRepository();
+        setControllerRepository(
+                new RecordingEntityRepository(replacedRepository));
+    }
+
+    @Then("^the controller will have read the sub-entities (\\d+) at a time$")
+    public void the_controller_will_have_read_the_sub_entities_at_a_time(
+            final int limit) throws Throwable {
+        final List<Integer> limits = ((RecordingEntityRepository) getControllerRepository()).rangeLimits;
+        assertThat(limits, not(empty()));
+        assertThat(limits, everyItem(equalTo(limit)));
+    }
+
+    /**
+     * The test controller has a repository field of its own, so the
+     * controller's is found by its declaring class.
+     */
+    private EntityRepository getControllerRepository() {
+        final Field field = ReflectionUtils
+                .findField(HyperstateController.class, "repository");
+        ReflectionUtils.makeAccessible(field);
+        return (EntityRepository) ReflectionUtils.getField(field,
+                getControllerTarget());
+    }
+
+    private void setControllerRepository(final EntityRepository repository) {
+        final Field field = ReflectionUtils
+                .findField(HyperstateController.class, "repository");
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, getControllerTarget(), repository);
+    }
+
+    @Then("^the streamed sub-entities will be in the order of their paths$")
+    public void the_streamed_sub_entities_will_be_in_the_order_of_their_paths()
+            throws Throwable {
+        final List<String> hrefs = new ArrayList<>();
+        for (final JsonNode entity : streamedResponse.getBody()
+                .path("entities")) {
+            hrefs.add(entity.path("href").asText());
+        }
+        assertThat(hrefs, equalTo(new ArrayList<>(new TreeSet<>(hrefs))));
+    }
+
+    @Then("^the streamed response will not have been buffered$")
+    public void the_streamed_response_will_not_have_been_buffered()
+            throws Throwable {
+        assertThat(streamedResponse.getHeaders().getContentLength(),
+                equalTo(-1L));
+        assertThat(streamedResponse.getHeaders().getETag(), notNullValue());
+    }
+
+    @Given("^the client's transport keeps at most (\\d+) connections to each host$")
+    public void the_client_s_transport_keeps_at_most_connections_to_each_host(
+            final int connections) throws Throwable {
+        transport = new PooledHttpTransport(sslContext, connections,
+                PooledHttpTransport.DEFAULT_MAX_CONNECTIONS);
+    }
+
+    @When("^every sub-entity of \"([^\"]*)\" is fetched at once over the transport$")
+    public void every_sub_entity_of_is_fetched_at_once_over_the_transport(
+            final String path) throws Throwable {
+        final AsyncRestTemplate template = transport.asyncRestTemplate();
+        final HttpHeaders headers = new HttpHeaders();
+        headers.setAccept(Arrays.asList(MediaTypes.SIREN_JSON));
+        final List<CompletableFuture<ResponseEntity<String>>> fetches = new ArrayList<>();
+        for (final EntityRelationship relationship : repository.findOne(path)
+                .join().getEntitiesView()) {
+            fetches.add(FutureConverter.convert(template.exchange(
+                    getBaseUri().resolve(relationship.getEntity().getId()),
+                    HttpMethod.GET, new HttpEntity<>(headers), String.class)));
+        }
+        fetchedResponses = fetches.stream().map(CompletableFuture::join)
+                .collect(Collectors.toList());
+    }
+
+    @Then("^all (\\d+) fetches will have succeeded$")
+    public void all_fetches_will_have_succeeded(final int count)
+            throws Throwable {
+        assertThat(fetchedResponses.size(), equalTo(count));
+        for (final ResponseEntity<String> response : fetchedResponses) {
+            assertThat(response.getStatusCode(), equalTo(HttpStatus.OK));
+        }
+    }
+
+    @Then("^no more than (\\d+) connections will have been opened to the server$")
+    public void no_more_than_connections_will_have_been_opened_to_the_server(
+            final int connections) throws Throwable {
+        assertThat(transport.getOpenConnections(),
+                both(greaterThan(0)).and(lessThanOrEqualTo(connections)));
+    }
+
+    @Given("^the client prefetches links and sub-entities with the \"([^\"]*)\" (rel|class)$")
+    public void the_client_prefetches_links_and_sub_entities_with_the(
+            final String name, final String kind) throws Throwable {
+        the_client_doesn_t_prefetch();
+        // so that they're used without being revalidated
+        prefetchingResolver.setPrefetchPolicy(
+                "rel".equals(kind) ? PrefetchPolicy.rels(name)
+                        : PrefetchPolicy.classes(name),
+                TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @Given("^the client prefetches sub-entities with the \"([^\"]*)\" class, as fresh as by default$")
+    public void the_client_prefetches_sub_entities_with_the_class_as_fresh_as_by_default(
+            final String name) throws Throwable {
+        the_client_doesn_t_prefetch();
+        prefetchingResolver.setPrefetchPolicy(PrefetchPolicy.classes(name));
+    }
+
+    @Given("^the client's prefetch policy fails$")
+    public void the_client_s_prefetch_policy_fails() throws Throwable {
+        the_client_doesn_t_prefetch();
+        prefetchingResolver.setPrefetchPolicy((rels, classes) -> {
+            throw new IllegalStateException("the policy failed");
+        });
+    }
+
+    @Given("^the client doesn't prefetch$")
+    public void the_client_doesn_t_prefetch() throws Throwable {
+        final AsyncRestTemplate template = new AsyncRestTemplate(
+                asyncRestTemplate.getAsyncRequestFactory());
+        template.setInterceptors(
+                Arrays.asList((request, body, execution) -> {
+                    requestsMade.incrementAndGet();
+                    final CompletableFuture<Void> release = heldResponses;
+                    if (request.getMethod() != HttpMethod.GET
+                            || release.isDone()) {
+                        return execution.executeAsync(request, body);
+                    }
+                    final SettableListenableFuture<ClientHttpResponse> held = new SettableListenableFuture<>();
+                    execution.executeAsync(request, body)
+                            .addCallback(response -> {
+                                responsesHeld.incrementAndGet();
+                                release.thenRun(() -> held.set(response));
+                            }, e -> release
+                                    .thenRun(() -> held.setException(e)));
+                    return held;
+                }));
+        prefetchCache = new GuavaResponseCache();
+        prefetchingResolver = new RestTemplateResolver(getBaseUri(), om,
+                template, prefetchCache);
+    }
+
+    @Given("^the client holds back the responses to its GETs$")
+    public void the_client_holds_back_the_responses_to_its_GETs()
+            throws Throwable {
+        heldResponses = new CompletableFuture<>();
+    }
+
+    @When("^the responses to the client's GETs are let through$")
+    public void the_responses_to_the_client_s_GETs_are_let_through()
+            throws Throwable {
+        heldResponses.complete(null);
+        for (final CompletableFuture<VanillaEntity> resolution : clientResolutions) {
+            try {
+                resolution.get(10, TimeUnit.SECONDS);
+            } catch (final ExecutionException e) {
+                // failures are checked by the steps that care
+            }
+        }
+    }
+
+    @When("^the client resolves \"([^\"]*)\" from (\\d+) threads at once$")
+    public void the_client_resolves_from_threads_at_once(final String path,
+            final int threads) throws Throwable {
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<CompletableFuture<VanillaEntity>>> made = new ArrayList<>();
+            for (int i = 0; i < threads; ++i) {
+                made.add(pool.submit(() -> {
+                    start.await();
+                    return prefetchingResolver.get(path, VanillaEntity.class);
+                }));
+            }
+            start.countDown();
+            clientResolutions = new ArrayList<>();
+            for (final Future<CompletableFuture<VanillaEntity>> resolution : made) {
+                clientResolutions.add(resolution.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @When("^the client starts resolving \"([^\"]*)\"$")
+    public void the_client_starts_resolving(final String path)
+            throws Throwable {
+        final int held = responsesHeld.get();
+        clientResolutions = new ArrayList<>();
+        clientResolutions
+                .add(prefetchingResolver.get(path, VanillaEntity.class));
+        // wait for the server to have answered, so the answer is from
+        // before anything that follows
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (responsesHeld.get() == held) {
+            assertThat("response to " + path,
+                    System.currentTimeMillis() < deadline, equalTo(true));
+            Thread.sleep(10);
+        }
+    }
+
+    @When("^the client updates the username at \"([^\"]*)\" to \"([^\"]*)\"$")
+    public void the_client_updates_the_username_at_to(final String path,
+            final String username) throws Throwable {
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put("action", "update");
+        parameters.put("username", username);
+        prefetchingResolver.update(new RestAddress(prefetchingResolver,
+                getBaseUri().resolve(path)), parameters).get();
+    }
+
+    @Then("^each of the client's resolutions will be of \"([^\"]*)\"$")
+    public void each_of_the_client_s_resolutions_will_be_of(
+            final String path) throws Throwable {
+        for (final CompletableFuture<VanillaEntity> resolution : clientResolutions) {
+            assertThat(resolution.get().getLink(Relationship.SELF).getPath(),
+                    endsWith(path));
+        }
+    }
+
+    @Then("^the client will not have cached \"([^\"]*)\"$")
+    public void the_client_will_not_have_cached(final String path)
+            throws Throwable {
+        assertThat(prefetchCache.get(getBaseUri().resolve(path)), nullValue());
+    }
+
+    @When("^the client resolves \"([^\"]*)\"$")
+    public void the_client_resolves(final String path) throws Throwable {
+        currentEntity = prefetchingResolver.get(path, VanillaEntity.class)
+                .get();
+    }
+
+    @Then("^the client will have made (\\d+) requests?$")
+    public void the_client_will_have_made_requests(final int count)
+            throws Throwable {
+        assertThat(requestsMade.get(), equalTo(count));
+    }
+
+    @Then("^its \"([^\"]*)\" link will resolve straight away, without another request$")
+    public void its_link_will_resolve_straight_away_without_another_request(
+            final String rel) throws Throwable {
+        final Link link = currentEntity.getLink(rel);
+        awaitPrefetch(link.getAddress().getHref());
+        final int requests = requestsMade.get();
+        final CompletableFuture<VanillaEntity> resolved = link
+                .resolve(VanillaEntity.class);
+        assertThat(resolved.isDone(), equalTo(true));
+        assertThat(resolved.join().getTitle(), notNullValue());
+        assertThat(requestsMade.get(), equalTo(requests));
+    }
+
+    @Then("^its sub-entities will resolve straight away, without another request$")
+    public void its_sub_entities_will_resolve_straight_away_without_another_request()
+            throws Throwable {
+        assertThat(currentEntity.getEntities(), not(empty()));
+        for (final EntityRelationship relationship : currentEntity
+                .getEntities()) {
+            awaitPrefetch(relationship.getEntityLink().getAddress().getHref());
+        }
+        final int requests = requestsMade.get();
+        for (final EntityRelationship relationship : currentEntity
+                .getEntities()) {
+            final CompletableFuture<VanillaEntity> resolved = relationship
+                    .resolve(VanillaEntity.class);
+            assertThat(resolved.isDone(), equalTo(true));
+            assertThat(resolved.join().getTitle(),
+                    equalTo(relationship.getEntityLink().getTitle()));
+        }
+        assertThat(requestsMade.get(), equalTo(requests));
+    }
+
+    @Then("^its sub-entities will be revalidated when they're resolved$")
+    public void its_sub_entities_will_be_revalidated_when_they_re_resolved()
+            throws Throwable {
+        assertThat(currentEntity.getEntities(), not(empty()));
+        for (final EntityRelationship relationship : currentEntity
+                .getEntities()) {
+            awaitPrefetch(relationship.getEntityLink().getAddress().getHref());
+        }
+        final int requests = requestsMade.get();
+        for (final EntityRelationship relationship : currentEntity
+                .getEntities()) {
+            assertThat(relationship.resolve(VanillaEntity.class).get()
+                    .getTitle(),
+                    equalTo(relationship.getEntityLink().getTitle()));
+        }
+        assertThat(requestsMade.get(),
+                equalTo(requests + currentEntity.getEntities().size()));
+    }
+
+    /**
+     * Waits for a prefetched response to be put in the client's cache.
+     */
+    private void awaitPrefetch(final URI uri) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (prefetchCache.get(uri) == null) {
+            assertThat("prefetch of " + uri,
+                    System.currentTimeMillis() < deadline, equalTo(true));
+            Thread.sleep(10);
+        }
+    }
+
+    private void exchange(final String path, final HttpMethod method,
+            final HttpHeaders headers, final Object body) throws Throwable {
+        headers.setAccept(Arrays.asList(MediaTypes.SIREN_JSON));
+        try {
+            httpResponse = asyncRestTemplate
+                    .exchange(getBaseUri().resolve(path), method,
+                            new HttpEntity<>(body, headers), JsonNode.class)
+                    .get();
+        } catch (final ExecutionException e) {
+            if (!(e.getCause() instanceof HttpStatusCodeException)) {
+                throw e.getCause();
+            }
+            final HttpStatusCodeException cause = (HttpStatusCodeException) e
+                    .getCause();
+            httpResponse = new ResponseEntity<>(cause.getResponseHeaders(),
+                    cause.getStatusCode());
+        }
+    }
+
+    /**
+     * Passes everything but lookups by property on to another repository,
+     * so that those fall back to scanning it, and records the limits of the
+     * range queries made through it. Range queries can also be left
+     * unsupported, and lookups made to throw.
+     */
+    private static class RecordingEntityRepository
+            implements EntityRepository {
+
+        private final EntityRepository delegate;
+
+        private final List<Integer> rangeLimits = new CopyOnWriteArrayList<>();
+
+        private final boolean rangeQueries;
+
+        private volatile RuntimeException lookupFailure;
+
+        RecordingEntityRepository(final EntityRepository delegate) {
+            this(delegate, true);
+        }
+
+        RecordingEntityRepository(final EntityRepository delegate,
+                final boolean rangeQueries) {
+            this.delegate = delegate;
+            this.rangeQueries = rangeQueries;
+        }
+
+        @Override
+        public CompletableFuture<DeletedEntity> delete(
+                final EntityWrapper<?> entity) {
+            return delegate.delete(entity);
+        }
+
+        @Override
+        public CompletableFuture<DeletedEntity> delete(final String id) {
+            return delegate.delete(id);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> exists(final String id) {
+            return delegate.exists(id);
+        }
+
+        @Override
+        public CompletableFuture<EntityWrapper<?>> findOne(final String id) {
+            final RuntimeException failure = lookupFailure;
+            if (failure != null) {
+                throw failure;
+            }
+            return delegate.findOne(id);
+        }
+
+        @Override
+        public <S extends EntityWrapper<?>> CompletableFuture<S> findOne(
+                final String path, final Class<S> type) {
+            return delegate.findOne(path, type);
+        }
+
+        @Override
+        public <S extends EntityWrapper<?>> CompletableFuture<S> save(
+                final S entity) {
+            return delegate.save(entity);
+        }
+
+        @Override
+        public <S extends EntityWrapper<?>> CompletableFuture<Boolean> compareAndSave(
+                final EntityWrapper<?> expected, final S entity) {
+            return delegate.compareAndSave(expected, entity);
+        }
+
+        @Override
+        public CompletableFuture<Boolean> compareAndDelete(
+                final EntityWrapper<?> expected) {
+            return delegate.compareAndDelete(expected);
+        }
+
+        @Override
+        public CompletableFuture<Void> deleteAll() {
+            return delegate.deleteAll();
+        }
+
+        @Override
+        public CompletableFuture<List<EntityWrapper<?>>> findRange(
+                final String prefix, final String after, final String before,
+                final int limit) {
+            rangeLimits.add(limit);
+            if (!rangeQueries) {
+                return EntityRepository.super.findRange(prefix, after, before,
+                        limit);
+            }
+            return delegate.findRange(prefix, after, before, limit);
+        }
+    }
 }
@@ -8,6 +8,8 @@ import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 
+import au.com.mountainpass.hyperstate.annotations.Indexed;
+
 public class AccountProperties implements Serializable {
 
     /**
@@ -20,6 +22,7 @@ public class AccountProperties implements Serializable {
     @JsonIgnore
     private final Logger LOGGER = LoggerFactory.getLogger(this.getClass());
 
+    @Indexed
     private String username;
 
     public AccountProperties() {
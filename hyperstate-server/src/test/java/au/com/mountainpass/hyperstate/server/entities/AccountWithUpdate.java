@@ -17,6 +17,9 @@ public class AccountWithUpdate extends Account {
     }
 
     public CompletableFuture<UpdatedEntity> update(String username) {
+        if (username == null || username.isEmpty()) {
+            throw new IllegalArgumentException("a username is required");
+        }
         this.getProperties().setUsername(username);
         return getRepository().save(this).thenApply(entity -> {
             return new UpdatedEntity(entity);
@@ -1,7 +1,6 @@
 package au.com.mountainpass.hyperstate.server.entities;
 
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Stream;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 
@@ -10,6 +9,7 @@ import au.com.mountainpass.hyperstate.core.EntityRepository;
 import au.com.mountainpass.hyperstate.core.Relationship;
 import au.com.mountainpass.hyperstate.core.entities.CreatedEntity;
 import au.com.mountainpass.hyperstate.core.entities.EntityWrapper;
+import au.com.mountainpass.hyperstate.exceptions.EntityNotFoundException;
 
 @JsonInclude(JsonInclude.Include.NON_DEFAULT)
 public class Accounts extends EntityWrapper<Void> {
@@ -41,21 +41,15 @@ public class Accounts extends EntityWrapper<Void> {
     // TODO get action should be able to return futures with sub-types of entity
     // wrapper
     public CompletableFuture<EntityWrapper<?>> get(String username) {
-        // yes this is very inefficient. The plan is to get it working and then
-        // get it right
-
-        Stream<EntityRelationship> children;
-        children = getEntities().stream();
-
-        Stream<EntityRelationship> filtered = children.filter(child -> {
-            String childUsername = child.resolve(Account.class).join()
-                    .getProperties().getUsername();
-            return childUsername == null && username == null
-                    || childUsername.equals(username);
-        });
-
-        EntityRelationship entityRelationship = filtered.findAny().get();
-        return (CompletableFuture) entityRelationship.resolve(Account.class);
+        final String prefix = getId() + "/";
+        return getRepository().findByProperty("username", username)
+                .thenApply(found -> {
+                    return found.stream()
+                            .filter(account -> account instanceof Account
+                                    && account.getId().startsWith(prefix))
+                            .findAny()
+                            .orElseThrow(EntityNotFoundException::new);
+                });
     }
 
 }
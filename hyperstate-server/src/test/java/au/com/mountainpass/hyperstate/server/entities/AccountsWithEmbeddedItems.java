@@ -0,0 +1,20 @@
+package au.com.mountainpass.hyperstate.server.entities;
+
+import au.com.mountainpass.hyperstate.core.EntityRepository;
+import au.com.mountainpass.hyperstate.core.Relationship;
+
+public class AccountsWithEmbeddedItems extends Accounts {
+
+    protected AccountsWithEmbeddedItems() {
+    }
+
+    public AccountsWithEmbeddedItems(final EntityRepository repository,
+            final String path) {
+        super(repository, path);
+    }
+
+    @Override
+    protected boolean embeds(final String rel) {
+        return Relationship.ITEM.equals(rel);
+    }
+}
@@ -0,0 +1,24 @@
+Feature: Binary Entity Codec
+    In order to store and send entities cheaply
+    As a service developer
+    I want entities to have a compact binary encoding
+
+Scenario: An entity in binary
+    Given an "Account" domain entity with
+    | username     | sirenAccount          |
+    | creationDate | 2016-01-15T12:00:00   |
+    And it is exposed at "/accounts/sirenAccount"
+    Then the entity at "/accounts/sirenAccount" will be restored the same from binary as from JSON
+    And the entity at "/accounts/sirenAccount" will be less than half the size in binary as in JSON
+
+Scenario: An entity with sub-entities in binary
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 25 "Account" sub-entities
+    Then the entity at "/accounts" will be restored the same from binary as from JSON
+    And the entity at "/accounts" will be less than half the size in binary as in JSON
+
+Scenario: An entity with links in binary
+    Given a Hyperstate controller "hyperstateTestController" at "/"
+    And the controller's root has an "accounts" link to an "Accounts" domain entity
+    Then the entity at "/" will be restored the same from binary as from JSON
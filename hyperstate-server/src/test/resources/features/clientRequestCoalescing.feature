@@ -0,0 +1,29 @@
+Feature: Client Request Coalescing
+    In order to not repeat requests that are already on their way
+    As a service consumer
+    I want concurrent requests for the same entity to share one request, without a stale response being kept
+
+Background:
+    Given an "Account" domain entity with
+    | username     | tom        |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it has a "update" action
+    And it is exposed at "/accounts/sharedAccount"
+    And the client doesn't prefetch
+
+Scenario: Concurrent requests for the same entity
+    Given the client holds back the responses to its GETs
+    When the client resolves "/accounts/sharedAccount" from 10 threads at once
+    And the responses to the client's GETs are let through
+    Then the client will have made 1 request
+    And each of the client's resolutions will be of "/accounts/sharedAccount"
+
+Scenario: Response to a request made before the client changed the entity
+    Given the client holds back the responses to its GETs
+    When the client starts resolving "/accounts/sharedAccount"
+    And the client updates the username at "/accounts/sharedAccount" to "nick"
+    And the responses to the client's GETs are let through
+    Then the client will not have cached "/accounts/sharedAccount"
+    When the client resolves "/accounts/sharedAccount"
+    Then the response will be an "Account" domain entity with
+    | username     | nick       |
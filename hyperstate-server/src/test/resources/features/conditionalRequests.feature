@@ -0,0 +1,64 @@
+Feature: Conditional Requests
+    In order to save bandwidth and CPU when polling for changes
+    As a service consumer
+    I want entity responses to carry entity tags, and to be able to make requests conditional on them
+
+Background:
+    Given an "Account" domain entity with
+    | username     | tom        |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it has a "update" action
+    And it is exposed at "/accounts/conditionalAccount"
+    And "/accounts/conditionalAccount" has been requested over HTTP
+
+Scenario: Conditional GET of an unchanged entity
+    When "/accounts/conditionalAccount" is requested over HTTP with its entity tag
+    Then the HTTP response status will be 304
+
+Scenario: Conditional GET of a changed entity
+    Given the entity at "/accounts/conditionalAccount" has been saved again
+    When "/accounts/conditionalAccount" is requested over HTTP with its entity tag
+    Then the HTTP response status will be 200
+
+Scenario: Update with a current entity tag
+    When the "update" action at "/accounts/conditionalAccount" is submitted over HTTP with its entity tag and
+    | username | nick |
+    Then the HTTP response status will be 204
+    And the username at "/accounts/conditionalAccount" will be "nick"
+    And the entity at "/accounts/conditionalAccount" will still be stored in the repository
+
+Scenario: Update with a stale entity tag
+    Given the entity at "/accounts/conditionalAccount" has been saved again
+    When the "update" action at "/accounts/conditionalAccount" is submitted over HTTP with its entity tag and
+    | username | nick |
+    Then the HTTP response status will be 412
+    And the username at "/accounts/conditionalAccount" will be "tom"
+
+Scenario: Repeated requests for an unchanged entity
+    Given request is made to "/accounts/conditionalAccount"
+    When request is made to "/accounts/conditionalAccount"
+    Then the response will be an "Account" domain entity with
+    | username     | tom        |
+
+Scenario: Repeated requests for a changed entity
+    Given request is made to "/accounts/conditionalAccount"
+    And the username at "/accounts/conditionalAccount" has been changed to "nick"
+    When request is made to "/accounts/conditionalAccount"
+    Then the response will be an "Account" domain entity with
+    | username     | nick       |
+
+Scenario: Update of an entity saved again after its entity tag was checked
+    Given the "update" action at "/accounts/conditionalAccount" has been checked against its entity tag
+    And the entity at "/accounts/conditionalAccount" has been saved again
+    When the checked action is called with
+    | username | nick |
+    Then it will fail because the entity has changed
+    And the username at "/accounts/conditionalAccount" will be "tom"
+
+Scenario: Update of an entity replaced after its entity tag was checked
+    Given the "update" action at "/accounts/conditionalAccount" has been checked against its entity tag
+    And the username at "/accounts/conditionalAccount" has been changed to "harry"
+    When the checked action is called with
+    | username | nick |
+    Then it will fail because the entity has changed
+    And the username at "/accounts/conditionalAccount" will be "harry"
@@ -0,0 +1,82 @@
+Feature: Entity Repository
+    In order to serve many requests at once
+    As a service developer
+    I want the entity repository to be safe under concurrent access
+
+Scenario: Concurrent saves and reads
+    When 8 threads concurrently save and read 250 "Account" domain entities each
+    Then the repository will contain every saved entity
+
+Scenario: Concurrent compare and save
+    Given an "Account" domain entity with
+    | username     | 0          |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it is exposed at "/accounts/counter"
+    When 8 threads concurrently increment the username at "/accounts/counter" 100 times each
+    Then the username at "/accounts/counter" will be "800"
+
+Scenario: Concurrent saves and reads with coalesced lookups
+    Given lookups in the entity repository are coalesced
+    When 8 threads concurrently save and read 250 "Account" domain entities each
+    Then the repository will contain every saved entity
+
+Scenario: Concurrent lookups of the same path with coalesced lookups
+    Given an "Account" domain entity with
+    | username     | tom        |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it is exposed at "/accounts/hotAccount"
+    And lookups in the entity repository are coalesced
+    When 10 threads concurrently look up "/accounts/hotAccount" while the first lookup is in flight
+    Then all 10 lookups will find the entity at "/accounts/hotAccount"
+    And the underlying repository will have been looked up 1 time
+    And 9 of the lookups will have been coalesced
+
+Scenario: A coalesced lookup that throws
+    Given an "Account" domain entity with
+    | username     | tom        |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it is exposed at "/accounts/hotAccount"
+    And lookups in the underlying repository throw
+    And lookups in the entity repository are coalesced
+    When looking up "/accounts/hotAccount" throws
+    And lookups in the underlying repository no longer throw
+    Then looking up "/accounts/hotAccount" will find it
+
+Scenario: Concurrent compare and save with coalesced lookups
+    Given lookups in the entity repository are coalesced
+    And an "Account" domain entity with
+    | username     | 0          |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it is exposed at "/accounts/counter"
+    When 8 threads concurrently increment the username at "/accounts/counter" 100 times each
+    Then the username at "/accounts/counter" will be "800"
+
+Scenario: Batch saves, lookups and deletes
+    When 100 "Account" domain entities are saved in one batch
+    Then looking them up in one batch will find every saved entity
+    When they are deleted in one batch
+    Then looking them up in one batch will find no entities
+
+Scenario: Lookups by an indexed property
+    When 100 "Account" domain entities are saved in one batch
+    Then looking up the accounts with username "user42" will find "/accounts/batch/42"
+    When the username at "/accounts/batch/42" has been changed to "renamed"
+    Then looking up the accounts with username "user42" will find nothing
+    And looking up the accounts with username "renamed" will find "/accounts/batch/42"
+    When they are deleted in one batch
+    Then looking up the accounts with username "renamed" will find nothing
+
+Scenario: Lookups by an indexed property after a change in place
+    When 100 "Account" domain entities are saved in one batch
+    And the username at "/accounts/batch/42" has been changed in place to "renamed"
+    Then looking up the accounts with username "user42" will find nothing
+    And looking up the accounts with username "renamed" will find "/accounts/batch/42"
+
+Scenario: Lookups by a property in a repository that doesn't maintain indexes
+    Given the entity repository doesn't maintain indexes
+    When 300 "Account" domain entities are saved in one batch
+    Then looking up the accounts with username "user42" will find "/accounts/batch/42"
+    And looking up the accounts with username "user299" will find "/accounts/batch/299"
+    When the username at "/accounts/batch/42" has been changed to "renamed"
+    Then looking up the accounts with username "user42" will find nothing
+    And looking up the accounts with username "renamed" will find "/accounts/batch/42"
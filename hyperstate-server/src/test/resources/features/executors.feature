@@ -0,0 +1,32 @@
+Feature: Executors
+    In order to handle many slow actions without running out of threads
+    As a service provider
+    I want to be able to run actions and serialization on virtual threads, falling back to bounded thread pools on JVMs without them
+
+Scenario: Virtual thread mode on a JVM without virtual threads
+    Given the JVM doesn't support virtual threads
+    And the controller's executors are created in "virtual" mode
+    Then the controller's executors will be bounded thread pools
+
+Scenario: Requests complete on the fallback executors
+    Given the JVM doesn't support virtual threads
+    And the controller's executors are created in "virtual" mode
+    And an "Account" domain entity with
+    | username     | tom        |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it has a "update" action
+    And it is exposed at "/accounts/updatableAccount"
+    And an "Account" domain entity with
+    | username     | dick       |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it has a "delete" action
+    And it is exposed at "/accounts/deletableAccount"
+    When the "createAccount" action at "/accounts" is submitted over HTTP with
+    | username | harry |
+    Then the HTTP response status will be 201
+    When the "update" action at "/accounts/updatableAccount" is submitted over HTTP with
+    | username | nick |
+    Then the HTTP response status will be 204
+    And the username at "/accounts/updatableAccount" will be "nick"
+    When the "delete" action at "/accounts/deletableAccount" is submitted over HTTP
+    Then the HTTP response status will be 204
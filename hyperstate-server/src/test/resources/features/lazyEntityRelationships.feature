@@ -0,0 +1,58 @@
+Feature: Lazy Entity Relationships
+    In order to keep collections small in memory and cheap to save as they grow
+    As a service developer
+    I want sub-entities to be linked to and resolved when they are needed, unless I ask for them to be embedded
+
+Scenario: Sub-entities are only linked to
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 3 "Account" sub-entities
+    Then the sub-entities of "/accounts" will only be linked to
+
+Scenario: Sub-entities are resolved through the repository
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 3 "Account" sub-entities
+    And the username at "/accounts/paged001" has been changed to "renamed"
+    Then the sub-entities of "/accounts" will resolve to the entities saved at their paths
+
+Scenario: Linked sub-entities are written without their properties
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 3 "Account" sub-entities
+    When "/accounts" is streamed over HTTP
+    Then no sub-entity in the streamed response will have properties
+
+Scenario: Embedded sub-entities are written with their properties
+    Given an "Accounts" domain entity that embeds its items at "/embeddedAccounts"
+    And the entity at "/embeddedAccounts" has 3 "Account" sub-entities
+    When "/embeddedAccounts" is streamed over HTTP
+    Then every sub-entity in the streamed response will have a "username" property
+    And the entity at "/embeddedAccounts" will be serialized the same with and without the Siren serializer
+
+Scenario: Embedded sub-entities are resolved before they are written
+    Given an "Accounts" domain entity that embeds its items at "/embeddedAccounts"
+    And the entity at "/embeddedAccounts" has 3 "Account" sub-entities
+    When "/embeddedAccounts" has been requested over HTTP
+    Then its body will contain "creationDate"
+    And the entity at "/embeddedAccounts" won't hold its embedded sub-entities
+
+Scenario: The entity tag changes when an embedded sub-entity does
+    Given an "Accounts" domain entity that embeds its items at "/embeddedAccounts"
+    And the entity at "/embeddedAccounts" has 3 "Account" sub-entities
+    And "/embeddedAccounts" has been requested over HTTP
+    And the username at "/embeddedAccounts/paged001" has been changed to "renamed"
+    When "/embeddedAccounts" is requested over HTTP with its entity tag
+    Then the HTTP response status will be 200
+    And its body will contain "renamed"
+
+Scenario: Cached representations aren't served once an embedded sub-entity changes
+    Given an "Accounts" domain entity that embeds its items at "/embeddedAccounts"
+    And the entity at "/embeddedAccounts" has 3 "Account" sub-entities
+    And "/embeddedAccounts" has been requested over HTTP
+    When "/embeddedAccounts" is requested over HTTP again
+    Then the response will have been served from the representation cache
+    Given the username at "/embeddedAccounts/paged001" has been changed to "renamed"
+    When "/embeddedAccounts" is requested over HTTP again
+    Then the response will have been serialized again
+    And its body will contain "renamed"
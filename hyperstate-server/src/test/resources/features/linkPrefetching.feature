@@ -0,0 +1,47 @@
+@skip-local
+Feature: Link Prefetching
+    In order to navigate without waiting on the server at every step
+    As a service consumer
+    I want the links I'm about to follow to be fetched in the background as soon as I have an entity
+
+Scenario: Prefetch links by rel
+    Given a Hyperstate controller "hyperstateTestController" at "/"
+    And the controller's root has an "accounts" link to an "Accounts" domain entity
+    And the client prefetches links and sub-entities with the "accounts" rel
+    When the client resolves "/"
+    Then the client will have made 2 requests
+    And its "accounts" link will resolve straight away, without another request
+
+Scenario: Prefetch sub-entities by class
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 3 "Account" sub-entities
+    And the client prefetches links and sub-entities with the "Account" class
+    When the client resolves "/accounts"
+    Then the client will have made 4 requests
+    And its sub-entities will resolve straight away, without another request
+
+Scenario: Nothing is prefetched by default
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 3 "Account" sub-entities
+    And the client doesn't prefetch
+    When the client resolves "/accounts"
+    Then the client will have made 1 request
+
+Scenario: Prefetched responses are revalidated by default
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 3 "Account" sub-entities
+    And the client prefetches sub-entities with the "Account" class, as fresh as by default
+    When the client resolves "/accounts"
+    Then the client will have made 4 requests
+    And its sub-entities will be revalidated when they're resolved
+
+Scenario: A failed prefetch doesn't fail the request that found the link
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 3 "Account" sub-entities
+    And the client's prefetch policy fails
+    When the client resolves "/accounts"
+    Then the client will have made 1 request
@@ -0,0 +1,62 @@
+Feature: Memory-mapped File Entity Repository
+    In order to keep entities when the service restarts
+    As a service developer
+    I want to be able to keep entities in memory-mapped files
+
+Scenario: Saved entities survive a restart
+    Given the entity repository is kept in memory-mapped files
+    When 100 "Account" domain entities are saved in one batch
+    And the repository is reopened
+    Then looking them up in one batch will find every saved entity
+
+Scenario: Updates and deletes survive a restart
+    Given the entity repository is kept in memory-mapped files
+    When 100 "Account" domain entities are saved in one batch
+    And the username at "/accounts/batch/42" has been changed to "renamed"
+    And the repository is reopened
+    Then the username at "/accounts/batch/42" will be "renamed"
+    When they are deleted in one batch
+    And the repository is reopened
+    Then looking them up in one batch will find no entities
+
+Scenario: A write torn by a crash is discarded
+    Given the entity repository is kept in memory-mapped files
+    When 100 "Account" domain entities are saved in one batch
+    And the repository is reopened after a crash tore its last write
+    Then looking them up in one batch will find every saved entity but "/accounts/batch/99"
+    When the username at "/accounts/batch/98" has been changed to "after the crash"
+    And the repository is reopened
+    Then the username at "/accounts/batch/98" will be "after the crash"
+
+Scenario: Concurrent compare and save with memory-mapped files
+    Given the entity repository is kept in memory-mapped files
+    And an "Account" domain entity with
+    | username     | 0          |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it is exposed at "/accounts/counter"
+    When 8 threads concurrently increment the username at "/accounts/counter" 100 times each
+    Then the username at "/accounts/counter" will be "800"
+
+Scenario: Lookups by an indexed property in memory-mapped files
+    Given the entity repository is kept in memory-mapped files
+    When 100 "Account" domain entities are saved in one batch
+    And the username at "/accounts/batch/42" has been changed in place to "renamed"
+    And the repository is reopened
+    Then looking up the accounts with username "user42" will find nothing
+    And looking up the accounts with username "renamed" will find "/accounts/batch/42"
+    When they are deleted in one batch
+    Then looking up the accounts with username "renamed" will find nothing
+
+Scenario: Range queries in memory-mapped files
+    Given the entity repository is kept in memory-mapped files
+    When 25 "Account" domain entities are saved in one batch
+    And the repository is reopened
+    Then paging through the entities under "/accounts/batch/" 10 at a time will find every saved entity in order
+
+Scenario: Compare and save of an entity changed in place in memory-mapped files
+    Given the entity repository is kept in memory-mapped files
+    When 10 "Account" domain entities are saved in one batch
+    And the username at "/accounts/batch/4" is changed in place to "renamed" with compare and save
+    And the username at "/accounts/batch/4" is changed in place to "renamed again" with compare and save
+    And the repository is reopened
+    Then the username at "/accounts/batch/4" will be "renamed again"
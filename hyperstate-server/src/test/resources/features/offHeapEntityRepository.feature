@@ -0,0 +1,56 @@
+Feature: Off-heap Entity Repository
+    In order to keep garbage collections short with many entities
+    As a service developer
+    I want to be able to keep entities off the heap
+
+Scenario: Entities outside the hot set are found
+    Given the entity repository is kept off the heap with a hot set of 10 entities
+    When 100 "Account" domain entities are saved in one batch
+    Then looking them up in one batch will find every saved entity
+    And at most 10 entities will be held on the heap
+
+Scenario: Updates and deletes off the heap
+    Given the entity repository is kept off the heap with a hot set of 10 entities
+    When 100 "Account" domain entities are saved in one batch
+    And the username at "/accounts/batch/42" has been changed to "renamed"
+    Then the username at "/accounts/batch/42" will be "renamed"
+    When they are deleted in one batch
+    Then looking them up in one batch will find no entities
+
+Scenario: Space for replaced entities is reused
+    Given the entity repository is kept off the heap with a hot set of 10 entities
+    When 100 "Account" domain entities are saved in one batch
+    And every saved entity is saved again 20 times
+    Then looking them up in one batch will find every saved entity
+    And at most 65536 bytes will have been allocated off the heap
+
+Scenario: Range queries off the heap
+    Given the entity repository is kept off the heap with a hot set of 10 entities
+    When 25 "Account" domain entities are saved in one batch
+    Then paging through the entities under "/accounts/batch/" 10 at a time will find every saved entity in order
+
+Scenario: Concurrent compare and save off the heap
+    Given the entity repository is kept off the heap with a hot set of 10 entities
+    And an "Account" domain entity with
+    | username     | 0          |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it is exposed at "/accounts/counter"
+    When 8 threads concurrently increment the username at "/accounts/counter" 100 times each
+    Then the username at "/accounts/counter" will be "800"
+
+Scenario: Lookups by an indexed property off the heap
+    Given the entity repository is kept off the heap with a hot set of 10 entities
+    When 100 "Account" domain entities are saved in one batch
+    Then looking up the accounts with username "user42" will find "/accounts/batch/42"
+    When the username at "/accounts/batch/42" has been changed in place to "renamed"
+    Then looking up the accounts with username "user42" will find nothing
+    And looking up the accounts with username "renamed" will find "/accounts/batch/42"
+    When they are deleted in one batch
+    Then looking up the accounts with username "renamed" will find nothing
+
+Scenario: Compare and save of an entity changed in place off the heap
+    Given the entity repository is kept off the heap with a hot set of 10 entities
+    When 10 "Account" domain entities are saved in one batch
+    And the username at "/accounts/batch/4" is changed in place to "renamed" with compare and save
+    And the username at "/accounts/batch/4" is changed in place to "renamed again" with compare and save
+    Then the username at "/accounts/batch/4" will be "renamed again"
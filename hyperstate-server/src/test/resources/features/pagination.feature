@@ -0,0 +1,76 @@
+Feature: Pagination
+    In order to keep responses small as collections grow
+    As a service consumer
+    I want large collections to be returned a page at a time, with links to the other pages
+
+@skip-local
+Scenario: Page through a large collection
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 25 "Account" sub-entities
+    When request is made to "/accounts"
+    Then the response will have 10 sub-entities
+    And it will have a "next" link
+    And it will not have a "prev" link
+    When its "next" link is followed
+    Then the response will have 10 sub-entities
+    And it will have a "prev" link
+    And it will have a "next" link
+    When its "next" link is followed
+    Then the response will have 5 sub-entities
+    And it will not have a "next" link
+    When its "prev" link is followed
+    Then the response will have 10 sub-entities
+    And it will have a "next" link
+    When its "first" link is followed
+    Then the response will have 10 sub-entities
+    And it will not have a "prev" link
+
+@skip-local
+Scenario: Pages skip entities that aren't sub-entities
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 25 "Account" sub-entities
+    And 12 "Account" domain entities that aren't its sub-entities are saved under "/accounts/paged010/"
+    When request is made to "/accounts"
+    Then the response will have 10 sub-entities
+    When its "next" link is followed
+    Then the response will have 10 sub-entities
+    When its "next" link is followed
+    Then the response will have 5 sub-entities
+    And it will not have a "next" link
+    When its "prev" link is followed
+    Then the response will have 10 sub-entities
+    And it will have a "prev" link
+
+@skip-local
+Scenario: Page through a large collection in a repository without range queries
+    Given the entity repository doesn't support range queries
+    And an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 25 "Account" sub-entities
+    When request is made to "/accounts"
+    Then the response will have 10 sub-entities
+    When its "next" link is followed
+    Then the response will have 10 sub-entities
+    When its "next" link is followed
+    Then the response will have 5 sub-entities
+    And it will not have a "next" link
+    When its "prev" link is followed
+    Then the response will have 10 sub-entities
+    And it will have a "prev" link
+    When its "first" link is followed
+    Then the response will have 10 sub-entities
+    And it will not have a "prev" link
+
+Scenario: Small collections are not paged
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 3 "Account" sub-entities
+    When request is made to "/accounts"
+    Then the response will have 3 sub-entities
+    And it will not have a "next" link
+
+Scenario: Range queries over entity paths
+    When 25 "Account" domain entities are saved in one batch
+    Then paging through the entities under "/accounts/batch/" 10 at a time will find every saved entity in order
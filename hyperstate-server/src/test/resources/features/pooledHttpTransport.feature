@@ -0,0 +1,13 @@
+Feature: Pooled HTTP Transport
+    In order to crawl many links without overwhelming the server with connections
+    As a service consumer
+    I want the client to reuse a few persistent connections to each host
+
+Scenario: Fetch many sub-entities over a few connections
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 30 "Account" sub-entities
+    And the client's transport keeps at most 2 connections to each host
+    When every sub-entity of "/accounts" is fetched at once over the transport
+    Then all 30 fetches will have succeeded
+    And no more than 2 connections will have been opened to the server
@@ -0,0 +1,43 @@
+Feature: Representation Cache
+    In order to serve repeat requests for unchanged entities cheaply
+    As a service provider
+    I want the serialized representations of entities to be kept until the entities change
+
+Background:
+    Given an "Account" domain entity with
+    | username     | tom        |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it is exposed at "/accounts/cachedAccount"
+    And "/accounts/cachedAccount" has been requested over HTTP
+
+Scenario: Repeat request for an unchanged entity
+    When "/accounts/cachedAccount" is requested over HTTP again
+    Then the response will have been served from the representation cache
+    And it will be the same as the previous response
+
+Scenario: Request for an entity that has been saved since
+    Given the username at "/accounts/cachedAccount" has been changed to "nick"
+    When "/accounts/cachedAccount" is requested over HTTP again
+    Then the response will have been serialized again
+    And its body will contain "nick"
+
+Scenario: Representation serialized before an entity was saved
+    When a representation of "/accounts/cachedAccount" that was being serialized while it was saved is cached
+    Then the representation cache will have nothing for "/accounts/cachedAccount"
+    When a representation of "/accounts/cachedAccount" is cached
+    Then the representation cache will serve it for "/accounts/cachedAccount"
+
+Scenario: Representation serialized while another entity was saved
+    When a representation of "/accounts/cachedAccount" that was being serialized while "/accounts/otherAccount" was saved is cached
+    Then the representation cache will serve it for "/accounts/cachedAccount"
+
+Scenario Outline: Representations that differ in their <component>
+    When representations of "/accounts/cachedAccount" that differ only in their <component> are cached
+    Then the representation cache will serve each of them for its own <component>
+
+    Examples:
+    | component  |
+    | base URI   |
+    | media type |
+    | locale     |
+    | cursor     |
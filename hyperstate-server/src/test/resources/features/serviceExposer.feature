@@ -129,6 +129,17 @@ Scenario: Update a domain entity - concrete
     | username     | nick       |
     | creationDate | 2016-01-15T12:00:00 |
 
+Scenario: Update a domain entity with an action that throws
+    Given an "Account" domain entity with
+    | username     | tom        |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it has a "update" action
+    And it is exposed at "/accounts/testAccount"
+    When the "update" action at "/accounts/testAccount" is submitted over HTTP with
+    | username |  |
+    Then the HTTP response status will be 500
+    And the username at "/accounts/testAccount" will be "tom"
+
 Scenario: Update a domain entity - generic
     Given an "Account" domain entity with
     | username     | tom        |
@@ -0,0 +1,24 @@
+Feature: Siren Serialization
+    In order to serve entities quickly
+    As a service developer
+    I want entities to be written as Siren in a single pass, without changing what is written
+
+Scenario: Serialize entity with actions
+    Given an "Account" domain entity with
+    | username     | tom        |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it has a "update" action
+    And it has a "delete" action
+    And it is exposed at "/accounts/sirenAccount"
+    Then the entity at "/accounts/sirenAccount" will be serialized the same with and without the Siren serializer
+
+Scenario: Serialize entity with links
+    Given a Hyperstate controller "hyperstateTestController" at "/"
+    And the controller's root has an "accounts" link to an "Accounts" domain entity
+    Then the entity at "/" will be serialized the same with and without the Siren serializer
+
+Scenario: Serialize entity with embedded sub-entities
+    Given an "Accounts" domain entity that embeds its items at "/embeddedAccounts"
+    And the entity at "/embeddedAccounts" has 2 "Account" sub-entities
+    Then the entity at "/embeddedAccounts" will be serialized the same with and without the Siren serializer
+    And its sub-entities will have been written with the fields title, href, address, id, title, class, rel, properties
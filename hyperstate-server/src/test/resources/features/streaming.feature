@@ -0,0 +1,23 @@
+Feature: Streaming
+    In order to export whole collections without exhausting the server's memory
+    As a service consumer
+    I want to be able to have an entity and all of its sub-entities streamed to me
+
+Scenario: Stream a large collection
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 25 "Account" sub-entities
+    When "/accounts" is streamed over HTTP
+    Then the streamed response will have 25 sub-entities
+    And the streamed response will not have a "next" link
+    And the streamed response will not have been buffered
+
+Scenario: Stream a collection bigger than a page of the repository
+    Given an "Accounts" domain entity
+    And it is exposed at "/accounts"
+    And it has 250 "Account" sub-entities
+    And the controller's range queries are recorded
+    When "/accounts" is streamed over HTTP
+    Then the streamed response will have 250 sub-entities
+    And the streamed sub-entities will be in the order of their paths
+    And the controller will have read the sub-entities 100 at a time
@@ -0,0 +1,76 @@
+Feature: Write-ahead Log
+    In order to keep entities when the service restarts, without slowing down reads
+    As a service developer
+    I want to be able to log the changes to the in-memory entity repository
+
+Scenario: Logged entities survive a restart
+    Given the entity repository is kept in memory with a write-ahead log
+    When 100 "Account" domain entities are saved in one batch
+    And the repository is reopened
+    Then looking them up in one batch will find every saved entity
+
+Scenario: Logged updates and deletes survive a restart
+    Given the entity repository is kept in memory with a write-ahead log
+    When 100 "Account" domain entities are saved in one batch
+    And the username at "/accounts/batch/42" has been changed to "renamed"
+    And the repository is reopened
+    Then the username at "/accounts/batch/42" will be "renamed"
+    When they are deleted in one batch
+    And the repository is reopened
+    Then looking them up in one batch will find no entities
+
+Scenario: A snapshot and the log since it survive a restart
+    Given the entity repository is kept in memory with a write-ahead log
+    When 100 "Account" domain entities are saved in one batch
+    And the username at "/accounts/batch/42" has been changed to "before the snapshot"
+    And a snapshot of the repository is taken
+    And the username at "/accounts/batch/42" has been changed to "after the snapshot"
+    And the repository is reopened
+    Then the username at "/accounts/batch/42" will be "after the snapshot"
+    And the username at "/accounts/batch/7" will be "user7"
+    When a snapshot of the repository is taken
+    Then only the latest snapshot and the log since it will be kept
+
+Scenario: A logged write torn by a crash is discarded
+    Given the entity repository is kept in memory with a write-ahead log
+    When 100 "Account" domain entities are saved in one batch
+    And the repository is reopened after a crash tore its last write
+    Then looking them up in one batch will find every saved entity but "/accounts/batch/99"
+    When the username at "/accounts/batch/98" has been changed to "after the crash"
+    And the repository is reopened
+    Then the username at "/accounts/batch/98" will be "after the crash"
+
+Scenario: Concurrent saves are committed in groups
+    Given the entity repository is kept in memory with a write-ahead log
+    When 8 threads concurrently save and read 250 "Account" domain entities each
+    Then the write-ahead log will have been synced fewer times than it was written to
+    When the repository is reopened
+    Then the repository will contain every saved entity
+
+Scenario: Concurrent compare and save with a write-ahead log
+    Given the entity repository is kept in memory with a write-ahead log
+    And an "Account" domain entity with
+    | username     | 0          |
+    | creationDate | 2016-01-15T12:00:00 |
+    And it is exposed at "/accounts/counter"
+    When 8 threads concurrently increment the username at "/accounts/counter" 100 times each
+    And the repository is reopened
+    Then the username at "/accounts/counter" will be "800"
+
+Scenario: The repository fails closed once a change can't be logged
+    Given the entity repository is kept in memory with a write-ahead log
+    When 10 "Account" domain entities are saved in one batch
+    And the write-ahead log can no longer be written to
+    Then changing the username at "/accounts/batch/3" to "unlogged" will fail
+    And looking up "/accounts/batch/3" will fail
+    When the repository is reopened
+    Then the username at "/accounts/batch/3" will be "user3"
+
+Scenario: The repository fails closed once the log writer is interrupted
+    Given the entity repository is kept in memory with a write-ahead log
+    When 10 "Account" domain entities are saved in one batch
+    And the write-ahead log's writer is interrupted
+    Then changing the username at "/accounts/batch/3" to "unlogged" will fail
+    And looking up "/accounts/batch/3" will fail
+    When the repository is reopened
+    Then the username at "/accounts/batch/3" will be "user3"